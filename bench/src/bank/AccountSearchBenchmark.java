@@ -0,0 +1,61 @@
+package bank;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * searchAccounts по каждой комбинации фильтров и searchAny. Запросы ходят по кругу из заранее
+ * выбранных существующих значений, так что каждый вызов что-то находит.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+@State(Scope.Benchmark)
+public class AccountSearchBenchmark {
+    private static final int QUERIES = 1024;
+
+    @Param({"10000", "1000000"})
+    public int accounts;
+
+    // i — IBAN, b — BIC, o — подстрока владельца, n — подстрока банка; any — searchAny
+    @Param({"i", "b", "o", "n", "ib", "io", "in", "bo", "bn", "on", "ibo", "ibn", "ion", "bon", "ibon", "any"})
+    public String filter;
+
+    AccountRepository repo;
+    String[] iban, bic, owner, bank;
+    int next;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        repo = DataGenerator.repository(accounts, 0);
+        iban = new String[QUERIES];
+        bic = new String[QUERIES];
+        owner = new String[QUERIES];
+        bank = new String[QUERIES];
+        java.util.Random rnd = new java.util.Random(DataGenerator.SEED);
+        for (int q = 0; q < QUERIES; q++) {
+            // все поля запроса берутся от одного счёта, чтобы пересечение фильтров не было пустым
+            int no = rnd.nextInt(accounts);
+            String o = DataGenerator.owner(no);
+            String b = DataGenerator.BANKS[no % DataGenerator.BANKS.length];
+            iban[q] = DataGenerator.iban(no);
+            bic[q] = DataGenerator.bic(no % DataGenerator.BANKS.length);
+            owner[q] = o.substring(o.indexOf(' ') + 1); // имя и номер, без фамилии
+            bank[q] = b.substring(0, Math.min(4, b.length()));
+        }
+    }
+
+    @Benchmark
+    public int search() {
+        int q = next++ & (QUERIES - 1);
+        if (filter.equals("any")) return repo.searchAny(owner[q]).size();
+        return repo.searchAccounts(
+                filter.indexOf('i') >= 0 ? iban[q] : null,
+                filter.indexOf('b') >= 0 ? bic[q] : null,
+                filter.indexOf('o') >= 0 ? owner[q] : null,
+                filter.indexOf('n') >= 0 ? bank[q] : null).size();
+    }
+}
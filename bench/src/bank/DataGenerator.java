@@ -0,0 +1,85 @@
+package bank;
+
+import java.util.*;
+import java.util.stream.IntStream;
+
+/**
+ * Синтетические данные для бенчмарков. Всё выводится из seed и номера счёта, поэтому один и тот же
+ * набор параметров даёт один и тот же репозиторий на любом коммите — результаты можно сравнивать.
+ * Запуск отдельно: {@code DataGenerator <bank.dat> <счетов> <операций на счёт>} пишет снимок для ручных проверок.
+ */
+final class DataGenerator {
+    static final long SEED = 20240501L;
+    static final long START_MICROS = TransactionLog.toMicros(java.time.LocalDateTime.of(2020, 1, 1, 0, 0));
+
+    static final String[] FIRST = {"Иван", "Пётр", "Анна", "Мария", "Олег", "Елена", "Сергей", "Ольга",
+            "Дмитрий", "Наталья", "Алексей", "Татьяна", "Андрей", "Ирина", "Михаил", "Светлана"};
+    static final String[] LAST = {"Иванов", "Петров", "Сидоров", "Смирнов", "Кузнецов", "Попов", "Соколов",
+            "Лебедев", "Козлов", "Новиков", "Морозов", "Волков", "Соловьёв", "Васильев", "Зайцев", "Павлов"};
+    static final String[] BANKS = {"Сбербанк", "ВТБ", "Альфа-Банк", "Газпромбанк", "Тинькофф", "Райффайзенбанк",
+            "Росбанк", "Открытие", "Совкомбанк", "Промсвязьбанк", "Уралсиб", "Ак Барс"};
+    static final String[] DESCR = {"Зарплата", "Перевод", "Оплата услуг", "Кафе", "Супермаркет", "Аренда",
+            "Кэшбэк", "Такси", "Коммунальные платежи", "Аптека", "Возврат", "Снятие наличных"};
+
+    private DataGenerator() {}
+
+    static String iban(int no) { return String.format("DE%020d", no); }
+    static String bic(int bank) { return String.format("BANK%04dXXX", bank); }
+    static String owner(int no) {
+        // сотни тысяч разных владельцев, чтобы триграммный индекс работал на реалистичной кардинальности
+        return LAST[no % LAST.length] + " " + FIRST[(no / LAST.length) % FIRST.length] + " " + (no / 7);
+    }
+
+    /** Репозиторий из accounts счетов по txPerAccount операций; строится параллельно, индексы — один раз. */
+    static AccountRepository repository(int accounts, int txPerAccount) {
+        AccountRepository repo = new AccountRepository();
+        BankAccount[] all = new BankAccount[accounts];
+        IntStream.range(0, accounts).parallel().forEach(no -> all[no] = account(no, txPerAccount));
+        repo.addAll(Arrays.asList(all));
+        return repo;
+    }
+
+    static BankAccount account(int no, int tx) {
+        Random rnd = new Random(SEED * 31 + no);
+        int bank = no % BANKS.length;
+        BankAccount acc = new BankAccount(new UUID(rnd.nextLong(), rnd.nextLong()).toString(),
+                iban(no), bic(bank), BANKS[bank], owner(no));
+        fill(acc, rnd, tx);
+        return acc;
+    }
+
+    /** Одиночный счёт с длинной историей — для поиска по транзакциям. */
+    static BankAccount history(int tx) {
+        return account(0, tx);
+    }
+
+    // история без отрицательного баланса: снятие только если хватает средств
+    private static void fill(BankAccount acc, Random rnd, int tx) {
+        long[] micros = new long[tx], amounts = new long[tx];
+        byte[] types = new byte[tx];
+        String[] descr = new String[tx];
+        long t = START_MICROS, balance = 0;
+        for (int i = 0; i < tx; i++) {
+            t += 1_000_000L * (1 + rnd.nextInt(3600));
+            long amount = 100 + rnd.nextInt(5_000_000);
+            boolean withdraw = rnd.nextInt(3) == 0 && balance >= amount;
+            micros[i] = t;
+            amounts[i] = amount;
+            types[i] = (byte) (withdraw ? TransactionType.WITHDRAWAL : TransactionType.DEPOSIT).ordinal();
+            descr[i] = DESCR[rnd.nextInt(DESCR.length)];
+            balance += withdraw ? -amount : amount;
+        }
+        acc.restoreAll(micros, amounts, types, descr, tx);
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 3) {
+            System.out.println("Использование: DataGenerator <bank.dat> <счетов> <операций на счёт>");
+            return;
+        }
+        long start = System.nanoTime();
+        AccountRepository repo = repository(Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+        new FileDataStore(args[0]).save(repo);
+        System.out.printf("Готово: %d счетов за %d мс%n", repo.all().size(), (System.nanoTime() - start) / 1_000_000);
+    }
+}
@@ -0,0 +1,71 @@
+package bank;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/** Экспорт CSV: основная оценка — экспортов в секунду, счётчик rows — строк в секунду. */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+@State(Scope.Benchmark)
+public class ExportBenchmark {
+    @Param({"1000000"})
+    public int history;
+
+    @Param({"10000"})
+    public int accounts;
+
+    @Param({"false", "true"})
+    public boolean gzip;
+
+    AccountRepository one, many;
+    String id;
+    Path dir;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Rows {
+        public long rows;
+
+        @Setup(Level.Iteration)
+        public void reset() { rows = 0; }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        one = new AccountRepository();
+        id = one.add(DataGenerator.history(history)).id();
+        many = DataGenerator.repository(accounts, 100);
+        dir = Files.createTempDirectory("bank-export");
+    }
+
+    @TearDown(Level.Trial)
+    public void cleanup() throws IOException {
+        try (var files = Files.list(dir)) {
+            for (Path p : (Iterable<Path>) files::iterator) Files.deleteIfExists(p);
+        }
+        Files.deleteIfExists(dir);
+    }
+
+    /** exportCsv одного счёта — то, что делает кнопка в интерфейсе. */
+    @Benchmark
+    public void exportAccount(Rows rows) {
+        if (gzip) {
+            rows.rows += new CsvExporter(1, true, null).export(java.util.List.of(one.getById(id).get()), dir.resolve("one.csv.gz"));
+        } else {
+            one.exportCsv(id, dir.resolve("one.csv"));
+            rows.rows += history;
+        }
+    }
+
+    @Benchmark
+    public void exportLedger(Rows rows) {
+        rows.rows += many.exportAllCsv(dir.resolve(gzip ? "all.csv.gz" : "all.csv"), false, gzip, null);
+    }
+}
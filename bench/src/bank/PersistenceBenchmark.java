@@ -0,0 +1,65 @@
+package bank;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Время save / loadOrCreateEmpty на репозиториях от 10 тысяч до 10 миллионов счетов: обычная сериализация
+ * (FileDataStore) и постраничный снимок (PagedDataStore, история читается лениво).
+ * Один прогон — одна операция (SingleShotTime). Для 10M счетов нужна большая куча; без неё
+ * параметр можно сузить: {@code -p accounts=10000,100000}.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx24g")
+@State(Scope.Benchmark)
+public class PersistenceBenchmark {
+    @Param({"10000", "100000", "1000000", "10000000"})
+    public int accounts;
+
+    @Param({"4"})
+    public int txPerAccount;
+
+    @Param({"file", "paged"})
+    public String store;
+
+    AccountRepository repo;
+    Path dir;
+    DataStore saved;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        repo = DataGenerator.repository(accounts, txPerAccount);
+        dir = Files.createTempDirectory("bank-store");
+        saved = store(dir.resolve("load.dat"));
+        saved.save(repo);
+    }
+
+    @TearDown(Level.Trial)
+    public void cleanup() throws IOException {
+        try (var files = Files.list(dir)) {
+            for (Path p : (Iterable<Path>) files::iterator) Files.deleteIfExists(p);
+        }
+        Files.deleteIfExists(dir);
+    }
+
+    private DataStore store(Path file) {
+        return store.equals("paged") ? new PagedDataStore(file.toString()) : new FileDataStore(file.toString());
+    }
+
+    @Benchmark
+    public void save() {
+        store(dir.resolve("save.dat")).save(repo);
+    }
+
+    @Benchmark
+    public int load() {
+        return saved.loadOrCreateEmpty().all().size();
+    }
+}
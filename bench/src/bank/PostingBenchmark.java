@@ -0,0 +1,58 @@
+package bank;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Пропускная способность deposit/withdraw: свой счёт у каждого потока (замки не спорят)
+ * и один общий счёт на все потоки (упираемся в замок счёта).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PostingBenchmark {
+    static final Money AMOUNT = Money.ofMinor(100);
+
+    BankAccount shared;
+
+    @State(Scope.Thread)
+    public static class Own {
+        BankAccount acc;
+
+        // счёт пересоздаю на каждую итерацию, чтобы история не росла от итерации к итерации
+        @Setup(Level.Iteration)
+        public void setup() { acc = funded(); }
+    }
+
+    @Setup(Level.Iteration)
+    public void setup() { shared = funded(); }
+
+    // денег с запасом, чтобы withdraw ни разу не упёрся в баланс
+    static BankAccount funded() {
+        BankAccount acc = new BankAccount(DataGenerator.iban(0), DataGenerator.bic(0), DataGenerator.BANKS[0], DataGenerator.owner(0));
+        acc.deposit(Money.ofMinor(Long.MAX_VALUE / 2), "старт");
+        return acc;
+    }
+
+    @Benchmark @Threads(1)
+    public void deposit(Own own) { own.acc.deposit(AMOUNT, "Перевод"); }
+
+    @Benchmark @Threads(1)
+    public void withdraw(Own own) { own.acc.withdraw(AMOUNT, "Перевод"); }
+
+    @Benchmark @Threads(4)
+    public void depositOwnAccount4(Own own) { own.acc.deposit(AMOUNT, "Перевод"); }
+
+    @Benchmark @Threads(4)
+    public void withdrawOwnAccount4(Own own) { own.acc.withdraw(AMOUNT, "Перевод"); }
+
+    @Benchmark @Threads(4)
+    public void depositSharedAccount4() { shared.deposit(AMOUNT, "Перевод"); }
+
+    @Benchmark @Threads(4)
+    public void withdrawSharedAccount4() { shared.withdraw(AMOUNT, "Перевод"); }
+}
@@ -0,0 +1,59 @@
+package bank;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+/** searchTransactions по длинной истории одного счёта: узкий и широкий диапазон времени, фильтры по сумме и описанию. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+@State(Scope.Benchmark)
+public class TransactionSearchBenchmark {
+    @Param({"100000", "1000000", "10000000"})
+    public int history;
+
+    AccountRepository repo;
+    String id;
+    LocalDateTime first, last, dayFrom, dayTo;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        repo = new AccountRepository();
+        BankAccount acc = repo.add(DataGenerator.history(history));
+        id = acc.id();
+        TransactionLog log = acc.log();
+        first = TransactionLog.fromMicros(log.micros(0));
+        last = TransactionLog.fromMicros(log.micros(log.size() - 1));
+        dayFrom = TransactionLog.fromMicros(log.micros(log.size() / 2));
+        dayTo = dayFrom.plusDays(1);
+    }
+
+    @Benchmark
+    public int oneDay() {
+        return repo.searchTransactions(id, null, dayFrom, dayTo, null, null, null).size();
+    }
+
+    @Benchmark
+    public int withdrawalsOver45k() {
+        return repo.searchTransactions(id, TransactionType.WITHDRAWAL, first, last, Money.ofMinor(4_500_000), null, null).size();
+    }
+
+    @Benchmark
+    public int description() {
+        return repo.searchTransactions(id, null, null, null, null, null, "аренд").size();
+    }
+
+    @Benchmark
+    public int descriptionMiss() {
+        return repo.searchTransactions(id, null, null, null, null, null, "нет такого").size();
+    }
+
+    @Benchmark
+    public int everything() {
+        return repo.searchTransactions(id, null, null, null, null, null, null).size();
+    }
+}
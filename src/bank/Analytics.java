@@ -0,0 +1,193 @@
+package bank;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.temporal.TemporalAdjusters;
+import java.util.*;
+import java.util.function.Function;
+import java.util.stream.Collector;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
+
+/**
+ * Отчёты по всей книге сразу, параллельно на всех ядрах (parallel streams поверх общего ForkJoinPool).
+ * При создании у каждого счёта под его замком берутся баланс и число строк истории — это снимок:
+ * дальше запросы читают только строки до этой границы, а они уже не меняются, так что писатели
+ * не ждут отчёт. Снимок согласован по каждому счёту; перевод, прошедший во время снятия снимка,
+ * может попасть в него одной ногой.
+ * История разбивается на куски по {@link TransactionLog#CHUNK} строк, и параллелятся именно куски,
+ * поэтому один счёт с миллионами операций не держит весь отчёт на одном ядре.
+ */
+final class Analytics {
+    /** По какому полю группировать счета. */
+    enum GroupBy {
+        BANK(BankAccount::bankName), BIC(BankAccount::bic), OWNER(BankAccount::ownerName);
+
+        final Function<BankAccount, String> key;
+
+        GroupBy(Function<BankAccount, String> key) { this.key = key; }
+    }
+
+    /** Шаг временной разбивки. */
+    enum Bucket { DAY, WEEK, MONTH, YEAR }
+
+    /** Число, сумма, минимум и максимум в копейках; изменяемый, чтобы собирать без аллокаций на строку. */
+    static final class Stats {
+        long count;
+        long sum;
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+
+        void add(long v) {
+            count++;
+            sum += v;
+            if (v < min) min = v;
+            if (v > max) max = v;
+        }
+
+        Stats merge(Stats o) {
+            count += o.count;
+            sum += o.sum;
+            min = Math.min(min, o.min);
+            max = Math.max(max, o.max);
+            return this;
+        }
+
+        @Override public String toString() {
+            return count == 0 ? "0 шт" : count + " шт, сумма " + Money.format(sum)
+                    + ", мин " + Money.format(min) + ", макс " + Money.format(max);
+        }
+    }
+
+    private static final class Snap {
+        final BankAccount account;
+        final long balance;
+        final int rows;
+
+        Snap(BankAccount account, long balance, int rows) {
+            this.account = account;
+            this.balance = balance;
+            this.rows = rows;
+        }
+    }
+
+    // кусок истории одного счёта: единица параллельной работы для запросов по операциям
+    private static final class Slice {
+        final Snap snap;
+        final int from, to;
+
+        Slice(Snap snap, int from, int to) {
+            this.snap = snap;
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    private static final Collector<Long, Stats, Stats> STATS = Collector.of(Stats::new, Stats::add, Stats::merge);
+
+    private final List<Snap> snaps;
+
+    Analytics(AccountRepository repo) {
+        // spliterator ConcurrentHashMap делится без копирования; каждый счёт блокируется только на чтение двух полей
+        this.snaps = StreamSupport.stream(repo.all().spliterator(), true).map(acc -> {
+            acc.acquire();
+            try {
+                return new Snap(acc, acc.balance().minor(), acc.log().size());
+            } finally {
+                acc.release();
+            }
+        }).collect(Collectors.toList());
+    }
+
+    int accounts() { return snaps.size(); }
+
+    /** Балансы по группам: count — число счетов, sum — активы группы, min/max — крайние балансы. */
+    Map<String, Stats> balances(GroupBy by) {
+        return snaps.parallelStream().collect(Collectors.groupingBy(s -> by.key.apply(s.account),
+                Collectors.mapping(s -> s.balance, STATS)));
+    }
+
+    /** Суммы операций по группам за [from, to]; type null — оба типа; границы null — без ограничения. */
+    Map<String, Stats> amounts(GroupBy by, TransactionType type, LocalDateTime from, LocalDateTime to) {
+        long lo = from == null ? Long.MIN_VALUE : TransactionLog.toMicros(from);
+        long hi = to == null ? Long.MAX_VALUE : TransactionLog.toMicros(to);
+        // обычный groupingBy: у каждой ветки свои карты, слияние в конце; у concurrent-версии потоки
+        // стояли бы на мониторе группы, пока сканируется целый кусок
+        return slices(lo, hi).parallelStream().collect(Collectors.groupingBy(
+                s -> by.key.apply(s.snap.account),
+                Collector.of(Stats::new, (st, s) -> scan(s, type, (m, a) -> st.add(a)), Stats::merge)));
+    }
+
+    /** Объём операций по периодам: ключ — первый день дня/недели/месяца/года, по возрастанию. */
+    SortedMap<LocalDate, Stats> volume(Bucket bucket, TransactionType type, LocalDateTime from, LocalDateTime to) {
+        long lo = from == null ? Long.MIN_VALUE : TransactionLog.toMicros(from);
+        long hi = to == null ? Long.MAX_VALUE : TransactionLog.toMicros(to);
+        // внутри куска ключ периода пересчитывается, только когда строка выходит за текущий период
+        Map<LocalDate, Stats> m = slices(lo, hi).parallelStream().map(s -> {
+            Map<LocalDate, Stats> part = new HashMap<>();
+            long[] range = {Long.MAX_VALUE, Long.MIN_VALUE};
+            Stats[] current = {null};
+            scan(s, type, (micros, amount) -> {
+                if (micros < range[0] || micros >= range[1]) {
+                    LocalDate start = start(bucket, TransactionLog.fromMicros(micros).toLocalDate());
+                    range[0] = TransactionLog.toMicros(start.atStartOfDay());
+                    range[1] = TransactionLog.toMicros(next(bucket, start).atStartOfDay());
+                    current[0] = part.computeIfAbsent(start, d -> new Stats());
+                }
+                current[0].add(amount);
+            });
+            return part;
+        }).collect(HashMap::new, (a, part) -> part.forEach((k, v) -> a.merge(k, v, Stats::merge)),
+                (a, b) -> b.forEach((k, v) -> a.merge(k, v, Stats::merge)));
+        return new TreeMap<>(m);
+    }
+
+    private static LocalDate start(Bucket bucket, LocalDate d) {
+        return switch (bucket) {
+            case DAY -> d;
+            case WEEK -> d.with(TemporalAdjusters.previousOrSame(java.time.DayOfWeek.MONDAY));
+            case MONTH -> d.withDayOfMonth(1);
+            case YEAR -> d.withDayOfYear(1);
+        };
+    }
+
+    private static LocalDate next(Bucket bucket, LocalDate start) {
+        return switch (bucket) {
+            case DAY -> start.plusDays(1);
+            case WEEK -> start.plusWeeks(1);
+            case MONTH -> start.plusMonths(1);
+            case YEAR -> start.plusYears(1);
+        };
+    }
+
+    // границы по времени находятся бинарным поиском по истории, дальше она режется на куски
+    private List<Slice> slices(long lo, long hi) {
+        return snaps.parallelStream().flatMap(s -> {
+            TransactionLog log = s.account.log();
+            int from = lo == Long.MIN_VALUE ? 0 : log.lowerBound(lo, s.rows);
+            int to = hi == Long.MAX_VALUE ? s.rows : log.upperBound(hi, s.rows);
+            List<Slice> out = new ArrayList<>();
+            for (int i = from; i < to; ) {
+                int end = Math.min(to, ((i >>> TransactionLog.CHUNK_BITS) + 1) << TransactionLog.CHUNK_BITS);
+                out.add(new Slice(s, i, end));
+                i = end;
+            }
+            return out.stream();
+        }).collect(Collectors.toList());
+    }
+
+    private interface RowSink {
+        void accept(long micros, long amount);
+    }
+
+    // строки одного куска прямо из колонок, без объектов Transaction
+    private static void scan(Slice s, TransactionType type, RowSink sink) {
+        TransactionLog.Chunk c = s.snap.account.log().chunk(s.from >>> TransactionLog.CHUNK_BITS);
+        int base = s.from & ~TransactionLog.MASK;
+        for (int i = s.from; i < s.to; i++) {
+            int off = i - base;
+            if (type != null && c.types[off] != type.ordinal()) continue;
+            sink.accept(c.micros[off], c.amounts[off]);
+        }
+    }
+}
@@ -1,10 +1,14 @@
 package bank;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.math.BigDecimal;
-import java.math.RoundingMode;
 import java.time.LocalDateTime;
 import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
 
 class InsufficientFundsException extends RuntimeException {
     public InsufficientFundsException(String msg) { super(msg); }
@@ -12,46 +16,258 @@ class InsufficientFundsException extends RuntimeException {
 
 class BankAccount implements Serializable {
     private static final long serialVersionUID = 1L;
+    // сериализованная форма прежняя (transactions — список), чтобы старые bank.dat читались как раньше
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("id", String.class),
+            new ObjectStreamField("iban", String.class),
+            new ObjectStreamField("bic", String.class),
+            new ObjectStreamField("bankName", String.class),
+            new ObjectStreamField("ownerName", String.class),
+            new ObjectStreamField("balance", BigDecimal.class),
+            new ObjectStreamField("transactions", Object.class),
+    };
 
-    private final String id;
-    private final String iban;
-    private final String bic;
-    private final String bankName;
-    private final String ownerName;
-    private BigDecimal balance = BigDecimal.ZERO.setScale(2, RoundingMode.HALF_UP);
-    private final List<Transaction> transactions = new ArrayList<>();
+    private String id;
+    private String iban;
+    private String bic;
+    private String bankName;
+    private String ownerName;
+    private volatile long balance; // в копейках; меняется только под lock
+    private TransactionLog log = new TransactionLog(); // пишется только под lock
+    private transient ReentrantLock lock = new ReentrantLock(); // свой замок у каждого счёта, счета друг другу не мешают
+    private transient AccountRepository repository; // через него изменения уходят слушателям (журнал и т.п.)
+    private transient int handle; // номер в репозитории, выдаёт AccountRepository; наружу идёт только id
 
     public BankAccount(String iban, String bic, String bankName, String ownerName) {
-        this.id = UUID.randomUUID().toString();
+        this(UUID.randomUUID().toString(), iban, bic, bankName, ownerName);
+    }
+
+    // для восстановления из журнала: id должен остаться тем же
+    BankAccount(String id, String iban, String bic, String bankName, String ownerName) {
+        this.id = Objects.requireNonNull(id);
         this.iban = Objects.requireNonNull(iban);
         this.bic = Objects.requireNonNull(bic);
         this.bankName = Objects.requireNonNull(bankName);
         this.ownerName = Objects.requireNonNull(ownerName);
     }
 
+    // из постраничного снимка: баланс из заголовка, история остаётся на диске до первого обращения
+    BankAccount(String id, String iban, String bic, String bankName, String ownerName, long balance, TransactionLog log) {
+        this(id, iban, bic, bankName, ownerName);
+        this.balance = balance;
+        this.log = log;
+    }
+
     public String id() { return id; }
     public String iban() { return iban; }
     public String bic() { return bic; }
     public String bankName() { return bankName; }
     public String ownerName() { return ownerName; }
-    public BigDecimal balance() { return balance; }
-    public List<Transaction> transactions() { return Collections.unmodifiableList(transactions); }
+    public Money balance() { return Money.ofMinor(balance); }
+
+    // срез истории на текущий момент, без копирования и без замка
+    public List<Transaction> transactions() { return log.view(); }
+
+    TransactionLog log() { return log; }
+
+    // выписки: ответ из дневных итогов истории (DailyRollups), без перебора транзакций
+
+    /** Баланс по состоянию на момент t: все операции не позже t. */
+    public Money balanceAt(LocalDateTime t) {
+        lock.lock();
+        try {
+            return Money.ofMinor(log.rollups().through(log, TransactionLog.toMicros(t)).netMinor());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Пополнения и списания с from по to включительно; null — без границы. */
+    PeriodTotals totals(LocalDateTime from, LocalDateTime to) {
+        return totals(from == null ? Long.MIN_VALUE : TransactionLog.toMicros(from),
+                to == null ? Long.MAX_VALUE : TransactionLog.toMicros(to));
+    }
+
+    PeriodTotals totals(long fromMicros, long toMicros) {
+        lock.lock();
+        try {
+            DailyRollups r = log.rollups();
+            PeriodTotals upTo = r.through(log, toMicros);
+            return fromMicros == Long.MIN_VALUE ? upTo : upTo.minus(r.through(log, fromMicros - 1));
+        } finally {
+            lock.unlock();
+        }
+    }
 
-    public void deposit(BigDecimal amount, String description) {
+    public void deposit(Money amount, String description) {
         checkPositive(amount);
-        balance = balance.add(amount);
-        transactions.add(new Transaction(LocalDateTime.now(), amount, TransactionType.DEPOSIT, description));
+        long t0 = Metrics.DEPOSIT.start();
+        try {
+            acquire();
+            try {
+                credit(amount.minor(), TransactionLog.toMicros(LocalDateTime.now()), description);
+                firePosted();
+            } finally {
+                lock.unlock();
+            }
+            fireCommit();
+        } finally {
+            Metrics.DEPOSIT.stop(t0); // отказы тоже операции: без них счётчик врёт, когда сыплются ошибки
+        }
     }
 
-    public void withdraw(BigDecimal amount, String description) {
+    public void withdraw(Money amount, String description) {
         checkPositive(amount);
-        if (balance.compareTo(amount) < 0) throw new InsufficientFundsException("Недостаточно средств: " + balance);
-        balance = balance.subtract(amount);
-        transactions.add(new Transaction(LocalDateTime.now(), amount, TransactionType.WITHDRAWAL, description));
+        long t0 = Metrics.WITHDRAW.start();
+        try {
+            acquire();
+            try {
+                debit(amount.minor(), TransactionLog.toMicros(LocalDateTime.now()), description);
+                firePosted();
+            } finally {
+                lock.unlock();
+            }
+            fireCommit();
+        } finally {
+            Metrics.WITHDRAW.stop(t0);
+        }
+    }
+
+    // замок снаружи нужен переводам: они держат сразу два счёта.
+    // Свободный замок берётся одним tryLock; время меряется, только если пришлось ждать
+    void acquire() {
+        if (lock.tryLock()) return;
+        long t0 = System.nanoTime();
+        lock.lock();
+        Metrics.LOCK_WAIT.record(System.nanoTime() - t0);
+    }
+    void release() { lock.unlock(); }
+
+    // credit/debit вызываются только под замком счёта; возвращают номер операции
+    // суммы здесь уже в копейках — на этом пути ни BigDecimal, ни других аллокаций
+    int credit(long amount, long micros, String description) {
+        checkDescription(description);
+        balance = Math.addExact(balance, amount);
+        return log.append(micros, amount, TransactionType.DEPOSIT, descr(description));
+    }
+
+    // перевод спрашивает получателя до списания: иначе переполнение в credit оставило бы его наполовину проведённым
+    void checkCredit(long amount) {
+        Math.addExact(balance, amount);
+    }
+
+    int debit(long amount, long micros, String description) {
+        checkDescription(description);
+        // проверка и списание под одним замком, иначе два параллельных снятия уведут счёт в минус
+        if (balance < amount) throw new InsufficientFundsException("Недостаточно средств: " + Money.format(balance));
+        balance -= amount;
+        return log.append(micros, amount, TransactionType.WITHDRAWAL, descr(description));
+    }
+
+    private static String descr(String d) { return d == null ? "" : d; }
+
+    // журнал и снимок пишут описание через writeUTF, а тот не берёт больше 65535 байт;
+    // проверяю до изменения счёта, иначе операция прошла бы в памяти, но не записалась
+    static final int MAX_DESCRIPTION_BYTES = 65535;
+
+    static void checkDescription(String d) {
+        if (d == null || d.length() <= MAX_DESCRIPTION_BYTES / 3) return; // в худшем случае 3 байта на символ
+        long bytes = 0;
+        for (int i = 0; i < d.length(); i++) {
+            char c = d.charAt(i);
+            bytes += c >= 1 && c <= 0x7F ? 1 : c <= 0x7FF ? 2 : 3;
+        }
+        if (bytes > MAX_DESCRIPTION_BYTES)
+            throw new IllegalArgumentException("Слишком длинное описание: " + bytes + " байт, можно " + MAX_DESCRIPTION_BYTES);
+    }
+
+    void attach(AccountRepository repo) { this.repository = repo; }
+
+    int handle() { return handle; }
+    void handle(int h) { this.handle = h; }
+
+    // в журнал запись уходит под замком, чтобы порядок операций счёта в нём совпадал с настоящим
+    private void firePosted() {
+        if (repository != null) repository.firePosted(this, log.size() - 1);
+    }
+
+    // а ждать fsync лучше уже без замка
+    private void fireCommit() {
+        if (repository != null) repository.fireCommit();
+    }
+
+    // повтор операции из журнала; запись с уже применённым номером пропускаю, так replay идемпотентен
+    boolean restore(int index, long micros, long amount, TransactionType type, String description) {
+        lock.lock();
+        try {
+            if (index < log.size()) return false; // повтор уже применённой записи
+            if (index > log.size()) {
+                throw new IllegalStateException("Пропуск в истории счёта " + iban + ": ожидалась запись " + log.size() + ", пришла " + index);
+            }
+            balance = type == TransactionType.DEPOSIT ? Math.addExact(balance, amount) : balance - amount;
+            log.append(micros, amount, type, description);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // массовая загрузка истории при импорте: один захват замка на всю историю счёта
+    void restoreAll(long[] micros, long[] amounts, byte[] types, String[] descr, int n) {
+        TransactionType[] all = TransactionType.values();
+        for (int i = 0; i < n; i++) checkDescription(descr[i]);
+        lock.lock();
+        try {
+            for (int i = 0; i < n; i++) {
+                TransactionType type = all[types[i]];
+                balance = type == TransactionType.DEPOSIT ? Math.addExact(balance, amounts[i]) : balance - amounts[i];
+                log.append(micros[i], amounts[i], type, descr[i]);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        lock.lock(); // снимок счёта должен быть согласован: баланс и список транзакций из одного момента
+        try {
+            ObjectOutputStream.PutField f = out.putFields();
+            f.put("id", id);
+            f.put("iban", iban);
+            f.put("bic", bic);
+            f.put("bankName", bankName);
+            f.put("ownerName", ownerName);
+            f.put("balance", Money.ofMinor(balance).toBigDecimal());
+            f.put("transactions", log);
+            out.writeFields();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField f = in.readFields();
+        id = (String) f.get("id", null);
+        iban = (String) f.get("iban", null);
+        bic = (String) f.get("bic", null);
+        bankName = (String) f.get("bankName", null);
+        ownerName = (String) f.get("ownerName", null);
+        balance = Money.of((BigDecimal) f.get("balance", null)).minor();
+        Object tx = f.get("transactions", null);
+        if (tx instanceof TransactionLog l) {
+            log = l;
+        } else { // старый формат: ArrayList<Transaction>
+            log = new TransactionLog();
+            for (Object o : (List<?>) tx) {
+                Transaction t = (Transaction) o;
+                log.append(t.micros(), t.amountMinor(), t.type(), t.description());
+            }
+        }
+        lock = new ReentrantLock();
     }
 
-    private static void checkPositive(BigDecimal amount) {
-        if (amount == null || amount.compareTo(BigDecimal.ZERO) <= 0)
+    static void checkPositive(Money amount) {
+        if (amount == null || !amount.isPositive())
             throw new IllegalArgumentException("Сумма должна быть положительной");
     }
 
@@ -63,6 +279,6 @@ class BankAccount implements Serializable {
     @Override public int hashCode() { return Objects.hash(iban); }
 
     @Override public String toString() {
-        return ownerName + " — " + bankName + " — " + iban + " [" + balance + "]";
+        return ownerName + " — " + bankName + " — " + iban + " [" + Money.format(balance) + "]";
     }
 }
@@ -0,0 +1,93 @@
+package bank;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Команды над счетами в строковом виде {@code КОМАНДА арг1;арг2;...} — общие для сервера ({@link BankServer})
+ * и пакетного режима ({@link CommandBatch}): PING, OPEN, DEPOSIT, WITHDRAW, TRANSFER, BALANCE.
+ * Ответ дописывается в sb без перевода строки; отказ в операции — исключение, в ERR его превращает {@link #error}.
+ */
+final class CommandExecutor {
+    private final AccountRepository repo;
+    private final LedgerPipeline pipeline; // null — операции применяются в потоке вызывающего
+
+    CommandExecutor(AccountRepository repo, LedgerPipeline pipeline) {
+        this.repo = repo;
+        this.pipeline = pipeline;
+    }
+
+    /** false — команда не из общего набора, её разбирает вызывающий. */
+    boolean execute(String cmd, String[] a, StringBuilder sb) {
+        switch (cmd) {
+            case "PING" -> sb.append("OK PONG");
+            case "OPEN" -> {
+                need(a, 4);
+                String iban = a[0].trim();
+                if (iban.isEmpty()) throw new IllegalArgumentException("Пустой IBAN");
+                BankAccount acc = repo.addIfAbsent(new BankAccount(iban, a[1].trim(), a[2].trim(), a[3].trim()));
+                if (acc == null) throw new IllegalArgumentException("Счёт с IBAN " + iban + " уже есть");
+                sb.append("OK ").append(acc.id());
+            }
+            case "DEPOSIT", "WITHDRAW" -> {
+                need(a, 2);
+                BankAccount acc = account(a[0]);
+                Money amount = Money.parse(a[1]);
+                String descr = a.length > 2 ? a[2] : "";
+                long balance;
+                if (pipeline != null) {
+                    balance = await(cmd.equals("DEPOSIT") ? pipeline.deposit(acc, amount, descr) : pipeline.withdraw(acc, amount, descr));
+                } else {
+                    if (cmd.equals("DEPOSIT")) acc.deposit(amount, descr); else acc.withdraw(amount, descr);
+                    balance = acc.balance().minor();
+                }
+                sb.append("OK ");
+                Money.appendTo(sb, balance);
+            }
+            case "TRANSFER" -> {
+                need(a, 3);
+                String descr = a.length > 3 ? a[3] : "Перевод";
+                if (pipeline != null) await(pipeline.transfer(account(a[0]), account(a[1]), Money.parse(a[2]), descr));
+                else repo.transfer(a[0].trim(), a[1].trim(), Money.parse(a[2]), descr);
+                sb.append("OK");
+            }
+            case "BALANCE" -> {
+                need(a, 1);
+                sb.append("OK ");
+                Money.appendTo(sb, account(a[0]).balance().minor());
+            }
+            default -> {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static void error(StringBuilder sb, RuntimeException e) {
+        sb.setLength(0);
+        sb.append("ERR ").append(oneLine(e.getMessage()));
+    }
+
+    BankAccount account(String iban) {
+        String key = iban.trim();
+        return repo.getByIban(key).orElseThrow(() -> new IllegalArgumentException("Нет счёта с IBAN " + key));
+    }
+
+    // ошибки операции из бизнес-потока конвейера пробрасываются как есть — их ловит вызывающий
+    private static long await(CompletableFuture<Long> f) {
+        try {
+            return f.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException r) throw r;
+            throw e;
+        }
+    }
+
+    static void need(String[] a, int n) {
+        if (a.length < n) throw new IllegalArgumentException("Не хватает аргументов: нужно " + n);
+    }
+
+    static String oneLine(String s) {
+        return s == null ? "ошибка" : s.replace('\n', ' ');
+    }
+}
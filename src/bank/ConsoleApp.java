@@ -1,10 +1,15 @@
 package bank;
 
-import java.math.BigDecimal;
-import java.math.RoundingMode;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 class ConsoleApp {
     private final AccountRepository repo;
@@ -27,7 +32,11 @@ class ConsoleApp {
                 System.out.println("6) Искать счета по атрибутам");
                 System.out.println("7) Искать транзакции в счёте");
                 System.out.println("8) Экспорт транзакций в CSV");
-                System.out.println("9) Сохранить и выйти");
+                System.out.println("9) Перевод между счетами");
+                System.out.println("10) Выписка за период");
+                System.out.println("11) Счета с наибольшим оборотом");
+                System.out.println("12) Сводка по банкам, BIC или владельцам");
+                System.out.println("0) Сохранить и выйти");
                 System.out.print("Выбор: ");
 
                 String choice = sc.nextLine().trim();
@@ -40,27 +49,39 @@ class ConsoleApp {
                     case "6" -> searchAccounts(sc);
                     case "7" -> searchTransactions(sc);
                     case "8" -> exportCsv(sc);
-                    case "9" -> { store.save(repo); System.out.println("Сохранено. Пока!"); return; }
+                    case "9" -> transfer(sc);
+                    case "10" -> statement(sc);
+                    case "11" -> topTurnover(sc);
+                    case "12" -> summary(sc);
+                    case "0" -> { System.out.println("Сохраняю..."); store.saveAsync(repo).join(); System.out.println("Сохранено. Пока!"); return; }
                     default -> System.out.println("Неверный пункт.");
                 }
             }
         }
     }
 
+    /** Пакетный режим: команды из файла без меню, результаты — в отчёт, сохранение — один раз в конце. */
+    public void runBatch(Path commands, Path report) throws IOException {
+        int lanes = Runtime.getRuntime().availableProcessors();
+        CommandBatch.Result r = new CommandBatch(repo, store, lanes).run(commands, report);
+        System.out.printf("Команд: %d, ошибок: %d, за %.2f с — %.0f команд/с. Отчёт: %s%n",
+                r.commands, r.errors, r.nanos / 1e9, r.commands / (r.nanos / 1e9), report);
+    }
+
     private void openAccount(Scanner sc) {
         System.out.print("IBAN: "); String iban = sc.nextLine().trim();
         System.out.print("BIC: "); String bic = sc.nextLine().trim();
         System.out.print("Банк: "); String bank = sc.nextLine().trim();
         System.out.print("Владелец: "); String owner = sc.nextLine().trim();
-        BankAccount acc = new BankAccount(iban, bic, bank, owner);
-        repo.add(acc);
+        BankAccount acc = repo.addIfAbsent(new BankAccount(iban, bic, bank, owner));
+        if (acc == null) { System.out.println("Ошибка: счёт с IBAN " + iban + " уже есть"); return; }
         System.out.println("Создан счёт: " + acc);
     }
 
     private BankAccount pickAccount(Scanner sc) {
         System.out.print("Введите IBAN или часть имени владельца (пусто — показать все): ");
         String key = sc.nextLine().trim();
-        List<BankAccount> list = key.isBlank() ? new ArrayList<>(repo.all()) : repo.searchAccounts(key, null, key, key);
+        List<BankAccount> list = repo.searchAny(key);
         if (list.isEmpty()) { System.out.println("Не найдено."); return null; }
         for (int i = 0; i < list.size(); i++) System.out.printf("%d) %s%n", i + 1, list.get(i));
         System.out.print("Выберите #: ");
@@ -71,17 +92,17 @@ class ConsoleApp {
         } catch (NumberFormatException e) { return null; }
     }
 
-    private static BigDecimal readAmount(Scanner sc, String prompt) {
+    private static Money readAmount(Scanner sc, String prompt) {
         System.out.print(prompt);
-        String s = sc.nextLine().trim().replace(',', '.');
-        try { return new BigDecimal(s).setScale(2, RoundingMode.HALF_UP); }
+        String s = sc.nextLine().trim();
+        try { return Money.parse(s); }
         catch (NumberFormatException ex) { throw new IllegalArgumentException("Сумма должна быть числом"); }
     }
 
     private void deposit(Scanner sc) {
         BankAccount acc = pickAccount(sc); if (acc == null) return;
         try {
-            BigDecimal a = readAmount(sc, "Сумма: ");
+            Money a = readAmount(sc, "Сумма: ");
             System.out.print("Описание: "); String d = sc.nextLine();
             acc.deposit(a, d);
             System.out.println("Готово. Баланс: " + acc.balance());
@@ -91,13 +112,26 @@ class ConsoleApp {
     private void withdraw(Scanner sc) {
         BankAccount acc = pickAccount(sc); if (acc == null) return;
         try {
-            BigDecimal a = readAmount(sc, "Сумма: ");
+            Money a = readAmount(sc, "Сумма: ");
             System.out.print("Описание: "); String d = sc.nextLine();
             acc.withdraw(a, d);
             System.out.println("Готово. Баланс: " + acc.balance());
         } catch (Exception e) { System.out.println("Ошибка: " + e.getMessage()); }
     }
 
+    private void transfer(Scanner sc) {
+        System.out.println("Счёт списания:");
+        BankAccount from = pickAccount(sc); if (from == null) return;
+        System.out.println("Счёт зачисления:");
+        BankAccount to = pickAccount(sc); if (to == null) return;
+        try {
+            Money a = readAmount(sc, "Сумма: ");
+            System.out.print("Описание: "); String d = sc.nextLine();
+            repo.transfer(from.iban(), to.iban(), a, d);
+            System.out.println("Готово. Баланс: " + from.balance() + " -> " + to.balance());
+        } catch (Exception e) { System.out.println("Ошибка: " + e.getMessage()); }
+    }
+
     private void showBalance(Scanner sc) {
         BankAccount acc = pickAccount(sc); if (acc == null) return;
         System.out.println("Баланс: " + acc.balance());
@@ -129,14 +163,88 @@ class ConsoleApp {
         System.out.print("Макс сумма (пусто): "); String smax = sc.nextLine().trim();
         System.out.print("Подстрока в описании (пусто): "); String ds = sc.nextLine().trim();
 
-        BigDecimal min = smin.isBlank() ? null : new BigDecimal(smin.replace(',', '.'));
-        BigDecimal max = smax.isBlank() ? null : new BigDecimal(smax.replace(',', '.'));
+        Money min = smin.isBlank() ? null : Money.parse(smin);
+        Money max = smax.isBlank() ? null : Money.parse(smax);
 
         List<Transaction> res = repo.searchTransactions(acc.id(), tt, null, null, min, max, ds);
         if (res.isEmpty()) System.out.println("Нет результатов.");
         else for (Transaction t : res) System.out.printf("%s | %s | %s | %s%n", t.timestamp(), t.type(), t.amount(), t.description());
     }
 
+    private void statement(Scanner sc) {
+        BankAccount acc = pickAccount(sc); if (acc == null) return;
+        try {
+            LocalDate from = readDate(sc, "С (гггг-мм-дд, пусто — начало года): ", LocalDate.now().withDayOfYear(1));
+            LocalDate to = readDate(sc, "По (гггг-мм-дд, пусто — сегодня): ", LocalDate.now());
+            Statement st = new Statement(acc, from, to);
+            System.out.printf("Выписка %s за %s — %s%n", acc.iban(), from, to);
+            System.out.println("Входящий остаток: " + Money.ofMinor(st.openingMinor));
+            System.out.printf("%-8s | %16s | %5s | %16s | %5s | %16s%n", "Месяц", "Пополнения", "шт", "Списания", "шт", "Остаток");
+            for (Statement.Line l : st.months) {
+                System.out.printf("%-8s | %16s | %5d | %16s | %5d | %16s%n", l.month,
+                        Money.ofMinor(l.totals.depositMinor), l.totals.deposits,
+                        Money.ofMinor(l.totals.withdrawMinor), l.totals.withdrawals, Money.ofMinor(l.closingMinor));
+            }
+            System.out.println("Исходящий остаток: " + Money.ofMinor(st.closingMinor()));
+        } catch (Exception e) { System.out.println("Ошибка: " + e.getMessage()); }
+    }
+
+    private void topTurnover(Scanner sc) {
+        try {
+            LocalDate from = readDate(sc, "С (гггг-мм-дд, пусто — начало месяца): ", LocalDate.now().withDayOfMonth(1));
+            LocalDate to = readDate(sc, "По (гггг-мм-дд, пусто — сегодня): ", LocalDate.now());
+            System.out.print("Сколько счетов показать (пусто — 10): ");
+            String sn = sc.nextLine().trim();
+            int n = sn.isEmpty() ? 10 : Integer.parseInt(sn);
+            var top = repo.topByTurnover(from.atStartOfDay(), Statement.endOfDay(to), n);
+            if (top.isEmpty()) { System.out.println("За период операций нет."); return; }
+            int i = 1;
+            for (var e : top) System.out.printf("%d) %s — оборот %s%n", i++, e.getKey(), e.getValue());
+        } catch (Exception e) { System.out.println("Ошибка: " + e.getMessage()); }
+    }
+
+    private void summary(Scanner sc) {
+        System.out.print("Группировать по: 1) банку 2) BIC 3) владельцу: ");
+        Analytics.GroupBy by = switch (sc.nextLine().trim()) {
+            case "2" -> Analytics.GroupBy.BIC;
+            case "3" -> Analytics.GroupBy.OWNER;
+            default -> Analytics.GroupBy.BANK;
+        };
+        try {
+            LocalDate from = readDate(sc, "Операции с (гггг-мм-дд, пусто — начало года): ", LocalDate.now().withDayOfYear(1));
+            LocalDate to = readDate(sc, "По (гггг-мм-дд, пусто — сегодня): ", LocalDate.now());
+            long start = System.nanoTime();
+            Analytics a = repo.analytics();
+            Map<String, Analytics.Stats> balances = a.balances(by);
+            Map<String, Analytics.Stats> deposits = a.amounts(by, TransactionType.DEPOSIT, from.atStartOfDay(), Statement.endOfDay(to));
+            Map<String, Analytics.Stats> withdrawals = a.amounts(by, TransactionType.WITHDRAWAL, from.atStartOfDay(), Statement.endOfDay(to));
+            SortedMap<LocalDate, Analytics.Stats> months = a.volume(Analytics.Bucket.MONTH, null, from.atStartOfDay(), Statement.endOfDay(to));
+            // группы по убыванию активов, первые 50
+            List<String> groups = new ArrayList<>(balances.keySet());
+            groups.sort(Comparator.comparingLong((String g) -> balances.get(g).sum).reversed());
+            System.out.printf("%-30s | %7s | %18s | %18s | %18s%n", "Группа", "Счетов", "Активы", "Пополнения", "Списания");
+            for (String g : groups.subList(0, Math.min(50, groups.size()))) {
+                Analytics.Stats b = balances.get(g);
+                Analytics.Stats d = deposits.getOrDefault(g, new Analytics.Stats());
+                Analytics.Stats w = withdrawals.getOrDefault(g, new Analytics.Stats());
+                System.out.printf("%-30s | %7d | %18s | %18s | %18s%n", g, b.count,
+                        Money.format(b.sum), Money.format(d.sum), Money.format(w.sum));
+            }
+            if (groups.size() > 50) System.out.println("... и ещё групп: " + (groups.size() - 50));
+            System.out.println("Оборот по месяцам:");
+            months.forEach((m, s) -> System.out.printf("%s | %s%n", m.toString().substring(0, 7), s));
+            System.out.printf("Счетов: %d, посчитано за %d мс%n", a.accounts(), (System.nanoTime() - start) / 1_000_000);
+        } catch (Exception e) { System.out.println("Ошибка: " + e.getMessage()); }
+    }
+
+    private static LocalDate readDate(Scanner sc, String prompt, LocalDate def) {
+        System.out.print(prompt);
+        String s = sc.nextLine().trim();
+        if (s.isEmpty()) return def;
+        try { return LocalDate.parse(s); }
+        catch (DateTimeParseException e) { throw new IllegalArgumentException("Дата должна быть в виде гггг-мм-дд"); }
+    }
+
     private void exportCsv(Scanner sc) {
         BankAccount acc = pickAccount(sc); if (acc == null) return;
         System.out.print("Путь к CSV (например, transactions.csv): ");
@@ -149,3 +257,190 @@ class ConsoleApp {
 
     private static String emptyToNull(String s) { return (s == null || s.isBlank()) ? null : s; }
 }
+
+/**
+ * Пакетный режим консоли: файл команд в формате протокола сервера ({@code OPEN iban;bic;банк;владелец},
+ * {@code DEPOSIT iban;сумма[;описание]}, {@code WITHDRAW ...}, {@code TRANSFER откуда;куда;сумма[;описание]},
+ * {@code BALANCE iban}), по команде на строку, '#' — комментарий. Счёт берётся прямо по IBAN, без выбора из списка.
+ * В отчёт на каждую команду пишется строка {@code номер строки;OK ...} или {@code номер строки;ERR сообщение}.
+ * <p>
+ * Команды раскладываются по дорожкам по хешу IBAN, у каждой дорожки свой поток: команды одного счёта идут
+ * строго в порядке файла, разные счета — параллельно. Перевод между счетами разных дорожек выполняет та
+ * из них, что дошла до него второй, первая ждёт — так что итог тот же, что при выполнении файла по порядку.
+ * Журнал на время пакета отключается, книга сохраняется одним снимком в конце: если пакет оборвался,
+ * в хранилище от него не попадает ничего, и файл можно прогнать заново.
+ */
+final class CommandBatch {
+    private static final int BLOCK = 1 << 16; // команд за один проход дорожек
+
+    static final class Result {
+        long commands;
+        long errors;
+        long nanos;
+    }
+
+    private static final class Command {
+        final long line;
+        final String cmd;
+        final String[] args;
+        final int lane;
+        final int other; // вторая дорожка перевода, -1 — команда одной дорожки
+        final AtomicInteger arrived;
+        final CountDownLatch done;
+        String reply;
+
+        Command(long line, String cmd, String[] args, int lane, int other) {
+            this.line = line;
+            this.cmd = cmd;
+            this.args = args;
+            this.lane = lane;
+            this.other = other;
+            this.arrived = other < 0 ? null : new AtomicInteger();
+            this.done = other < 0 ? null : new CountDownLatch(1);
+        }
+    }
+
+    private final AccountRepository repo;
+    private final DataStore store;
+    private final CommandExecutor commands;
+    private final int lanes;
+
+    CommandBatch(AccountRepository repo, DataStore store, int lanes) {
+        this.repo = repo;
+        this.store = store;
+        this.commands = new CommandExecutor(repo, null);
+        this.lanes = Math.max(1, lanes);
+    }
+
+    Result run(Path commands, Path report) throws IOException {
+        long t0 = System.nanoTime();
+        Result res = new Result();
+        // журнал — подписчик репозитория; без него операции не пишутся по одной, их сохранит снимок в конце
+        RepositoryListener journal = store instanceof RepositoryListener l ? l : null;
+        if (journal != null) repo.removeListener(journal);
+        AtomicInteger n = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(lanes, r -> {
+            Thread t = new Thread(r, "bank-batch-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(Files.newInputStream(commands), StandardCharsets.UTF_8), 1 << 16);
+             Writer out = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(report), StandardCharsets.UTF_8), 1 << 16)) {
+            List<Command> block = new ArrayList<>(BLOCK);
+            long lineNo = 0;
+            String line;
+            while ((line = in.readLine()) != null) {
+                lineNo++;
+                String s = line.strip();
+                if (s.isEmpty() || s.startsWith("#")) continue;
+                block.add(parse(lineNo, s));
+                if (block.size() == BLOCK) {
+                    execute(block, pool, out, res);
+                    block.clear();
+                }
+            }
+            execute(block, pool, out, res);
+        } finally {
+            pool.shutdown();
+            if (journal != null) repo.addListener(journal);
+        }
+        store.save(repo);
+        res.nanos = System.nanoTime() - t0;
+        return res;
+    }
+
+    private Command parse(long line, String s) {
+        int sp = s.indexOf(' ');
+        String cmd = (sp < 0 ? s : s.substring(0, sp)).toUpperCase(Locale.ROOT);
+        String[] args = sp < 0 ? new String[0] : s.substring(sp + 1).split(";", -1);
+        int lane = args.length > 0 ? lane(args[0]) : 0, other = -1;
+        if (cmd.equals("TRANSFER") && args.length > 1 && lane(args[1]) != lane) other = lane(args[1]);
+        return new Command(line, cmd, args, lane, other);
+    }
+
+    private int lane(String iban) { return Math.floorMod(iban.trim().hashCode(), lanes); }
+
+    private void execute(List<Command> block, ExecutorService pool, Writer out, Result res) throws IOException {
+        if (block.isEmpty()) return;
+        List<List<Command>> perLane = new ArrayList<>(lanes);
+        for (int i = 0; i < lanes; i++) perLane.add(new ArrayList<>());
+        for (Command c : block) {
+            perLane.get(c.lane).add(c);
+            if (c.other >= 0) perLane.get(c.other).add(c);
+        }
+        List<Future<?>> running = new ArrayList<>(lanes);
+        for (List<Command> lane : perLane) {
+            if (!lane.isEmpty()) running.add(pool.submit(() -> runLane(lane)));
+        }
+        for (Future<?> f : running) {
+            try {
+                f.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Пакет прерван", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException r) throw r;
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+        StringBuilder sb = new StringBuilder(64);
+        for (Command c : block) {
+            if (c.reply.startsWith("ERR")) res.errors++;
+            sb.setLength(0);
+            out.write(sb.append(c.line).append(';').append(c.reply).append('\n').toString());
+        }
+        res.commands += block.size();
+    }
+
+    private void runLane(List<Command> lane) {
+        int i = 0;
+        try {
+            for (; i < lane.size(); i++) run(lane.get(i));
+        } catch (Throwable t) {
+            // дорожка упала мимо apply (Error и т.п.): её переводы с другими дорожками отпускаю с ошибкой,
+            // иначе напарник ждал бы на done вечно, а вместе с ним и весь пакет
+            for (int j = i; j < lane.size(); j++) {
+                Command c = lane.get(j);
+                if (c.done == null) continue;
+                if (c.reply == null) c.reply = "ERR " + CommandExecutor.oneLine(t.toString());
+                c.done.countDown();
+            }
+            throw t;
+        }
+    }
+
+    // перевод между дорожками: первая дошедшая ждёт, вторая выполняет
+    private void run(Command c) {
+        if (c.done == null) {
+            c.reply = apply(c);
+        } else if (c.arrived.getAndIncrement() == 0) {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    c.done.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+        } else {
+            try {
+                c.reply = apply(c);
+            } finally {
+                c.done.countDown();
+            }
+        }
+    }
+
+    // любая ошибка команды — её ERR в отчёте; исключение из дорожки оставило бы напарника по переводу ждать вечно
+    private String apply(Command c) {
+        StringBuilder sb = new StringBuilder(32);
+        try {
+            if (!commands.execute(c.cmd, c.args, sb)) throw new IllegalArgumentException("Неизвестная команда: " + c.cmd);
+        } catch (RuntimeException e) {
+            CommandExecutor.error(sb, e);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,318 @@
+package bank;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Экспорт транзакций в CSV без printf и DateTimeFormatter: строки кодируются сразу в байты
+ * в direct-буферы и пишутся через FileChannel. История режется на сегменты по {@link #SEGMENT_ROWS}
+ * строк, сегменты кодируются параллельно, а пишутся строго по порядку. С gzip каждый сегмент
+ * сжимается отдельным gzip-членом (как pigz) — склейка членов остаётся корректным .gz.
+ */
+final class CsvExporter {
+    static final String HEADER = "timestamp;type;amount;description;iban;owner;bank";
+    private static final int SEGMENT_ROWS = 1 << 16;
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final byte[] NL = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+    private static final byte[][] TYPE_NAMES = new byte[TransactionType.values().length][];
+    static {
+        for (TransactionType t : TransactionType.values()) TYPE_NAMES[t.ordinal()] = t.name().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private final int threads;
+    private final boolean gzip;
+    private final LongConsumer progress;
+    private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+
+    CsvExporter() { this(1, false, null); }
+
+    /** progress получает общее число уже записанных строк; может быть null. */
+    CsvExporter(int threads, boolean gzip, LongConsumer progress) {
+        this.threads = Math.max(1, threads);
+        this.gzip = gzip;
+        this.progress = progress;
+    }
+
+    /** Все счета в один файл, в порядке списка. Возвращает число строк. */
+    long export(List<BankAccount> accounts, Path file) {
+        try (FileChannel ch = open(file)) {
+            return export(accounts, ch);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Ошибка экспорта: " + file, e);
+        }
+    }
+
+    /** То же, но в любой канал (например, в сокет сервера); канал не закрывается. */
+    long export(List<BankAccount> accounts, WritableByteChannel ch) throws IOException {
+        List<Segment> segments = new ArrayList<>();
+        for (BankAccount acc : accounts) {
+            int n = acc.log().size(); // фиксирую срез на старте: экспорт не гонится за новыми операциями
+            for (int from = 0; from < n; from += SEGMENT_ROWS) segments.add(new Segment(acc, from, Math.min(n, from + SEGMENT_ROWS)));
+        }
+        if (threads == 1) return writeOrdered(segments, ch, null, progress);
+        ExecutorService pool = Executors.newFixedThreadPool(threads, daemon("csv-export"));
+        try {
+            return writeOrdered(segments, ch, pool, progress);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /** Каждый счёт в свой файл dir/IBAN.csv(.gz); файлы пишутся параллельно. */
+    long exportEach(List<BankAccount> accounts, Path dir) {
+        ExecutorService pool = Executors.newFixedThreadPool(threads, daemon("csv-export"));
+        try {
+            Files.createDirectories(dir);
+            AtomicLong done = new AtomicLong();
+            List<Future<Long>> files = new ArrayList<>();
+            for (BankAccount acc : accounts) {
+                Path file = dir.resolve(acc.iban() + (gzip ? ".csv.gz" : ".csv"));
+                files.add(pool.submit(() -> {
+                    int n = acc.log().size();
+                    List<Segment> segs = new ArrayList<>();
+                    for (int from = 0; from < n; from += SEGMENT_ROWS) segs.add(new Segment(acc, from, Math.min(n, from + SEGMENT_ROWS)));
+                    try (FileChannel ch = open(file)) {
+                        return writeOrdered(segs, ch, null, progress, done);
+                    }
+                }));
+            }
+            long rows = 0;
+            for (Future<Long> f : files) rows += f.get();
+            return rows;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Ошибка экспорта: " + dir, e);
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Экспорт прерван", e);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static FileChannel open(Path file) throws IOException {
+        return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    private long writeOrdered(List<Segment> segments, WritableByteChannel ch, ExecutorService pool, LongConsumer progress) throws IOException {
+        return writeOrdered(segments, ch, pool, progress, new AtomicLong());
+    }
+
+    // заголовок + сегменты по порядку; в работе одновременно не больше 2*threads сегментов, чтобы память была ограничена
+    private long writeOrdered(List<Segment> segments, WritableByteChannel ch, ExecutorService pool,
+                              LongConsumer progress, AtomicLong done) throws IOException {
+        Encoded header = new Encoded();
+        ByteBuffer h = take();
+        h.put(HEADER.getBytes(StandardCharsets.US_ASCII)).put(NL);
+        header.buffers.add(h);
+        write(ch, gzip ? gzipMember(header) : header);
+
+        long rows = 0, total = 0;
+        Deque<Future<Encoded>> inFlight = new ArrayDeque<>();
+        int next = 0, window = pool == null ? 1 : threads * 2;
+        try {
+            while (next < segments.size() || !inFlight.isEmpty()) {
+                while (next < segments.size() && inFlight.size() < window) {
+                    Segment s = segments.get(next++);
+                    Callable<Encoded> task = () -> gzip ? gzipMember(encode(s)) : encode(s);
+                    inFlight.add(pool == null ? CompletableFuture.completedFuture(task.call()) : pool.submit(task));
+                }
+                Encoded out = inFlight.poll().get();
+                write(ch, out);
+                rows += out.rows;
+                total = done.addAndGet(out.rows);
+                if (progress != null) progress.accept(total);
+            }
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Экспорт прерван", e);
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) { // сюда попадает только checked-исключение из task.call()
+            throw new IllegalStateException(e);
+        }
+        return rows;
+    }
+
+    private void write(WritableByteChannel ch, Encoded out) throws IOException {
+        for (ByteBuffer b : out.buffers) {
+            b.flip();
+            while (b.hasRemaining()) ch.write(b);
+            give(b);
+        }
+    }
+
+    private ByteBuffer take() {
+        ByteBuffer b = buffers.poll();
+        return b != null ? b : ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+
+    private void give(ByteBuffer b) {
+        if (b.capacity() != BUFFER_SIZE) return; // нестандартные (под огромные описания) не храню
+        b.clear();
+        buffers.offer(b);
+    }
+
+    private static final class Segment {
+        final BankAccount acc;
+        final int from;
+        final int to;
+        Segment(BankAccount acc, int from, int to) { this.acc = acc; this.from = from; this.to = to; }
+    }
+
+    // список буферов сегмента вместе с числом строк — для прогресса
+    private static final class Encoded {
+        final List<ByteBuffer> buffers = new ArrayList<>();
+        long rows;
+    }
+
+    /** Кодирует строки сегмента; описания и хвост «;iban;owner;bank» переводятся в байты один раз на сегмент. */
+    private Encoded encode(Segment s) {
+        TransactionLog log = s.acc.log();
+        byte[] suffix = (';' + s.acc.iban() + ';' + s.acc.ownerName() + ';' + s.acc.bankName()).getBytes(StandardCharsets.UTF_8);
+        byte[][] descr = new byte[log.dictLength()][];
+        byte[] day = new byte[11];
+        long currentDay = Long.MIN_VALUE;
+        Encoded out = new Encoded();
+        ByteBuffer b = take();
+        out.buffers.add(b);
+        TransactionLog.Chunk c = null;
+        for (int i = s.from; i < s.to; i++) {
+            int off = i & TransactionLog.MASK;
+            if (c == null || off == 0) c = log.chunk(i >>> TransactionLog.CHUNK_BITS); // кусок на 4096 строк, а не обращение на поле
+            int d = c.descr[off];
+            byte[] db = descr[d];
+            if (db == null) db = descr[d] = log.dictEntry(d).replace(";", ",").getBytes(StandardCharsets.UTF_8);
+            int need = 19 + 1 + 10 + 1 + 21 + 1 + db.length + suffix.length + NL.length;
+            if (b.remaining() < need) {
+                b = need > BUFFER_SIZE ? ByteBuffer.allocateDirect(need) : take();
+                out.buffers.add(b);
+            }
+            long micros = c.micros[off];
+            long secs = Math.floorDiv(micros, 1_000_000L);
+            long epochDay = Math.floorDiv(secs, 86_400L);
+            if (epochDay != currentDay) { // история отсортирована по времени, так что дата меняется редко
+                currentDay = epochDay;
+                LocalDate date = LocalDate.ofEpochDay(epochDay);
+                putPadded(day, 0, date.getYear(), 4);
+                day[4] = '-';
+                putPadded(day, 5, date.getMonthValue(), 2);
+                day[7] = '-';
+                putPadded(day, 8, date.getDayOfMonth(), 2);
+                day[10] = ' ';
+            }
+            int sod = (int) Math.floorMod(secs, 86_400L);
+            b.put(day);
+            put2(b, sod / 3600);
+            b.put((byte) ':');
+            put2(b, sod / 60 % 60);
+            b.put((byte) ':');
+            put2(b, sod % 60);
+            b.put((byte) ';');
+            b.put(TYPE_NAMES[c.types[off]]);
+            b.put((byte) ';');
+            putAmount(b, c.amounts[off]);
+            b.put((byte) ';');
+            b.put(db);
+            b.put(suffix);
+            b.put(NL);
+        }
+        out.rows = s.to - s.from;
+        return out;
+    }
+
+    private static void putPadded(byte[] dst, int at, int v, int width) {
+        for (int i = at + width - 1; i >= at; i--) { dst[i] = (byte) ('0' + v % 10); v /= 10; }
+    }
+
+    private static void put2(ByteBuffer b, int v) {
+        b.put((byte) ('0' + v / 10)).put((byte) ('0' + v % 10));
+    }
+
+    // то же, что Money.format, но сразу в буфер
+    private static void putAmount(ByteBuffer b, long minor) {
+        if (minor < 0) b.put((byte) '-');
+        long abs = Math.abs(minor); // Long.MIN_VALUE на счёте не бывает: баланс проверяется addExact
+        long units = abs / 100;
+        int cents = (int) (abs % 100);
+        if (units == 0) {
+            b.put((byte) '0');
+        } else {
+            int start = b.position();
+            while (units > 0) { b.put((byte) ('0' + units % 10)); units /= 10; }
+            for (int i = start, j = b.position() - 1; i < j; i++, j--) {
+                byte t = b.get(i); b.put(i, b.get(j)); b.put(j, t);
+            }
+        }
+        b.put((byte) '.');
+        put2(b, cents);
+    }
+
+    /** Сжимает буферы сегмента в отдельный gzip-член; исходные буферы возвращаются в пул. */
+    private Encoded gzipMember(Encoded raw) {
+        Encoded out = new Encoded();
+        out.rows = raw.rows;
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        CRC32 crc = new CRC32();
+        long total = 0;
+        ByteBuffer b = take();
+        out.buffers.add(b);
+        b.put(new byte[]{0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff});
+        try {
+            for (ByteBuffer r : raw.buffers) {
+                r.flip();
+                total += r.remaining();
+                crc.update(r.duplicate());
+                deflater.setInput(r);
+                while (!deflater.needsInput()) b = deflateInto(deflater, b, out.buffers);
+            }
+            deflater.finish();
+            while (!deflater.finished()) b = deflateInto(deflater, b, out.buffers);
+        } finally {
+            deflater.end();
+            for (ByteBuffer r : raw.buffers) give(r); // только после end(): Deflater держит ссылку на последний входной буфер
+        }
+        if (b.remaining() < 8) { b = take(); out.buffers.add(b); }
+        b.order(ByteOrder.LITTLE_ENDIAN).putInt((int) crc.getValue()).putInt((int) total).order(ByteOrder.BIG_ENDIAN);
+        return out;
+    }
+
+    private ByteBuffer deflateInto(Deflater deflater, ByteBuffer b, List<ByteBuffer> out) {
+        if (!b.hasRemaining()) { b = take(); out.add(b); }
+        deflater.deflate(b);
+        return b;
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    private static RuntimeException unwrap(ExecutionException e) {
+        Throwable c = e.getCause();
+        if (c instanceof IOException io) return new UncheckedIOException(io);
+        if (c instanceof RuntimeException re) return re;
+        return new IllegalStateException(c);
+    }
+}
@@ -0,0 +1,394 @@
+package bank;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Массовый импорт в формате экспорта ({@code timestamp;type;amount;description;iban;owner;bank})
+ * плюс необязательный файл счетов ({@code iban;bic;bank;owner}). Файл проецируется в память кусками
+ * по границам строк, куски разбираются параллельно в fork-join пуле, затем строки собираются
+ * по счетам и загружаются в репозиторий одним пакетом — индексы строятся один раз в конце.
+ */
+final class CsvImporter {
+    private static final int CHUNK_BYTES = 16 << 20;
+
+    private final ForkJoinPool pool;
+
+    CsvImporter() { this(ForkJoinPool.commonPool()); }
+    CsvImporter(ForkJoinPool pool) { this.pool = pool; }
+
+    static final class Result {
+        int accountsCreated;
+        long rowsLoaded;
+        long rowsSkipped; // строки счетов, которые уже есть в репозитории: их историю импорт не трогает
+
+        @Override public String toString() {
+            return "счетов: " + accountsCreated + ", операций: " + rowsLoaded
+                    + (rowsSkipped > 0 ? ", пропущено (счёт уже существует): " + rowsSkipped : "");
+        }
+    }
+
+    Result importInto(AccountRepository repo, Path ledger, Path accountsFile) {
+        Map<String, String[]> accountInfo = accountsFile == null ? Map.of() : readAccounts(accountsFile);
+        List<ChunkParser> chunks = parseLedger(ledger);
+
+        // сборка по счетам: внутри куска строки одного счёта идут подряд, так что ищу счёт раз на серию
+        Map<String, Rows> byIban = new LinkedHashMap<>();
+        for (ChunkParser c : chunks) {
+            for (Run r : c.runs) {
+                Rows rows = byIban.get(r.iban);
+                if (rows == null) byIban.put(r.iban, rows = new Rows(r.owner, r.bank));
+                rows.addAll(c, r.from, r.to);
+            }
+        }
+        for (Map.Entry<String, String[]> e : accountInfo.entrySet()) {
+            String[] a = e.getValue();
+            byIban.computeIfAbsent(e.getKey(), k -> new Rows(a[2], a[1]));
+        }
+
+        Result res = new Result();
+        List<Map.Entry<String, Rows>> fresh = new ArrayList<>();
+        for (Map.Entry<String, Rows> e : byIban.entrySet()) {
+            if (repo.getByIban(e.getKey()).isPresent()) res.rowsSkipped += e.getValue().n;
+            else fresh.add(e);
+        }
+        BankAccount[] accounts = new BankAccount[fresh.size()];
+        try {
+            pool.submit(() -> Arrays.parallelSetAll(accounts, i -> {
+                Map.Entry<String, Rows> e = fresh.get(i);
+                String[] info = accountInfo.get(e.getKey());
+                Rows rows = e.getValue();
+                BankAccount acc = info == null
+                        ? new BankAccount(e.getKey(), "", rows.bank, rows.owner)
+                        : new BankAccount(e.getKey(), info[0], info[1], info[2]);
+                rows.sortByTime();
+                rows.checkBalance(e.getKey());
+                acc.restoreAll(rows.micros, rows.amounts, rows.types, rows.descr, rows.n);
+                return acc;
+            })).join();
+        } catch (IllegalArgumentException e) {
+            // fork-join пересоздаёт исключение из чужого потока и кладёт исходное в cause — сообщение нужно исходное
+            throw e.getCause() instanceof IllegalArgumentException c ? c : e;
+        }
+        repo.addAll(Arrays.asList(accounts));
+        res.accountsCreated = accounts.length;
+        for (Map.Entry<String, Rows> e : fresh) res.rowsLoaded += e.getValue().n;
+        return res;
+    }
+
+    // iban -> {bic, bank, owner}
+    private static Map<String, String[]> readAccounts(Path file) {
+        Map<String, String[]> out = new LinkedHashMap<>();
+        try (BufferedReader br = Files.newBufferedReader(file)) {
+            String line;
+            int no = 0;
+            while ((line = br.readLine()) != null) {
+                no++;
+                if (line.isBlank() || (no == 1 && line.startsWith("iban;"))) continue;
+                String[] p = line.split(";", -1);
+                if (p.length < 4) throw new IllegalArgumentException("Файл счетов, строка " + no + ": ожидается iban;bic;bank;owner");
+                out.put(p[0].trim(), new String[]{p[1].trim(), p[2].trim(), p[3].trim()});
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Не удалось прочитать " + file, e);
+        }
+        return out;
+    }
+
+    private List<ChunkParser> parseLedger(Path file) {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = ch.size();
+            List<ChunkParser> chunks = new ArrayList<>();
+            ByteBuffer probe = ByteBuffer.allocate(4096);
+            long start = 0;
+            while (start < size) {
+                long end = Math.min(size, start + CHUNK_BYTES);
+                // двигаю границу до конца строки, чтобы ни одна строка не резалась между кусками
+                while (end < size) {
+                    probe.clear();
+                    int n = ch.read(probe, end);
+                    int nl = -1;
+                    for (int i = 0; i < n; i++) if (probe.get(i) == '\n') { nl = i; break; }
+                    if (nl >= 0) { end += nl + 1; break; }
+                    end += n;
+                }
+                chunks.add(new ChunkParser(ch.map(FileChannel.MapMode.READ_ONLY, start, end - start), start));
+                start = end;
+            }
+            pool.invoke(new RecursiveAction() {
+                @Override protected void compute() { invokeAll(chunks); }
+            });
+            // номера строк известны только после разбора всех кусков: каждый считал свои с единицы
+            long firstLine = 0;
+            for (ChunkParser c : chunks) {
+                c.firstLine = firstLine;
+                if (c.error != null) throw new IllegalArgumentException("Ошибка импорта, строка " + (firstLine + c.errorLine) + ": " + c.error);
+                firstLine += c.lines;
+            }
+            return chunks;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Не удалось прочитать " + file, e);
+        }
+    }
+
+    private static final class Run {
+        final String iban, owner, bank;
+        final int from;
+        int to;
+        Run(String iban, String owner, String bank, int from) {
+            this.iban = iban; this.owner = owner; this.bank = bank; this.from = from; this.to = from;
+        }
+    }
+
+    /** Разбор одного куска: колонки строк + серии подряд идущих строк одного счёта. */
+    @SuppressWarnings("serial") // задача fork-join живёт один разбор, сериализовать её незачем
+    private static final class ChunkParser extends RecursiveAction {
+        private final MappedByteBuffer buf;
+        private final long base;
+        final List<Run> runs = new ArrayList<>();
+        long[] micros = new long[1024];
+        long[] amounts = new long[1024];
+        byte[] types = new byte[1024];
+        String[] descr = new String[1024];
+        int[] line = new int[1024]; // номер строки внутри куска — для сообщений об ошибках
+        int n;
+        int lines;      // строк в куске, включая пустые и заголовок
+        long firstLine; // строк во всех кусках до этого; проставляется после разбора
+        String error;   // первая ошибка разбора; исключение из задачи потеряло бы номер строки
+        int errorLine;
+        private final StringCache strings = new StringCache();
+
+        ChunkParser(MappedByteBuffer buf, long base) { this.buf = buf; this.base = base; }
+
+        @Override protected void compute() {
+            try {
+                parse();
+            } catch (IllegalArgumentException | ArithmeticException e) {
+                error = e instanceof ArithmeticException ? "слишком большая сумма" : e.getMessage();
+                errorLine = lines;
+            }
+        }
+
+        private void parse() {
+            int pos = 0, limit = buf.limit();
+            if (base == 0 && startsWith(0, "timestamp;")) {
+                pos = lineEnd(0) + 1;
+                lines++;
+            }
+            int[] f = new int[8];
+            Run run = null;
+            while (pos < limit) {
+                int end = lineEnd(pos);
+                lines++;
+                int lineLimit = end > pos && buf.get(end - 1) == '\r' ? end - 1 : end;
+                if (lineLimit > pos) {
+                    // границы 7 полей: f[k] — начало поля k, f[k+1]-1 — его конец
+                    int k = 0;
+                    f[k++] = pos;
+                    for (int i = pos; i < lineLimit && k < 7; i++) if (buf.get(i) == ';') f[k++] = i + 1;
+                    if (k < 7) throw bad(pos, "ожидается 7 полей");
+                    f[7] = lineLimit + 1;
+                    if (n == micros.length) grow();
+                    micros[n] = parseTimestamp(f[0], f[1] - 1);
+                    types[n] = parseType(f[1], f[2] - 1);
+                    amounts[n] = parseAmount(f[2], f[3] - 1);
+                    descr[n] = strings.get(buf, f[3], f[4] - 1);
+                    line[n] = lines;
+                    String iban = strings.get(buf, f[4], f[5] - 1);
+                    if (run == null || !run.iban.equals(iban)) {
+                        if (run != null) runs.add(run);
+                        run = new Run(iban, strings.get(buf, f[5], f[6] - 1), strings.get(buf, f[6], f[7] - 1), n);
+                    }
+                    run.to = ++n;
+                }
+                pos = end + 1;
+            }
+            if (run != null) runs.add(run);
+        }
+
+        private void grow() {
+            int cap = micros.length * 2;
+            micros = Arrays.copyOf(micros, cap);
+            amounts = Arrays.copyOf(amounts, cap);
+            types = Arrays.copyOf(types, cap);
+            descr = Arrays.copyOf(descr, cap);
+            line = Arrays.copyOf(line, cap);
+        }
+
+        private int lineEnd(int pos) {
+            int limit = buf.limit();
+            while (pos < limit && buf.get(pos) != '\n') pos++;
+            return pos;
+        }
+
+        private boolean startsWith(int pos, String s) {
+            if (buf.limit() - pos < s.length()) return false;
+            for (int i = 0; i < s.length(); i++) if (buf.get(pos + i) != s.charAt(i)) return false;
+            return true;
+        }
+
+        // yyyy-MM-dd HH:mm:ss, как пишет экспорт
+        private long parseTimestamp(int from, int to) {
+            if (to - from != 19) throw bad(from, "время должно быть в формате yyyy-MM-dd HH:mm:ss");
+            int y = digits(from, 4), m = digits(from + 5, 2), d = digits(from + 8, 2);
+            int hh = digits(from + 11, 2), mm = digits(from + 14, 2), ss = digits(from + 17, 2);
+            if (m < 1 || m > 12 || d < 1 || d > 28 && d > daysInMonth(y, m) || hh > 23 || mm > 59 || ss > 59)
+                throw bad(from, "некорректная дата");
+            return (epochDay(y, m, d) * 86_400L + hh * 3600L + mm * 60L + ss) * 1_000_000L;
+        }
+
+        private int digits(int at, int count) {
+            int v = 0;
+            for (int i = at; i < at + count; i++) {
+                int c = buf.get(i) - '0';
+                if (c < 0 || c > 9) throw bad(i, "ожидается цифра");
+                v = v * 10 + c;
+            }
+            return v;
+        }
+
+        private byte parseType(int from, int to) {
+            byte c = to > from ? buf.get(from) : 0;
+            if (c == 'D' && to - from == 7) return (byte) TransactionType.DEPOSIT.ordinal();
+            if (c == 'W' && to - from == 10) return (byte) TransactionType.WITHDRAWAL.ordinal();
+            throw bad(from, "тип должен быть DEPOSIT или WITHDRAWAL");
+        }
+
+        // сумма вида 123.45 / 123.4 / 123 — сразу в копейки
+        private long parseAmount(int from, int to) {
+            long units = 0;
+            int i = from, frac = -1;
+            if (i == to) throw bad(from, "пустая сумма");
+            for (; i < to; i++) {
+                byte c = buf.get(i);
+                if (c == '.' && frac < 0) { frac = 0; continue; }
+                if (c < '0' || c > '9') throw bad(i, "сумма должна быть числом");
+                if (frac >= 0 && ++frac > 2) throw bad(i, "больше двух знаков после точки");
+                units = Math.addExact(Math.multiplyExact(units, 10), c - '0');
+            }
+            for (int k = Math.max(frac, 0); k < 2; k++) units = Math.multiplyExact(units, 10);
+            if (units <= 0) throw bad(from, "сумма должна быть положительной");
+            return units;
+        }
+
+        private IllegalArgumentException bad(int pos, String what) {
+            return new IllegalArgumentException(what + " (байт " + (base + pos) + ")");
+        }
+    }
+
+    static int daysInMonth(int y, int m) {
+        if (m == 2) return y % 4 == 0 && (y % 100 != 0 || y % 400 == 0) ? 29 : 28;
+        return m == 4 || m == 6 || m == 9 || m == 11 ? 30 : 31;
+    }
+
+    // дни от 1970-01-01 по григорианскому календарю (алгоритм days_from_civil)
+    static long epochDay(int y, int m, int d) {
+        y -= m <= 2 ? 1 : 0;
+        long era = Math.floorDiv(y, 400);
+        long yoe = y - era * 400;
+        long doy = (153L * (m + (m > 2 ? -3 : 9)) + 2) / 5 + d - 1;
+        long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * 146_097 + doe - 719_468;
+    }
+
+    /**
+     * Маленький кэш строк по байтам: IBAN, владелец, банк и типовые описания повторяются из строки
+     * в строку, и без кэша каждая строка файла рождала бы четыре новых String.
+     */
+    private static final class StringCache {
+        private final String[] strings = new String[4096];
+        private final byte[][] bytes = new byte[4096][];
+
+        String get(ByteBuffer buf, int from, int to) {
+            int len = to - from, h = len;
+            for (int i = from; i < to; i++) h = 31 * h + buf.get(i);
+            int slot = (h ^ (h >>> 16)) & (strings.length - 1);
+            byte[] b = bytes[slot];
+            if (b != null && b.length == len) {
+                boolean same = true;
+                for (int i = 0; i < len && same; i++) same = b[i] == buf.get(from + i);
+                if (same) return strings[slot];
+            }
+            b = new byte[len];
+            buf.get(from, b);
+            String s = new String(b, StandardCharsets.UTF_8);
+            bytes[slot] = b;
+            strings[slot] = s;
+            return s;
+        }
+    }
+
+    /** Все строки одного счёта из всех кусков, в порядке файла. */
+    private static final class Rows {
+        final String owner, bank;
+        long[] micros = new long[0];
+        long[] amounts = new long[0];
+        byte[] types = new byte[0];
+        String[] descr = new String[0];
+        long[] lines = new long[0];
+        int n;
+
+        Rows(String owner, String bank) { this.owner = owner; this.bank = bank; }
+
+        void addAll(ChunkParser c, int from, int to) {
+            int add = to - from;
+            if (n + add > micros.length) {
+                int cap = Math.max(n + add, micros.length * 2);
+                micros = Arrays.copyOf(micros, cap);
+                amounts = Arrays.copyOf(amounts, cap);
+                types = Arrays.copyOf(types, cap);
+                descr = Arrays.copyOf(descr, cap);
+                lines = Arrays.copyOf(lines, cap);
+            }
+            for (int i = 0; i < add; i++) lines[n + i] = c.firstLine + c.line[from + i];
+            System.arraycopy(c.micros, from, micros, n, add);
+            System.arraycopy(c.amounts, from, amounts, n, add);
+            System.arraycopy(c.types, from, types, n, add);
+            System.arraycopy(c.descr, from, descr, n, add);
+            n += add;
+        }
+
+        // история счёта должна идти по времени; обычно файл уже отсортирован и сортировка не нужна
+        void sortByTime() {
+            boolean sorted = true;
+            for (int i = 1; i < n && sorted; i++) sorted = micros[i - 1] <= micros[i];
+            if (sorted) return;
+            Integer[] idx = new Integer[n];
+            for (int i = 0; i < n; i++) idx[i] = i;
+            Arrays.sort(idx, Comparator.comparingLong(i -> micros[i]));
+            long[] m = new long[n], a = new long[n];
+            byte[] t = new byte[n];
+            String[] d = new String[n];
+            long[] l = new long[n];
+            for (int i = 0; i < n; i++) {
+                m[i] = micros[idx[i]]; a[i] = amounts[idx[i]]; t[i] = types[idx[i]]; d[i] = descr[idx[i]]; l[i] = lines[idx[i]];
+            }
+            micros = m; amounts = a; types = t; descr = d; lines = l;
+        }
+
+        // счёт создаётся с нуля, и в минус его не пускает ни одна операция — значит, и история в файле не может
+        void checkBalance(String iban) {
+            byte deposit = (byte) TransactionType.DEPOSIT.ordinal();
+            long balance = 0;
+            for (int i = 0; i < n; i++) {
+                if (types[i] == deposit) {
+                    balance = Math.addExact(balance, amounts[i]);
+                } else if ((balance -= amounts[i]) < 0) {
+                    throw new IllegalArgumentException("Ошибка импорта, строка " + lines[i] + ": списание уводит счёт "
+                            + iban + " в минус (" + Money.format(balance) + ")");
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package bank;
+
+import java.util.Arrays;
+
+/**
+ * Дневные итоги истории одного счёта: на каждый день с операциями — номер первой строки дня и суммы/число
+ * пополнений и списаний нарастающим итогом по конец дня. История упорядочена по времени, так что новая
+ * операция либо добавляется к последнему дню, либо открывает новый — O(1).
+ * Запрос «всё до момента T» — бинарный поиск дня; если T попал внутрь дня, дочитываются строки только
+ * этого дня. Итоги за период и за месяц — разность двух таких запросов. Вызывать под замком счёта.
+ */
+final class DailyRollups {
+    private static final long MICROS_PER_DAY = 86_400_000_000L;
+
+    private int days;
+    private int rows;
+    private long[] day = new long[8];        // номер дня от эпохи, в той же зоне, что и время истории (UTC)
+    private int[] firstRow = new int[8];
+    private long[] cumIn = new long[8];      // пополнения нарастающим итогом по конец дня, копейки
+    private long[] cumOut = new long[8];     // списания
+    private int[] cumInCount = new int[8];
+    private int[] cumOutCount = new int[8];
+
+    // итоги ещё не считались (счёт из снимка или старого файла) — один проход по истории
+    static DailyRollups build(TransactionLog log) {
+        DailyRollups r = new DailyRollups();
+        for (int i = 0, n = log.size(); i < n; i++) r.add(log.micros(i), log.amountMinor(i), log.type(i));
+        return r;
+    }
+
+    void add(long micros, long amount, TransactionType type) {
+        long d = Math.floorDiv(micros, MICROS_PER_DAY);
+        if (days == 0 || day[days - 1] != d) {
+            if (days == day.length) grow();
+            day[days] = d;
+            firstRow[days] = rows;
+            if (days > 0) {
+                cumIn[days] = cumIn[days - 1];
+                cumOut[days] = cumOut[days - 1];
+                cumInCount[days] = cumInCount[days - 1];
+                cumOutCount[days] = cumOutCount[days - 1];
+            }
+            days++;
+        }
+        int k = days - 1;
+        if (type == TransactionType.DEPOSIT) {
+            cumIn[k] += amount;
+            cumInCount[k]++;
+        } else {
+            cumOut[k] += amount;
+            cumOutCount[k]++;
+        }
+        rows++;
+    }
+
+    private void grow() {
+        int cap = day.length * 2;
+        day = Arrays.copyOf(day, cap);
+        firstRow = Arrays.copyOf(firstRow, cap);
+        cumIn = Arrays.copyOf(cumIn, cap);
+        cumOut = Arrays.copyOf(cumOut, cap);
+        cumInCount = Arrays.copyOf(cumInCount, cap);
+        cumOutCount = Arrays.copyOf(cumOutCount, cap);
+    }
+
+    /** Итоги по всем строкам со временем не позже micros. */
+    PeriodTotals through(TransactionLog log, long micros) {
+        if (days == 0) return PeriodTotals.ZERO;
+        long d = Math.floorDiv(micros, MICROS_PER_DAY);
+        int lo = 0, hi = days; // первый день позже d
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (day[mid] <= d) lo = mid + 1; else hi = mid;
+        }
+        int k = lo - 1;
+        if (k < 0) return PeriodTotals.ZERO;
+        if (day[k] < d) return at(k);
+        // T внутри дня k: если после T в этом дне ничего нет — готовый итог, иначе дочитываю строки дня до T
+        int dayEnd = k + 1 < days ? firstRow[k + 1] : rows;
+        int end = log.upperBound(micros, rows);
+        if (end >= dayEnd) return at(k);
+        long in = k > 0 ? cumIn[k - 1] : 0, out = k > 0 ? cumOut[k - 1] : 0;
+        int inCount = k > 0 ? cumInCount[k - 1] : 0, outCount = k > 0 ? cumOutCount[k - 1] : 0;
+        for (int i = firstRow[k]; i < end; i++) {
+            if (log.type(i) == TransactionType.DEPOSIT) { in += log.amountMinor(i); inCount++; }
+            else { out += log.amountMinor(i); outCount++; }
+        }
+        return new PeriodTotals(in, inCount, out, outCount);
+    }
+
+    private PeriodTotals at(int k) {
+        return new PeriodTotals(cumIn[k], cumInCount[k], cumOut[k], cumOutCount[k]);
+    }
+}
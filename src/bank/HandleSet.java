@@ -0,0 +1,100 @@
+package bank;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Множество номеров счетов (см. {@link AccountRepository#account(int)}) для вторичных индексов: голый int[]
+ * вместо набора строк id — 4 байта на счёт против нескольких десятков у узла ConcurrentHashMap.
+ * Номера выдаются по возрастанию, так что обычно add — дописывание в конец; при параллельной загрузке
+ * они приходят вразнобой, тогда массив досортировывается при следующем чтении.
+ */
+final class HandleSet {
+    private int[] a = new int[2];
+    private int n;
+    private boolean sorted = true;
+
+    synchronized void add(int h) {
+        if (n > 0 && sorted) {
+            if (a[n - 1] == h) return;
+            if (a[n - 1] > h) sorted = false;
+        }
+        if (n == a.length) a = Arrays.copyOf(a, n + (n >> 1) + 1);
+        a[n++] = h;
+    }
+
+    // счёт уезжает на другой узел (см. ShardRouter) — редкая операция, сдвиг массива тут не страшен
+    synchronized void remove(int h) {
+        normalize();
+        int k = Arrays.binarySearch(a, 0, n, h);
+        if (k < 0) return;
+        System.arraycopy(a, k + 1, a, k, n - k - 1);
+        n--;
+    }
+
+    synchronized int size() {
+        normalize();
+        return n;
+    }
+
+    /** Отсортированная копия без повторов; её можно пересекать, пока в множество дописывают. */
+    synchronized int[] toArray() {
+        normalize();
+        return Arrays.copyOf(a, n);
+    }
+
+    private void normalize() {
+        if (sorted) return;
+        Arrays.sort(a, 0, n);
+        n = dedupe(a, n);
+        sorted = true;
+    }
+
+    private static int dedupe(int[] a, int n) {
+        int w = 0;
+        for (int i = 0; i < n; i++) if (w == 0 || a[w - 1] != a[i]) a[w++] = a[i];
+        return w;
+    }
+
+    /**
+     * Пересечение отсортированных массивов. Если один сильно короче, его элементы ищутся в длинном
+     * двоичным поиском от последней найденной позиции, иначе — обычное слияние.
+     */
+    static int[] intersect(int[] x, int[] y) {
+        if (x.length > y.length) { int[] t = x; x = y; y = t; }
+        int[] out = new int[x.length];
+        int w = 0;
+        if ((long) x.length * 32 < y.length) {
+            int from = 0;
+            for (int v : x) {
+                int k = Arrays.binarySearch(y, from, y.length, v);
+                if (k >= 0) { out[w++] = v; from = k + 1; } else from = -k - 1;
+                if (from == y.length) break;
+            }
+        } else {
+            for (int i = 0, j = 0; i < x.length && j < y.length; ) {
+                if (x[i] < y[j]) i++;
+                else if (x[i] > y[j]) j++;
+                else { out[w++] = x[i]; i++; j++; }
+            }
+        }
+        return w == out.length ? out : Arrays.copyOf(out, w);
+    }
+
+    /** Объединение нескольких множеств в один отсортированный массив без повторов. */
+    static int[] union(List<HandleSet> sets) {
+        if (sets.size() == 1) return sets.get(0).toArray();
+        int[][] parts = new int[sets.size()][];
+        int total = 0;
+        for (int i = 0; i < parts.length; i++) total += (parts[i] = sets.get(i).toArray()).length;
+        int[] all = new int[total];
+        int p = 0;
+        for (int[] part : parts) {
+            System.arraycopy(part, 0, all, p, part.length);
+            p += part.length;
+        }
+        Arrays.sort(all);
+        int n = dedupe(all, total);
+        return n == total ? all : Arrays.copyOf(all, n);
+    }
+}
@@ -0,0 +1,486 @@
+package bank;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Операция уже применена в памяти, но запись о ней в журнал не удалась: перезапуск она не переживёт.
+ * Следующие операции, скорее всего, упадут так же — журнал после сбоя записи больше ничего не принимает.
+ */
+class NotDurableException extends UncheckedIOException {
+    private static final long serialVersionUID = 1L;
+
+    NotDurableException(String msg, IOException cause) { super(msg, cause); }
+}
+
+/**
+ * Хранилище с журналом: снимок лежит в {@code filename} (постраничный формат {@link PagedDataStore}),
+ * а каждая операция после снимка дописывается короткой бинарной записью в {@code filename.log.N}.
+ * При загрузке читаю снимок и докатываю только хвост журнала.
+ * Снимки пишет отдельный фоновый поток ({@link #saveAsync}), изменения в это время продолжаются:
+ * каждый счёт попадает в снимок целиком на момент записи, а всё, что случилось после, есть в новом сегменте журнала.
+ */
+class JournalDataStore implements DataStore, RepositoryListener {
+    static final int DEFAULT_SNAPSHOT_EVERY = 100_000;
+
+    static final byte REC_ADD = 1;
+    static final byte REC_POST = 2;
+    static final byte REC_TRANSFER = 3;
+    static final byte REC_REMOVE = 4;
+
+    private final String filename;
+    private final PagedDataStore snapshots;
+    private final int snapshotEvery;
+    private final Duration autosave;
+    private final AtomicLong sinceSnapshot = new AtomicLong(); // изменения после начала последнего снимка
+    private final ThreadLocal<RecordBuffer> scratch = ThreadLocal.withInitial(RecordBuffer::new);
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "bank-snapshot");
+        t.setDaemon(true);
+        return t;
+    });
+    private final Object queueLock = new Object();
+    private CompletableFuture<Void> queued; // снимок в очереди, ещё не начатый: новые запросы присоединяются к нему
+    private volatile WriteAheadLog log;
+    private volatile AccountRepository attached;
+
+    public JournalDataStore(String filename) { this(filename, DEFAULT_SNAPSHOT_EVERY, Duration.ZERO); }
+
+    public JournalDataStore(String filename, int snapshotEvery) { this(filename, snapshotEvery, Duration.ZERO); }
+
+    /** autosave — как часто снимать снимок, если были изменения; ноль — только по порогу и по «Сохранить». */
+    public JournalDataStore(String filename, int snapshotEvery, Duration autosave) {
+        this.filename = filename;
+        this.snapshots = new PagedDataStore(filename);
+        this.snapshotEvery = snapshotEvery;
+        this.autosave = autosave;
+    }
+
+    @Override public synchronized AccountRepository loadOrCreateEmpty() {
+        AccountRepository repo = snapshots.loadOrCreateEmpty();
+        List<Integer> gens = WriteAheadLog.generations(filename);
+        long replayed = 0, tailLength = 0;
+        Set<String> orphans = new HashSet<>();
+        for (int gen : gens) {
+            WriteAheadLog.Replay r = WriteAheadLog.replay(filename, gen, repo, orphans);
+            replayed += r.records;
+            tailLength = r.validLength;
+        }
+        if (!orphans.isEmpty()) {
+            throw new UncheckedIOException(new IOException("Журнал ссылается на неизвестный счёт " + orphans.iterator().next()));
+        }
+        synchronized (queueLock) {
+            if (log == null) {
+                int last = gens.isEmpty() ? 1 : gens.get(gens.size() - 1);
+                log = new WriteAheadLog(filename, last, gens.isEmpty() ? 0 : tailLength);
+            }
+        }
+        boolean first = attached == null;
+        attached = repo;
+        repo.addListener(this);
+        if (replayed > 0 || gens.size() > 1) save(repo); // сразу сжимаю, чтобы следующий старт был быстрым
+        if (first && !autosave.isZero()) {
+            long ms = autosave.toMillis();
+            writer.scheduleWithFixedDelay(this::autosave, ms, ms, TimeUnit.MILLISECONDS);
+        }
+        return repo;
+    }
+
+    // ничего не менялось — снимок не нужен
+    private void autosave() {
+        AccountRepository repo = attached;
+        if (repo != null && sinceSnapshot.get() > 0) saveAsync(repo);
+    }
+
+    /** Синхронное сохранение: тот же фоновый снимок, но с ожиданием. */
+    @Override public void save(AccountRepository repo) {
+        try {
+            saveAsync(repo).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException r) throw r;
+            throw e;
+        }
+    }
+
+    /**
+     * Снимок в фоновом потоке. Пока снимок только в очереди, повторные вызовы получают тот же future;
+     * если снимок уже пишется, ставится следующий — в текущий могли не попасть свежие изменения.
+     */
+    @Override public CompletableFuture<Void> saveAsync(AccountRepository repo) {
+        synchronized (queueLock) {
+            if (queued != null) return queued;
+            if (log == null) log = new WriteAheadLog(filename, 1, 0);
+            CompletableFuture<Void> f = new CompletableFuture<>();
+            queued = f;
+            writer.execute(() -> {
+                synchronized (queueLock) { queued = null; }
+                try {
+                    snapshot(repo);
+                    f.complete(null);
+                } catch (RuntimeException | Error e) {
+                    f.completeExceptionally(e);
+                }
+            });
+            return f;
+        }
+    }
+
+    /** Снимок = компактное сохранение: начинаю новый сегмент журнала, пишу снимок, удаляю старые сегменты. */
+    private void snapshot(AccountRepository repo) {
+        sinceSnapshot.set(0); // до ротации: всё, что придёт дальше, снова делает хранилище «грязным»
+        // записи, попавшие в новый сегмент и уже вошедшие в снимок, при replay пропустятся по номеру операции
+        int current = log.rotate();
+        snapshots.save(repo);
+        for (int gen : WriteAheadLog.generations(filename)) {
+            if (gen >= current) continue;
+            try { Files.deleteIfExists(WriteAheadLog.segment(filename, gen)); }
+            catch (IOException e) { throw new UncheckedIOException("Не удалось удалить сегмент журнала", e); }
+        }
+    }
+
+    @Override public void accountAdded(BankAccount acc) {
+        RecordBuffer b = scratch.get().begin(REC_ADD);
+        try {
+            writeId(b.out, acc.id());
+            b.out.writeUTF(acc.iban());
+            b.out.writeUTF(acc.bic());
+            b.out.writeUTF(acc.bankName());
+            b.out.writeUTF(acc.ownerName());
+        } catch (IOException e) { throw notDurable(e); }
+        append(b);
+    }
+
+    @Override public void accountRemoved(BankAccount acc) {
+        RecordBuffer b = scratch.get().begin(REC_REMOVE);
+        try {
+            writeId(b.out, acc.id());
+        } catch (IOException e) { throw notDurable(e); }
+        append(b);
+    }
+
+    @Override public void posted(BankAccount acc, int index) {
+        TransactionLog t = acc.log();
+        RecordBuffer b = scratch.get().begin(REC_POST);
+        try {
+            writeId(b.out, acc.id());
+            b.out.writeInt(index);
+            b.out.writeByte(t.type(index).ordinal());
+            b.out.writeLong(t.micros(index));
+            b.out.writeLong(t.amountMinor(index));
+            b.out.writeUTF(t.description(index));
+        } catch (IOException e) { throw notDurable(e); }
+        append(b);
+    }
+
+    // обе ноги перевода в одной записи: CRC общий, так что при replay применятся обе или ни одной
+    @Override public void transferred(BankAccount from, int fromIndex, BankAccount to, int toIndex) {
+        TransactionLog t = from.log();
+        RecordBuffer b = scratch.get().begin(REC_TRANSFER);
+        try {
+            writeId(b.out, from.id());
+            b.out.writeInt(fromIndex);
+            writeId(b.out, to.id());
+            b.out.writeInt(toIndex);
+            b.out.writeLong(t.micros(fromIndex));
+            b.out.writeLong(t.amountMinor(fromIndex));
+            b.out.writeUTF(t.description(fromIndex));
+        } catch (IOException e) { throw notDurable(e); }
+        append(b);
+    }
+
+    // запись в журнал идёт уже после изменения в памяти, поэтому её сбой отличается от отказа в операции
+    private void append(RecordBuffer b) {
+        try {
+            b.lastSeq = log.append(b.finish());
+        } catch (UncheckedIOException e) {
+            throw notDurable(e.getCause());
+        }
+        sinceSnapshot.incrementAndGet();
+    }
+
+    private static NotDurableException notDurable(IOException e) {
+        return new NotDurableException("Операция применена, но не записана в журнал: " + e.getMessage(), e);
+    }
+
+    // после импорта миллионов строк дешевле сразу снять снимок, чем писать каждую строку в журнал
+    @Override public void bulkLoaded(Collection<BankAccount> accounts) {
+        if (attached != null) save(attached);
+    }
+
+    /** Group commit: поток ждёт fsync пачки, в которую попала его последняя запись. */
+    @Override public void commit() {
+        RecordBuffer b = scratch.get();
+        if (b.lastSeq == 0) return;
+        long seq = b.lastSeq;
+        b.lastSeq = 0;
+        long t0 = Metrics.JOURNAL_COMMIT.start();
+        try {
+            log.awaitDurable(seq);
+        } catch (UncheckedIOException e) {
+            throw notDurable(e.getCause());
+        } finally {
+            Metrics.JOURNAL_COMMIT.stop(t0);
+        }
+        // порог могут увидеть сразу несколько потоков — saveAsync склеит их запросы в один снимок в очереди
+        if (sinceSnapshot.get() >= snapshotEvery && attached != null) saveAsync(attached); // не жду: снимок пишется в фоне
+    }
+
+    /**
+     * orphans — счета, операции которых встретились, а самих счетов нет. Так бывает с переехавшим счётом:
+     * снимок писался уже после удаления, а операции до удаления остались в новом сегменте. Такие записи
+     * пропускаются, но удаление счёта обязано встретиться дальше — иначе журнал битый.
+     */
+    static void apply(byte kind, DataInputStream in, AccountRepository repo, Set<String> orphans) throws IOException {
+        String id = readId(in);
+        if (kind == REC_ADD) {
+            String iban = in.readUTF(), bic = in.readUTF(), bank = in.readUTF(), owner = in.readUTF();
+            if (repo.getById(id).isEmpty()) repo.add(new BankAccount(id, iban, bic, bank, owner));
+        } else if (kind == REC_POST) {
+            int index = in.readInt();
+            TransactionType type = TransactionType.values()[in.readByte()];
+            long micros = in.readLong(), amount = in.readLong();
+            String descr = in.readUTF();
+            BankAccount acc = account(repo, id, orphans);
+            if (acc != null) acc.restore(index, micros, amount, type, descr);
+        } else if (kind == REC_TRANSFER) {
+            int fromIndex = in.readInt();
+            String toId = readId(in);
+            int toIndex = in.readInt();
+            long micros = in.readLong(), amount = in.readLong();
+            String descr = in.readUTF();
+            BankAccount from = account(repo, id, orphans), to = account(repo, toId, orphans);
+            if (from != null) from.restore(fromIndex, micros, amount, TransactionType.WITHDRAWAL, descr);
+            if (to != null) to.restore(toIndex, micros, amount, TransactionType.DEPOSIT, descr);
+        } else if (kind == REC_REMOVE) {
+            orphans.remove(id);
+            repo.getById(id).ifPresent(repo::remove);
+        } else {
+            throw new IOException("Неизвестный тип записи: " + kind);
+        }
+    }
+
+    private static BankAccount account(AccountRepository repo, String id, Set<String> orphans) {
+        BankAccount acc = repo.getById(id).orElse(null);
+        if (acc == null) orphans.add(id);
+        return acc;
+    }
+
+    // id у меня всегда UUID, так что в журнал иду 16 байтами вместо строки
+    private static void writeId(DataOutputStream out, String id) throws IOException {
+        UUID u = UUID.fromString(id);
+        out.writeLong(u.getMostSignificantBits());
+        out.writeLong(u.getLeastSignificantBits());
+    }
+
+    private static String readId(DataInputStream in) throws IOException {
+        return new UUID(in.readLong(), in.readLong()).toString();
+    }
+
+    /** Переиспользуемый буфер на поток: запись кодируется вне общего замка журнала. */
+    static final class RecordBuffer extends ByteArrayOutputStream {
+        final DataOutputStream out = new DataOutputStream(this);
+        private final CRC32 crc = new CRC32();
+        long lastSeq;
+
+        RecordBuffer begin(byte kind) {
+            reset();
+            try { out.writeInt(0); out.writeByte(kind); } catch (IOException e) { throw new UncheckedIOException(e); }
+            return this;
+        }
+
+        // формат записи: [длина тела][тело: тип + данные][crc32 тела]
+        RecordBuffer finish() {
+            int bodyLen = count - 4;
+            buf[0] = (byte) (bodyLen >>> 24); buf[1] = (byte) (bodyLen >>> 16);
+            buf[2] = (byte) (bodyLen >>> 8); buf[3] = (byte) bodyLen;
+            crc.reset();
+            crc.update(buf, 4, bodyLen);
+            try { out.writeInt((int) crc.getValue()); } catch (IOException e) { throw new UncheckedIOException(e); }
+            return this;
+        }
+
+        byte[] bytes() { return buf; }
+        int length() { return count; }
+    }
+}
+
+/**
+ * Сам журнал: потоки дописывают записи в общий буфер, отдельный поток сбрасывает накопившуюся пачку
+ * одним write + force. Пока идёт fsync, следующая пачка уже копится.
+ */
+final class WriteAheadLog {
+    private static final int MAX_RECORD = 1 << 20;
+
+    private final String base;
+    private int generation;
+    private FileChannel channel;
+    private ByteBuffer pending = ByteBuffer.allocate(1 << 16);
+    private ByteBuffer writing = ByteBuffer.allocate(1 << 16);
+    private long appendedSeq;
+    private long durableSeq;
+    private boolean rotateRequested;
+    private IOException failure;
+
+    WriteAheadLog(String base, int generation, long validLength) {
+        this.base = base;
+        this.generation = generation;
+        try {
+            channel = open(segment(base, generation), validLength);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Не удалось открыть журнал: " + segment(base, generation), e);
+        }
+        Thread t = new Thread(this::flushLoop, "journal-flusher");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    static Path segment(String base, int gen) { return Path.of(base + ".log." + gen); }
+
+    static List<Integer> generations(String base) {
+        Path p = Path.of(base).toAbsolutePath();
+        String prefix = p.getFileName() + ".log.";
+        List<Integer> gens = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(p.getParent(), prefix + "*")) {
+            for (Path f : ds) {
+                try { gens.add(Integer.parseInt(f.getFileName().toString().substring(prefix.length()))); }
+                catch (NumberFormatException ignored) { }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        Collections.sort(gens);
+        return gens;
+    }
+
+    private static FileChannel open(Path path, long validLength) throws IOException {
+        FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        ch.truncate(validLength); // оборванный хвост после падения отрезаю
+        ch.position(validLength);
+        return ch;
+    }
+
+    synchronized long append(JournalDataStore.RecordBuffer rec) {
+        if (failure != null) throw new UncheckedIOException("Журнал недоступен", failure);
+        if (pending.remaining() < rec.length()) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + rec.length()));
+            pending.flip();
+            bigger.put(pending);
+            pending = bigger;
+        }
+        pending.put(rec.bytes(), 0, rec.length());
+        notifyAll();
+        return ++appendedSeq;
+    }
+
+    synchronized void awaitDurable(long seq) {
+        boolean interrupted = false;
+        while (durableSeq < seq && failure == null) {
+            try { wait(); } catch (InterruptedException e) { interrupted = true; }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+        if (durableSeq < seq) throw new UncheckedIOException("Запись в журнал не удалась", failure);
+    }
+
+    /** Сбрасывает текущую пачку и переключает запись на новый сегмент; возвращает его номер. */
+    synchronized int rotate() {
+        rotateRequested = true;
+        notifyAll();
+        boolean interrupted = false;
+        while (rotateRequested && failure == null) {
+            try { wait(); } catch (InterruptedException e) { interrupted = true; }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+        if (failure != null) throw new UncheckedIOException("Журнал недоступен", failure);
+        return generation;
+    }
+
+    private void flushLoop() {
+        while (true) {
+            ByteBuffer batch;
+            long target;
+            boolean rotate;
+            synchronized (this) {
+                while (pending.position() == 0 && !rotateRequested) {
+                    try { wait(); } catch (InterruptedException e) { return; }
+                }
+                batch = pending;
+                pending = writing;
+                writing = batch;
+                target = appendedSeq;
+                rotate = rotateRequested;
+            }
+            try {
+                long t0 = System.nanoTime();
+                batch.flip();
+                while (batch.hasRemaining()) channel.write(batch);
+                channel.force(false);
+                Metrics.JOURNAL_FLUSH.record(System.nanoTime() - t0);
+                if (rotate) {
+                    channel.close();
+                    channel = open(segment(base, generation + 1), 0);
+                }
+            } catch (IOException e) {
+                synchronized (this) { failure = e; notifyAll(); }
+                return;
+            }
+            batch.clear();
+            synchronized (this) {
+                durableSeq = target;
+                if (rotate) { generation++; rotateRequested = false; }
+                notifyAll();
+            }
+        }
+    }
+
+    static final class Replay {
+        long records;
+        long validLength;
+    }
+
+    /**
+     * Проигрывает сегмент до первой битой записи; validLength — сколько байт в нём целых.
+     * Повтор уже применённой проводки пропускается, а пропуск (записи потеряны) — ошибка: молча стартовать
+     * с укороченной историей нельзя.
+     */
+    static Replay replay(String base, int gen, AccountRepository repo, Set<String> orphans) {
+        Path path = segment(base, gen);
+        Replay r = new Replay();
+        if (!Files.exists(path)) return r;
+        CRC32 crc = new CRC32();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+            while (true) {
+                int len;
+                try { len = in.readInt(); } catch (EOFException eof) { break; }
+                if (len <= 0 || len > MAX_RECORD) break;
+                byte[] body = new byte[len];
+                int stored;
+                try {
+                    in.readFully(body);
+                    stored = in.readInt();
+                } catch (EOFException eof) { break; }
+                crc.reset();
+                crc.update(body, 0, len);
+                if ((int) crc.getValue() != stored) break;
+                DataInputStream rec = new DataInputStream(new ByteArrayInputStream(body, 1, len - 1));
+                try {
+                    JournalDataStore.apply(body[0], rec, repo, orphans);
+                } catch (IllegalStateException gap) {
+                    throw new IOException("Разрыв в журнале " + path + " (поколение " + gen + ", смещение " + r.validLength + "): "
+                            + gap.getMessage());
+                }
+                r.records++;
+                r.validLength += 4 + len + 4;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Ошибка чтения журнала: " + path, e);
+        }
+        return r;
+    }
+}
@@ -0,0 +1,451 @@
+package bank;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Конвейер операций в духе Disruptor. Команды кладутся в заранее выделенное кольцо,
+ * а применяет их один поток "bank-ledger", пачками. После пачки он один раз ждёт fsync журнала,
+ * отвечает отправителям и сдвигает курсор: с этого момента события пачки видят потребители.
+ * У каждого потребителя свой поток и свой курсор. Отправитель не займёт ячейку, пока её не
+ * дочитал самый медленный из них, так что кольцо не переполняется и ничего не теряется.
+ * Потребители получают события батчами (endOfBatch), их задержка не тормозит проводки.
+ * Прямые deposit/withdraw из окна и консоли по-прежнему работают мимо конвейера — поэтому
+ * бизнес-поток всё же берёт замки счетов, но без соперников это один tryLock.
+ */
+final class LedgerPipeline implements Closeable {
+    /** Обработчик событий; ячейка переиспользуется, так что нужное копируется до возврата. */
+    interface Handler {
+        void onEvent(LedgerEvent e, long sequence, boolean endOfBatch) throws Exception;
+    }
+
+    private final AccountRepository repo;
+    private final LedgerEvent[] ring;
+    private final int mask;
+    private final AtomicLong claimed = new AtomicLong(-1); // последний выданный отправителю номер
+    private volatile long applied = -1;                    // последний применённый и закоммиченный
+    private final List<Stage> stages = new ArrayList<>();
+    private final Thread writer;
+    private volatile boolean running = true;
+    private volatile Throwable fatal; // бизнес-поток упал: новые команды не принимаются, принятые получили ошибку
+
+    LedgerPipeline(AccountRepository repo, int size) {
+        if (Integer.bitCount(size) != 1) throw new IllegalArgumentException("Размер кольца должен быть степенью двойки");
+        this.repo = repo;
+        this.ring = new LedgerEvent[size];
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) ring[i] = new LedgerEvent(i - size); // «опубликован» круг назад
+        writer = new Thread(this::applyLoop, "bank-ledger");
+        writer.setDaemon(true);
+        subscribe("metrics", (e, seq, end) -> Metrics.PIPELINE.record(System.nanoTime() - e.submittedNanos));
+    }
+
+    /** Потребители подключаются до start(): каждый увидит все события с самого начала. */
+    LedgerPipeline subscribe(String name, Handler handler) {
+        if (writer.isAlive()) throw new IllegalStateException("Конвейер уже запущен");
+        stages.add(new Stage(name, handler));
+        return this;
+    }
+
+    LedgerPipeline start() {
+        for (Stage s : stages) s.thread.start();
+        writer.start();
+        return this;
+    }
+
+    // ---------------------------------------------------------------- отправители
+
+    /** Пополнение; результат — баланс после операции в копейках. */
+    CompletableFuture<Long> deposit(BankAccount acc, Money amount, String description) {
+        return publish(LedgerEvent.Kind.DEPOSIT, acc, null, amount, description);
+    }
+
+    CompletableFuture<Long> withdraw(BankAccount acc, Money amount, String description) {
+        return publish(LedgerEvent.Kind.WITHDRAW, acc, null, amount, description);
+    }
+
+    /** Перевод; результат — баланс счёта списания. */
+    CompletableFuture<Long> transfer(BankAccount from, BankAccount to, Money amount, String description) {
+        if (from == to) throw new IllegalArgumentException("Нельзя перевести на тот же счёт");
+        return publish(LedgerEvent.Kind.TRANSFER, from, to, amount, description);
+    }
+
+    private CompletableFuture<Long> publish(LedgerEvent.Kind kind, BankAccount acc, BankAccount to,
+                                            Money amount, String description) {
+        BankAccount.checkPositive(amount);
+        if (!running) throw new IllegalStateException("Конвейер остановлен");
+        long seq = claimed.incrementAndGet();
+        // ячейку круг назад должны были дочитать все — иначе ждём самого медленного
+        for (int spins = 0; seq - ring.length > minConsumed(); spins++) {
+            if (fatal != null) throw new IllegalStateException("Конвейер остановлен после сбоя", fatal);
+            idle(spins);
+        }
+        LedgerEvent e = ring[(int) seq & mask];
+        CompletableFuture<Long> reply = new CompletableFuture<>();
+        e.fill(kind, acc, to, amount.minor(), description == null ? "" : description, reply);
+        e.published = seq;
+        LockSupport.unpark(writer);
+        // бизнес-поток мог упасть, пока ячейка заполнялась, — тогда её уже никто не применит
+        Throwable f = fatal;
+        if (f != null) reply.completeExceptionally(new IllegalStateException("Конвейер остановлен после сбоя", f));
+        return reply;
+    }
+
+    private long minConsumed() {
+        long min = applied;
+        for (Stage s : stages) min = Math.min(min, s.sequence);
+        return min;
+    }
+
+    // ---------------------------------------------------------------- бизнес-поток
+
+    private void applyLoop() {
+        repo.deferCommits(true); // журнал ждёт один fsync на пачку, а не на каждую операцию
+        try {
+            applyAll();
+        } catch (Throwable t) {
+            // сюда попадает только то, что apply не смог превратить в ошибку операции (Error и т.п.):
+            // молча умереть нельзя — отправители ждали бы ответа вечно
+            fatal = t;
+            running = false;
+            System.err.println("Конвейер остановлен: " + t);
+            failPending(t);
+        } finally {
+            repo.deferCommits(false);
+        }
+    }
+
+    // всё опубликованное после последнего применённого получает ошибку; кто опубликует позже — увидит fatal сам,
+    // а кто ждёт места в кольце — выйдет по fatal
+    private void failPending(Throwable t) {
+        IllegalStateException err = new IllegalStateException("Конвейер остановлен после сбоя", t);
+        for (long s = applied + 1, end = claimed.get(); s <= end; s++) {
+            LedgerEvent e = ring[(int) s & mask];
+            if (e.published == s && e.reply != null) e.reply.completeExceptionally(err);
+        }
+    }
+
+    private void applyAll() {
+        long next = 0;
+        for (int spins = 0; ; ) {
+            long end = next;
+            while (end - next < ring.length && ring[(int) end & mask].published == end) end++;
+            if (end == next) {
+                if (!running && claimed.get() < next) break;
+                idle(spins++);
+                continue;
+            }
+            spins = 0;
+            for (long s = next; s < end; s++) apply(ring[(int) s & mask]);
+            Throwable failure = null;
+            try {
+                repo.commitNow();
+            } catch (RuntimeException ex) {
+                failure = ex;
+            }
+            for (long s = next; s < end; s++) ring[(int) s & mask].reply(failure);
+            applied = end - 1;
+            for (Stage st : stages) LockSupport.unpark(st.thread);
+            next = end;
+        }
+    }
+
+    private void apply(LedgerEvent e) {
+        e.micros = TransactionLog.toMicros(LocalDateTime.now());
+        try {
+            switch (e.kind) {
+                case DEPOSIT, WITHDRAW -> {
+                    BankAccount acc = e.account;
+                    acc.acquire();
+                    try {
+                        e.index = e.kind == LedgerEvent.Kind.DEPOSIT
+                                ? acc.credit(e.amount, e.micros, e.description)
+                                : acc.debit(e.amount, e.micros, e.description);
+                        e.balance = acc.balance().minor();
+                        repo.firePosted(acc, e.index);
+                    } finally {
+                        acc.release();
+                    }
+                }
+                case TRANSFER -> {
+                    BankAccount from = e.account, to = e.counterparty;
+                    BankAccount first = from.handle() < to.handle() ? from : to, second = first == from ? to : from;
+                    first.acquire();
+                    second.acquire();
+                    try {
+                        to.checkCredit(e.amount); // до списания, чтобы перевод не остался наполовину проведённым
+                        e.index = from.debit(e.amount, e.micros, e.description);
+                        e.counterIndex = to.credit(e.amount, e.micros, e.description);
+                        e.balance = from.balance().minor();
+                        e.counterBalance = to.balance().minor();
+                        repo.fireTransferred(from, e.index, to, e.counterIndex);
+                    } finally {
+                        second.release();
+                        first.release();
+                    }
+                }
+            }
+        } catch (RuntimeException ex) {
+            // в том числе сбой журнала: ошибка уходит отправителю этой операции, поток живёт дальше
+            e.error = ex;
+        }
+    }
+
+    // ---------------------------------------------------------------- потребители
+
+    private final class Stage implements Runnable {
+        final String name;
+        final Handler handler;
+        final Thread thread;
+        volatile long sequence = -1; // дочитано включительно
+
+        Stage(String name, Handler handler) {
+            this.name = name;
+            this.handler = handler;
+            this.thread = new Thread(this, "bank-ledger-" + name);
+            thread.setDaemon(true);
+        }
+
+        @Override public void run() {
+            for (int spins = 0; ; ) {
+                long available = applied;
+                if (available == sequence) {
+                    if (!running && !writer.isAlive() && applied == sequence) return;
+                    idle(spins++);
+                    continue;
+                }
+                spins = 0;
+                for (long s = sequence + 1; s <= available; s++) {
+                    try {
+                        handler.onEvent(ring[(int) s & mask], s, s == available);
+                    } catch (Exception ex) {
+                        // упавший потребитель не должен вставать и держать кольцо
+                        System.err.println("Потребитель " + name + " упал на событии " + s + ": " + ex);
+                    }
+                }
+                sequence = available;
+            }
+        }
+    }
+
+    // сначала крутимся, потом уступаем ядро, потом спим; будят unpark, так что сон короткий и редкий
+    private static void idle(int spins) {
+        if (spins < 100) Thread.onSpinWait();
+        else if (spins < 200) Thread.yield();
+        else LockSupport.parkNanos(100_000);
+    }
+
+    /** Принятые команды доисполняются, потребители дочитывают всё; новые не принимаются. */
+    @Override public void close() {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+            for (Stage s : stages) {
+                LockSupport.unpark(s.thread);
+                s.thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
+
+/** Ячейка кольца: команда, а после применения — её результат. */
+final class LedgerEvent {
+    enum Kind { DEPOSIT, WITHDRAW, TRANSFER }
+
+    volatile long published; // номер, под которым ячейка заполнена; пишется последним
+    Kind kind;
+    BankAccount account;
+    BankAccount counterparty; // счёт зачисления у перевода
+    long amount;
+    String description;
+    CompletableFuture<Long> reply;
+    long submittedNanos;
+    // результат: время операции, номера строк в истории, балансы после; error — операция не прошла
+    long micros;
+    int index;
+    int counterIndex;
+    long balance;
+    long counterBalance;
+    RuntimeException error;
+
+    LedgerEvent(long published) { this.published = published; }
+
+    void fill(Kind kind, BankAccount account, BankAccount counterparty, long amount, String description,
+              CompletableFuture<Long> reply) {
+        this.kind = kind;
+        this.account = account;
+        this.counterparty = counterparty;
+        this.amount = amount;
+        this.description = description;
+        this.reply = reply;
+        this.submittedNanos = System.nanoTime();
+        this.error = null;
+    }
+
+    void reply(Throwable commitFailure) {
+        if (error != null) reply.completeExceptionally(error);
+        else if (commitFailure != null) reply.completeExceptionally(commitFailure);
+        else reply.complete(balance);
+        reply = null;
+    }
+}
+
+/**
+ * Поток изменений (CDC) в файл: строка на проводку
+ * {@code номер;время;тип;iban;сумма;баланс после;описание}, у перевода — две строки (TRANSFER_OUT/TRANSFER_IN).
+ * Номера сквозные и переживают перезапуск, так что подписчик может читать файл с того места,
+ * где остановился ({@link #replay}). На диск сбрасывается в конце каждой пачки событий.
+ * <p>
+ * Пишет его потребитель конвейера уже после коммита, поэтому проводки, закоммиченные прямо перед падением,
+ * и проводки мимо конвейера (окно, консоль, пакетный режим) в файл сами не попадают. Их дописывает
+ * {@link #catchUp} при старте — по книге, уже докатанной из журнала: всё, что новее последней строки файла.
+ * Новый (пустой) файл начинается с момента включения, прошлую историю книги он не повторяет.
+ * Ограничения: такие строки идут с типами истории (DEPOSIT/WITHDRAW, ноги перевода не склеиваются), а проводка
+ * с тем же временем до микросекунды, что и последняя строка файла, и история, перенесённая с другого узла
+ * (RESTORE, у неё старые времена), не восстанавливаются.
+ */
+final class ChangeFeed implements LedgerPipeline.Handler, Closeable {
+    private static final int SCAN = 64 * 1024;
+
+    private final Writer out;
+    private final StringBuilder sb = new StringBuilder(256);
+    private long next;
+    private long lastMicros = Long.MIN_VALUE; // время последней строки файла
+
+    ChangeFeed(Path file) throws IOException {
+        String last = recover(file);
+        if (last != null) {
+            String[] f = last.split(";", 3);
+            try {
+                next = Long.parseLong(f[0]) + 1;
+                lastMicros = TransactionLog.toMicros(LocalDateTime.parse(f[1]));
+            } catch (RuntimeException e) {
+                // начать нумерацию заново нельзя — номера повторились бы
+                throw new IOException("Поток изменений повреждён, последняя строка: " + last, e);
+            }
+        }
+        this.out = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Дописывает проводки книги, которых нет в файле, — всё, что новее его последней строки, по времени.
+     * Вызывать до start() конвейера; возвращает число дописанных строк.
+     */
+    long catchUp(AccountRepository repo) throws IOException {
+        if (lastMicros == Long.MIN_VALUE) return 0;
+        List<long[]> missing = new ArrayList<>(); // {время, номер счёта в списке, номер строки, баланс после}
+        List<BankAccount> accounts = new ArrayList<>(repo.all());
+        for (int a = 0; a < accounts.size(); a++) {
+            BankAccount acc = accounts.get(a);
+            TransactionLog log = acc.log();
+            acc.acquire();
+            try {
+                int n = log.size(), lo = 0, hi = n;
+                while (lo < hi) { // история идёт по времени — первая строка новее файла ищется делением пополам
+                    int mid = (lo + hi) >>> 1;
+                    if (log.micros(mid) <= lastMicros) lo = mid + 1; else hi = mid;
+                }
+                long balance = acc.balance().minor();
+                for (int i = lo; i < n; i++) balance -= signed(log, i);
+                for (int i = lo; i < n; i++) {
+                    balance += signed(log, i);
+                    missing.add(new long[]{log.micros(i), a, i, balance});
+                }
+            } finally {
+                acc.release();
+            }
+        }
+        missing.sort((x, y) -> Long.compare(x[0], y[0]));
+        for (long[] m : missing) {
+            BankAccount acc = accounts.get((int) m[1]);
+            TransactionLog log = acc.log();
+            int i = (int) m[2];
+            line(m[0], log.type(i) == TransactionType.DEPOSIT ? "DEPOSIT" : "WITHDRAW", acc, log.amountMinor(i), m[3], log.description(i));
+        }
+        out.flush();
+        return missing.size();
+    }
+
+    private static long signed(TransactionLog log, int i) {
+        return log.type(i) == TransactionType.DEPOSIT ? log.amountMinor(i) : -log.amountMinor(i);
+    }
+
+    @Override public void onEvent(LedgerEvent e, long sequence, boolean endOfBatch) throws IOException {
+        if (e.error == null) {
+            switch (e.kind) {
+                case DEPOSIT -> line(e.micros, "DEPOSIT", e.account, e.amount, e.balance, e.description);
+                case WITHDRAW -> line(e.micros, "WITHDRAW", e.account, e.amount, e.balance, e.description);
+                case TRANSFER -> {
+                    line(e.micros, "TRANSFER_OUT", e.account, e.amount, e.balance, e.description);
+                    line(e.micros, "TRANSFER_IN", e.counterparty, e.amount, e.counterBalance, e.description);
+                }
+            }
+        }
+        if (endOfBatch) out.flush();
+    }
+
+    private void line(long micros, String type, BankAccount acc, long amount, long balance, String description) throws IOException {
+        sb.setLength(0);
+        sb.append(next++).append(';').append(TransactionLog.fromMicros(micros)).append(';').append(type)
+                .append(';').append(acc.iban()).append(';');
+        Money.appendTo(sb, amount);
+        sb.append(';');
+        Money.appendTo(sb, balance);
+        sb.append(';').append(description.replace('\n', ' ').replace('\r', ' ')).append('\n');
+        out.append(sb);
+        lastMicros = Math.max(lastMicros, micros);
+    }
+
+    /** Строки с номером не меньше from, по порядку. */
+    static void replay(Path file, long from, java.util.function.Consumer<String> sink) throws IOException {
+        try (BufferedReader r = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            for (String l; (l = r.readLine()) != null; ) {
+                int semi = l.indexOf(';');
+                if (semi > 0 && Long.parseLong(l, 0, semi, 10) >= from) sink.accept(l);
+            }
+        }
+    }
+
+    // последняя полная строка (null — её нет); недописанную после сбоя строку отрезаю.
+    // Файл читается с конца кусками: строка с длинным описанием может быть больше любого окна
+    private static String recover(Path file) throws IOException {
+        if (!Files.exists(file)) return null;
+        try (RandomAccessFile f = new RandomAccessFile(file.toFile(), "rw")) {
+            long end = lastNewline(f, f.length());
+            f.setLength(end + 1);
+            if (end < 0) return null;
+            long start = lastNewline(f, end) + 1;
+            byte[] b = new byte[(int) (end - start)];
+            f.seek(start);
+            f.readFully(b);
+            return new String(b, StandardCharsets.UTF_8);
+        }
+    }
+
+    // позиция последнего '\n' раньше before; -1 — такого нет
+    private static long lastNewline(RandomAccessFile f, long before) throws IOException {
+        byte[] b = new byte[SCAN];
+        for (long hi = before; hi > 0; ) {
+            int n = (int) Math.min(SCAN, hi);
+            f.seek(hi - n);
+            f.readFully(b, 0, n);
+            for (int i = n - 1; i >= 0; i--) if (b[i] == '\n') return hi - n + i;
+            hi -= n;
+        }
+        return -1;
+    }
+
+    @Override public void close() throws IOException { out.close(); }
+}
@@ -1,13 +1,75 @@
 package bank;
 
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+
 public class Main {
     private static final String DEFAULT_DB = "bank.dat";
 
-    public static void main(String[] args) {
-        DataStore store = new FileDataStore(DEFAULT_DB);
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && "load".equalsIgnoreCase(args[0])) {
+            // load [host:port] [соединений] [запросов на соединение] [pipeline] — нагрузка на запущенный сервер
+            String[] hp = (args.length > 1 ? args[1] : "localhost:" + BankServer.DEFAULT_PORT).split(":");
+            new LoadClient(hp[0], Integer.parseInt(hp[1])).run(
+                    args.length > 2 ? Integer.parseInt(args[2]) : 1000,
+                    args.length > 3 ? Integer.parseInt(args[3]) : 1000,
+                    args.length > 4 ? Integer.parseInt(args[4]) : 16);
+            return;
+        }
+        if (args.length > 1 && "router".equalsIgnoreCase(args[0])) {
+            // router host:port,host:port [порт] — один адрес для клиентов, счета разложены по узлам по хешу IBAN;
+            // узлы — обычные server со своими файлами (-Dbank.db=node1.dat)
+            RouterServer router = new RouterServer(new ShardRouter(Arrays.asList(args[1].split(","))),
+                    args.length > 2 ? Integer.parseInt(args[2]) : BankServer.DEFAULT_PORT);
+            System.out.println("Роутер слушает порт " + router.port());
+            router.serve();
+            return;
+        }
+        Metrics.registerMBean();
+        // -Dbank.metrics.file=путь: раз в bank.metrics.every секунд метрики пишутся туда текстом Prometheus
+        String metricsFile = System.getProperty("bank.metrics.file");
+        if (metricsFile != null) Metrics.dumpEvery(Path.of(metricsFile), Duration.ofSeconds(Long.getLong("bank.metrics.every", 60)));
+        // -Dbank.autosave=секунды: фоновый снимок, если были изменения; 0 — выключить
+        long autosave = Long.getLong("bank.autosave", 300);
+        // -Dbank.db=файл: несколько узлов на одной машине держат каждый свою книгу
+        DataStore store = new JournalDataStore(System.getProperty("bank.db", DEFAULT_DB), JournalDataStore.DEFAULT_SNAPSHOT_EVERY, Duration.ofSeconds(autosave));
         AccountRepository repo = store.loadOrCreateEmpty();
         if (args.length > 0 && "console".equalsIgnoreCase(args[0])) {
             new ConsoleApp(repo, store).run();
+        } else if (args.length > 1 && "export".equalsIgnoreCase(args[0])) {
+            // export <файл|каталог> [gzip] [split] — ночная выгрузка всей книги
+            List<String> opts = Arrays.asList(args).subList(2, args.length);
+            long rows = repo.exportAllCsv(Path.of(args[1]), opts.contains("split"), opts.contains("gzip"),
+                    n -> System.out.print("\rВыгружено строк: " + n));
+            System.out.println("\rВыгружено строк: " + rows);
+        } else if (args.length > 1 && "batch".equalsIgnoreCase(args[0])) {
+            // batch <команды.txt> [отчёт] — команды протокола сервера из файла, без меню, параллельно по счетам
+            Path report = Path.of(args.length > 2 ? args[2] : args[1] + ".report");
+            new ConsoleApp(repo, store).runBatch(Path.of(args[1]), report);
+        } else if (args.length > 1 && "import".equalsIgnoreCase(args[0])) {
+            // import <ledger.csv> [accounts.csv] — массовая загрузка счетов и истории
+            Path accounts = args.length > 2 ? Path.of(args[2]) : null;
+            System.out.println("Импортировано — " + new CsvImporter().importInto(repo, Path.of(args[1]), accounts));
+        } else if (args.length > 0 && "server".equalsIgnoreCase(args[0])) {
+            // server [порт] — без интерфейса; все изменения и так уходят в журнал.
+            // -Dbank.pipeline=true: операции через кольцо с одним бизнес-потоком; -Dbank.cdc=файл — поток изменений
+            LedgerPipeline pipeline = null;
+            if (Boolean.getBoolean("bank.pipeline") || System.getProperty("bank.cdc") != null) {
+                pipeline = new LedgerPipeline(repo, Integer.getInteger("bank.pipeline.size", 1 << 14));
+                String cdc = System.getProperty("bank.cdc");
+                if (cdc != null) {
+                    ChangeFeed feed = new ChangeFeed(Path.of(cdc));
+                    long behind = feed.catchUp(repo); // упавшее до записи в файл и проводки мимо сервера
+                    if (behind > 0) System.out.println("Поток изменений догнан из книги: " + behind + " строк");
+                    pipeline.subscribe("cdc", feed);
+                }
+                pipeline.start();
+            }
+            BankServer server = new BankServer(repo, args.length > 1 ? Integer.parseInt(args[1]) : BankServer.DEFAULT_PORT, pipeline);
+            System.out.println("Сервер слушает порт " + server.port());
+            server.serve();
         } else {
             SwingApp.launch(repo, store);
         }
@@ -0,0 +1,213 @@
+package bank;
+
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Метрики горячих путей: число вызовов и гистограммы времени без замков, чтобы их можно было не выключать.
+ * Гистограмма устроена как HdrHistogram: корзины по степеням двойки, каждая поделена на {@link Timer#SUB} частей,
+ * так что перцентиль врёт не больше чем на ~6%, а запись — это сдвиг и один инкремент.
+ * Число вызовов считается всегда, а время по умолчанию меряется у каждой {@link #SAMPLE}-й операции
+ * (-Dbank.metrics.sample, 1 — у всех): два System.nanoTime на каждое пополнение стоили бы больше процента.
+ * Видно через JMX (bank:type=Metrics) и текстом в формате Prometheus ({@link #prometheus()}, {@link #dumpEvery}).
+ */
+final class Metrics {
+    static final int SAMPLE = Math.max(1, Integer.getInteger("bank.metrics.sample", 16));
+
+    private static final List<Timer> TIMERS = new ArrayList<>(); // до самих таймеров: они регистрируются в нём
+
+    static final Timer DEPOSIT = timer("deposit", "Пополнение счёта, включая ожидание журнала");
+    static final Timer WITHDRAW = timer("withdraw", "Снятие со счёта, включая ожидание журнала");
+    static final Timer TRANSFER = timer("transfer", "Перевод между счетами, включая ожидание журнала");
+    static final Timer SEARCH_ACCOUNTS = timer("search_accounts", "Поиск счетов");
+    static final Timer SEARCH_TRANSACTIONS = timer("search_transactions", "Поиск по истории счёта");
+    static final Timer EXPORT = timer("export_csv", "Экспорт CSV");
+    static final Timer LOCK_WAIT = timer("lock_wait", "Ожидание замка счёта (только когда он был занят)");
+    static final Timer JOURNAL_FLUSH = timer("journal_flush", "Запись и fsync одной пачки журнала");
+    static final Timer JOURNAL_COMMIT = timer("journal_commit", "Ожидание fsync своей записи журнала");
+    static final Timer STORE_SAVE = timer("store_save", "Запись снимка на диск");
+    static final Timer PIPELINE = timer("pipeline", "От постановки команды в конвейер до её обработки потребителями");
+
+    private Metrics() {}
+
+    private static Timer timer(String name, String help) {
+        Timer t = new Timer(name, help);
+        TIMERS.add(t);
+        return t;
+    }
+
+    static List<Timer> timers() { return Collections.unmodifiableList(TIMERS); }
+
+    /** Счётчик вызовов и гистограмма времени одной операции. */
+    static final class Timer {
+        static final int SUB_BITS = 4;
+        static final int SUB = 1 << SUB_BITS;
+
+        final String name;
+        final String help;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder timed = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+        private final AtomicLongArray buckets = new AtomicLongArray((64 - SUB_BITS) * SUB);
+
+        private Timer(String name, String help) {
+            this.name = name;
+            this.help = help;
+        }
+
+        /** Начало операции: 0 — эту не меряем (выборка), иначе System.nanoTime(). */
+        long start() {
+            return SAMPLE == 1 || ThreadLocalRandom.current().nextInt(SAMPLE) == 0 ? System.nanoTime() : 0;
+        }
+
+        void stop(long start) {
+            count.increment();
+            if (start != 0) time(System.nanoTime() - start);
+        }
+
+        /** Время уже измерено снаружи (редкие и дорогие операции меряются всегда). */
+        void record(long nanos) {
+            count.increment();
+            time(nanos);
+        }
+
+        private void time(long nanos) {
+            long v = Math.max(0, nanos);
+            timed.increment();
+            totalNanos.add(v);
+            max.accumulate(v);
+            buckets.incrementAndGet(bucket(v));
+        }
+
+        // до SUB — точное значение, дальше: номер старшего бита и следующие SUB_BITS бит
+        static int bucket(long v) {
+            if (v < SUB) return (int) v;
+            int exp = 63 - Long.numberOfLeadingZeros(v);
+            int sub = (int) (v >>> (exp - SUB_BITS)) & (SUB - 1);
+            return (exp - SUB_BITS + 1) * SUB + sub;
+        }
+
+        static long lowerBound(int b) {
+            if (b < SUB) return b;
+            int exp = b / SUB + SUB_BITS - 1;
+            return (1L << exp) | ((long) (b % SUB) << (exp - SUB_BITS));
+        }
+
+        long count() { return count.sum(); }
+        long maxNanos() { return max.get(); }
+        double meanNanos() {
+            long n = timed.sum();
+            return n == 0 ? 0 : (double) totalNanos.sum() / n;
+        }
+
+        /** Перцентили в наносекундах: верхняя граница корзины, в которую попал p-й замер (не больше максимума). */
+        long[] percentiles(double... ps) {
+            long[] counts = new long[buckets.length()];
+            long total = 0;
+            for (int b = 0; b < counts.length; b++) total += counts[b] = buckets.get(b);
+            long[] out = new long[ps.length];
+            if (total == 0) return out;
+            for (int k = 0; k < ps.length; k++) {
+                long rank = Math.max(1, (long) Math.ceil(ps[k] * total)), seen = 0;
+                for (int b = 0; b < counts.length; b++) {
+                    seen += counts[b];
+                    if (seen >= rank) {
+                        out[k] = Math.min(max.get(), b + 1 < counts.length ? lowerBound(b + 1) - 1 : Long.MAX_VALUE);
+                        break;
+                    }
+                }
+            }
+            return out;
+        }
+    }
+
+    /** Все метрики текстом в формате Prometheus: summary с квантилями в секундах. */
+    static String prometheus() {
+        StringBuilder sb = new StringBuilder(4096);
+        for (Timer t : TIMERS) {
+            String m = "bank_" + t.name + "_seconds";
+            long[] p = t.percentiles(0.5, 0.99, 0.999);
+            sb.append("# HELP ").append(m).append(' ').append(t.help).append('\n');
+            sb.append("# TYPE ").append(m).append(" summary\n");
+            sb.append(m).append("{quantile=\"0.5\"} ").append(seconds(p[0])).append('\n');
+            sb.append(m).append("{quantile=\"0.99\"} ").append(seconds(p[1])).append('\n');
+            sb.append(m).append("{quantile=\"0.999\"} ").append(seconds(p[2])).append('\n');
+            sb.append(m).append("_count ").append(t.count()).append('\n');
+            // сумма по выборке растянута на все вызовы, чтобы rate(sum)/rate(count) давал среднее
+            sb.append(m).append("_sum ").append(seconds(Math.round(t.meanNanos() * t.count()))).append('\n');
+            sb.append("bank_").append(t.name).append("_max_seconds ").append(seconds(t.maxNanos())).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static String seconds(long nanos) {
+        return Double.toString(nanos / 1e9);
+    }
+
+    /** Раз в every переписывает file текстом Prometheus (через временный файл, чтобы читатель не увидел половину). */
+    static void dumpEvery(Path file, Duration every) {
+        ScheduledExecutorService ex = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "bank-metrics");
+            t.setDaemon(true);
+            return t;
+        });
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        ex.scheduleWithFixedDelay(() -> {
+            try {
+                Files.writeString(tmp, prometheus(), StandardCharsets.UTF_8);
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                System.err.println("Не удалось записать метрики в " + file + ": " + e.getMessage());
+            }
+        }, every.toMillis(), every.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /** Регистрирует MBean bank:type=Metrics; повторный вызов ничего не делает. */
+    static synchronized void registerMBean() {
+        try {
+            ObjectName name = new ObjectName("bank:type=Metrics");
+            var server = ManagementFactory.getPlatformMBeanServer();
+            if (!server.isRegistered(name)) server.registerMBean(new MetricsBean(), name);
+        } catch (Exception e) {
+            throw new IllegalStateException("Не удалось зарегистрировать MBean метрик", e);
+        }
+    }
+}
+
+final class MetricsBean implements MetricsMXBean {
+    @Override public Map<String, Long> getCounts() {
+        Map<String, Long> m = new LinkedHashMap<>();
+        for (Metrics.Timer t : Metrics.timers()) m.put(t.name, t.count());
+        return m;
+    }
+    @Override public Map<String, Double> getP50Micros() { return percentile(0.5); }
+    @Override public Map<String, Double> getP99Micros() { return percentile(0.99); }
+    @Override public Map<String, Double> getP999Micros() { return percentile(0.999); }
+    @Override public Map<String, Double> getMaxMicros() {
+        Map<String, Double> m = new LinkedHashMap<>();
+        for (Metrics.Timer t : Metrics.timers()) m.put(t.name, t.maxNanos() / 1e3);
+        return m;
+    }
+    @Override public String getPrometheus() { return Metrics.prometheus(); }
+
+    private static Map<String, Double> percentile(double p) {
+        Map<String, Double> m = new LinkedHashMap<>();
+        for (Metrics.Timer t : Metrics.timers()) m.put(t.name, t.percentiles(p)[0] / 1e3);
+        return m;
+    }
+}
@@ -0,0 +1,13 @@
+package bank;
+
+import java.util.Map;
+
+/** Вид метрик для JMX: таблицы «операция → значение», времена в микросекундах. Публичный — этого требует JMX. */
+public interface MetricsMXBean {
+    Map<String, Long> getCounts();
+    Map<String, Double> getP50Micros();
+    Map<String, Double> getP99Micros();
+    Map<String, Double> getP999Micros();
+    Map<String, Double> getMaxMicros();
+    String getPrometheus();
+}
@@ -0,0 +1,62 @@
+package bank;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Денежная сумма в копейках (long). Внутри счёта и журнала суммы живут только так;
+ * BigDecimal появляется лишь на границе — при разборе ввода и в {@link #toBigDecimal()}.
+ * Переполнение не «заворачивается», а бросает ArithmeticException.
+ */
+final class Money implements Comparable<Money>, Serializable {
+    private static final long serialVersionUID = 1L;
+
+    static final Money ZERO = new Money(0);
+
+    private final long minor;
+
+    private Money(long minor) { this.minor = minor; }
+
+    static Money ofMinor(long minor) { return minor == 0 ? ZERO : new Money(minor); }
+
+    static Money of(BigDecimal amount) {
+        try {
+            return ofMinor(amount.setScale(2, RoundingMode.HALF_UP).unscaledValue().longValueExact());
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("Сумма вне допустимого диапазона: " + amount);
+        }
+    }
+
+    /** Разбор пользовательского ввода; запятая допускается как разделитель. */
+    static Money parse(String s) { return of(new BigDecimal(s.trim().replace(',', '.'))); }
+
+    long minor() { return minor; }
+    boolean isPositive() { return minor > 0; }
+
+    Money plus(Money other) { return ofMinor(Math.addExact(minor, other.minor)); }
+    Money minus(Money other) { return ofMinor(Math.subtractExact(minor, other.minor)); }
+
+    BigDecimal toBigDecimal() { return BigDecimal.valueOf(minor, 2); }
+
+    @Override public int compareTo(Money o) { return Long.compare(minor, o.minor); }
+    @Override public boolean equals(Object o) { return o instanceof Money m && m.minor == minor; }
+    @Override public int hashCode() { return Long.hashCode(minor); }
+    @Override public String toString() { return format(minor); }
+
+    static String format(long minor) {
+        StringBuilder sb = new StringBuilder(24);
+        appendTo(sb, minor);
+        return sb.toString();
+    }
+
+    // без BigDecimal: целая часть, точка, две цифры копеек (как toPlainString у scale 2)
+    static void appendTo(StringBuilder sb, long minor) {
+        long units = minor / 100;
+        int cents = (int) Math.abs(minor % 100);
+        if (minor < 0 && units == 0) sb.append('-');
+        sb.append(units).append('.');
+        if (cents < 10) sb.append('0');
+        sb.append(cents);
+    }
+}
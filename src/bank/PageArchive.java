@@ -0,0 +1,292 @@
+package bank;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Архив старой истории счёта: полные страницы, вынесенные из снимка в неизменяемые сегменты
+ * {@code bank.dat.archive/<id>-<k>.seg}. Сегмент пишется один раз, а следующие снимки на него только ссылаются —
+ * иначе каждый снимок заново копировал бы всю историю книги. В снимке остаются последние
+ * {@link #HOT_PAGES} страниц счёта; страница, которая старше {@link #MAX_AGE_DAYS} дней, уходит в архив раньше.
+ * <pre>
+ * сегмент: страницы [int длина сжатого][int длина исходного][deflate varint-столбцов][crc32]
+ *          футер    по 6 long на страницу (смещение, первое/последнее время, мин/макс суммы, маска типов),
+ *                   первое и последнее время сегмента, число страниц, crc32 футера
+ *          хвост    смещение футера, magic
+ * </pre>
+ * Первое и последнее время сегментов лежат ещё и в каталоге снимка, так что поиск по времени
+ * не открывает сегменты, которые не задевают диапазон; футер читается при первом обращении к сегменту.
+ */
+final class PageArchive {
+    private static final long MAGIC = 0x42414E4B53454731L; // "BANKSEG1"
+    private static final int FIELDS = 6;
+
+    static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("bank.archive", "true"));
+    static final int HOT_PAGES = Math.max(1, Integer.getInteger("bank.archive.hot", 16));
+    static final long MAX_AGE_DAYS = Long.getLong("bank.archive.days", 365);
+    // мельче не режу: иначе после каждого снимка у активного счёта появлялся бы сегмент на одну страницу
+    private static final int MIN_SEGMENT_PAGES = Math.max(1, Integer.getInteger("bank.archive.segment", 4));
+
+    private static final class Segment {
+        final int pages;
+        final long firstMicros;
+        final long lastMicros;
+        final long cacheId = PagedFile.nextCacheId();
+        volatile long[] footer;
+
+        Segment(int pages, long firstMicros, long lastMicros) {
+            this.pages = pages;
+            this.firstMicros = firstMicros;
+            this.lastMicros = lastMicros;
+        }
+    }
+
+    private final Path dir;
+    private final String name;
+    private final Segment[] segments;
+    private final int[] start; // первая страница каждого сегмента; последний элемент — число страниц в архиве
+
+    private PageArchive(Path dir, String name, Segment[] segments) {
+        this.dir = dir;
+        this.name = name;
+        this.segments = segments;
+        this.start = new int[segments.length + 1];
+        for (int k = 0; k < segments.length; k++) start[k + 1] = start[k] + segments[k].pages;
+    }
+
+    int count() { return start[segments.length]; }
+
+    boolean in(Path dir) { return this.dir.equals(dir); }
+
+    // ---------------------------------------------------------------- политика
+
+    /** Граница «старой» истории по времени; Long.MIN_VALUE — по возрасту ничего не архивируется. */
+    static long cutoffMicros() {
+        return MAX_AGE_DAYS <= 0 ? Long.MIN_VALUE : TransactionLog.toMicros(LocalDateTime.now().minusDays(MAX_AGE_DAYS));
+    }
+
+    /**
+     * Сколько первых страниц истории из n строк должно лежать в архиве, если сейчас там archived.
+     * Последняя страница не архивируется никогда: она бывает неполной и в неё дописывают.
+     */
+    static int archivable(TransactionLog log, int n, int archived, long cutoff) {
+        if (!ENABLED) return archived;
+        int pages = (n + TransactionLog.MASK) >>> TransactionLog.CHUNK_BITS, e = archived;
+        while (e < pages - 1 && (pages - e > HOT_PAGES || lastMicros(log, e) < cutoff)) e++;
+        return e - archived >= MIN_SEGMENT_PAGES ? e : archived;
+    }
+
+    // время последней строки полной страницы — из куска в памяти или из таблицы страниц, не раскодируя
+    private static long lastMicros(TransactionLog log, int page) {
+        TransactionLog.Chunk c = log.resident(page);
+        if (c != null) return c.micros[TransactionLog.MASK];
+        PagedFile.Pages cold = log.cold();
+        if (cold != null && page < cold.count()) return cold.lastMicros(page);
+        return log.micros(((page + 1) << TransactionLog.CHUNK_BITS) - 1);
+    }
+
+    // ---------------------------------------------------------------- запись
+
+    /** Пишет страницы [from, to) новым сегментом и возвращает архив с ним. Сегмент на диске до возврата. */
+    static PageArchive append(PageArchive prev, Path dir, String id, TransactionLog log, int from, int to) throws IOException {
+        String name = fileName(id);
+        int k = prev == null ? 0 : prev.segments.length;
+        Files.createDirectories(dir);
+        Path file = dir.resolve(name + "-" + k + ".seg"), tmp = dir.resolve(name + "-" + k + ".seg.tmp");
+        int pages = to - from;
+        long[] footer = new long[pages * FIELDS];
+        PagedFile.Enc body = new PagedFile.Enc();
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        byte[] z = new byte[1 << 16];
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            long pos = 0;
+            for (int p = from; p < to; p++) {
+                TransactionLog.Chunk c = log.chunk(p);
+                body.reset();
+                PagedFile.encodePage(c, TransactionLog.CHUNK, body);
+                deflater.reset();
+                deflater.setInput(body.array(), 0, body.size());
+                deflater.finish();
+                int zn = 0;
+                while (!deflater.finished()) {
+                    if (zn == z.length) z = Arrays.copyOf(z, z.length * 2);
+                    zn += deflater.deflate(z, zn, z.length - zn);
+                }
+                CRC32 crc = new CRC32();
+                crc.update(z, 0, zn);
+                ByteBuffer rec = ByteBuffer.allocate(8 + zn + 4);
+                rec.putInt(zn).putInt(body.size()).put(z, 0, zn).putInt((int) crc.getValue()).flip();
+                int i = (p - from) * FIELDS;
+                footer[i] = pos;
+                footer[i + 1] = c.micros[0];
+                footer[i + 2] = c.micros[TransactionLog.MASK];
+                long min = Long.MAX_VALUE, max = Long.MIN_VALUE, mask = 0;
+                for (int r = 0; r < TransactionLog.CHUNK; r++) {
+                    min = Math.min(min, c.amounts[r]);
+                    max = Math.max(max, c.amounts[r]);
+                    mask |= 1L << c.types[r];
+                }
+                footer[i + 3] = min;
+                footer[i + 4] = max;
+                footer[i + 5] = mask;
+                while (rec.hasRemaining()) pos += ch.write(rec, pos);
+            }
+            long first = footer[1], last = footer[(pages - 1) * FIELDS + 2];
+            ByteBuffer f = ByteBuffer.allocate(footer.length * 8 + 8 + 8 + 4 + 4 + 8 + 8);
+            for (long v : footer) f.putLong(v);
+            f.putLong(first).putLong(last).putInt(pages);
+            CRC32 crc = new CRC32();
+            crc.update(f.array(), 0, f.position());
+            f.putInt((int) crc.getValue()).putLong(pos).putLong(MAGIC).flip();
+            while (f.hasRemaining()) pos += ch.write(f, pos);
+            ch.force(true);
+        } finally {
+            deflater.end();
+        }
+        // сегмент с тем же номером мог остаться от снимка, который не дописался, — подменяю атомарно
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Segment s = new Segment(pages, footer[1], footer[(pages - 1) * FIELDS + 2]);
+        s.footer = footer;
+        Segment[] segs = prev == null ? new Segment[1] : Arrays.copyOf(prev.segments, k + 1);
+        segs[k] = s;
+        return new PageArchive(dir, name, segs);
+    }
+
+    // id у нас UUID — годится как имя файла; всё остальное в hex, чтобы в имени не оказалось разделителей пути
+    private static String fileName(String id) {
+        return id.matches("[A-Za-z0-9_-]{1,64}") ? id : HexFormat.of().formatHex(id.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Ссылка на архив в записи каталога снимка: число сегментов, по каждому — страниц, первое и последнее время. */
+    static void writeRef(PagedFile.Enc body, PageArchive a) {
+        body.varLong(a == null ? 0 : a.segments.length);
+        if (a == null) return;
+        for (Segment s : a.segments) body.varLong(s.pages).zigzag(s.firstMicros).zigzag(s.lastMicros);
+    }
+
+    static PageArchive read(PagedFile.Dec d, Path dir, String id) {
+        int n = d.varInt();
+        if (n == 0) return null;
+        Segment[] segs = new Segment[n];
+        for (int k = 0; k < n; k++) segs[k] = new Segment(d.varInt(), d.zigzag(), d.zigzag());
+        return new PageArchive(dir, fileName(id), segs);
+    }
+
+    // ---------------------------------------------------------------- чтение
+
+    private int segment(int page) {
+        int k = Arrays.binarySearch(start, 0, segments.length, page);
+        return k >= 0 ? k : -k - 2;
+    }
+
+    private Path file(int k) { return dir.resolve(name + "-" + k + ".seg"); }
+
+    /** Имена файлов всех сегментов архива — чтобы при снимке отличить живые сегменты от мёртвых. */
+    void segmentFiles(Set<String> out) {
+        for (int k = 0; k < segments.length; k++) out.add(name + "-" + k + ".seg");
+    }
+
+    private long[] footer(int k) {
+        Segment s = segments[k];
+        long[] f = s.footer;
+        if (f != null) return f;
+        try (FileChannel ch = FileChannel.open(file(k), StandardOpenOption.READ)) {
+            long size = ch.size();
+            ByteBuffer tail = read(ch, size - 16, 16);
+            long at = tail.getLong();
+            if (tail.getLong() != MAGIC) throw new IOException("Не сегмент архива: " + file(k));
+            ByteBuffer b = read(ch, at, (int) (size - 16 - at));
+            CRC32 crc = new CRC32();
+            crc.update(b.array(), 0, b.limit() - 4);
+            f = new long[s.pages * FIELDS];
+            for (int i = 0; i < f.length; i++) f[i] = b.getLong();
+            b.position(b.position() + 16);
+            if (b.getInt() != s.pages || b.getInt() != (int) crc.getValue()) {
+                throw new IOException("Повреждён футер сегмента архива: " + file(k));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Не удалось прочитать архив истории", e);
+        }
+        s.footer = f;
+        return f;
+    }
+
+    private long field(int page, int i) {
+        int k = segment(page);
+        return footer(k)[(page - start[k]) * FIELDS + i];
+    }
+
+    // крайние страницы сегмента отвечают по каталогу снимка, футер не нужен
+    long firstMicros(int page) {
+        int k = segment(page);
+        return page == start[k] ? segments[k].firstMicros : field(page, 1);
+    }
+
+    long lastMicros(int page) {
+        int k = segment(page);
+        return page == start[k + 1] - 1 ? segments[k].lastMicros : field(page, 2);
+    }
+
+    boolean mayContain(int page, TransactionType type, long min, long max) {
+        if (type != null && (field(page, 5) & (1L << type.ordinal())) == 0) return false;
+        return field(page, 4) >= min && field(page, 3) <= max;
+    }
+
+    TransactionLog.Chunk page(int page, PageCache cache) {
+        int k = segment(page), i = (page - start[k]) * FIELDS;
+        long[] f = footer(k);
+        long key = segments[k].cacheId << 40 | f[i];
+        TransactionLog.Chunk c = cache.get(key);
+        if (c != null) return c;
+        byte[] raw;
+        try (FileChannel ch = FileChannel.open(file(k), StandardOpenOption.READ)) {
+            ByteBuffer h = read(ch, f[i], 8);
+            int zn = h.getInt(), n = h.getInt();
+            ByteBuffer z = read(ch, f[i] + 8, zn + 4);
+            CRC32 crc = new CRC32();
+            crc.update(z.array(), 0, zn);
+            if (z.getInt(zn) != (int) crc.getValue()) throw new IOException("Повреждена страница архива: " + file(k));
+            raw = new byte[n];
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(z.array(), 0, zn);
+                if (inflater.inflate(raw) != n) throw new IOException("Повреждена страница архива: " + file(k));
+            } finally {
+                inflater.end();
+            }
+        } catch (IOException | DataFormatException e) {
+            throw new UncheckedIOException("Не удалось прочитать архив истории",
+                    e instanceof IOException io ? io : new IOException(e));
+        }
+        c = new TransactionLog.Chunk(TransactionLog.CHUNK);
+        PagedFile.decodePage(new PagedFile.Dec(raw), c, TransactionLog.CHUNK);
+        c.minAmount = f[i + 3];
+        c.maxAmount = f[i + 4];
+        c.typeMask = (int) f[i + 5];
+        return cache.putIfAbsent(key, c);
+    }
+
+    private static ByteBuffer read(FileChannel ch, long pos, int len) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(len);
+        while (b.hasRemaining()) {
+            if (ch.read(b, pos + b.position()) < 0) throw new IOException("Сегмент архива обрезан");
+        }
+        return b.flip();
+    }
+}
@@ -0,0 +1,765 @@
+package bank;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * Снимок в постраничном формате: файл открывается через {@link FileChannel#map}, при старте читаются
+ * только заголовки счетов (id, IBAN, BIC, владелец, банк, баланс), а страницы истории раскодируются
+ * при первом обращении и живут в общем LRU-кэше. Старт не зависит от длины истории.
+ * Старый bank.dat (обычная сериализация) узнаётся по сигнатуре и читается как раньше;
+ * следующее сохранение уже пишет новый формат.
+ * После сохранения счета, которые не менялись во время записи, переключаются на новый файл:
+ * их история уходит из кучи, а при следующем сохранении копируется байтами, без перекодирования.
+ */
+final class PagedDataStore implements DataStore {
+    static final int DEFAULT_CACHE_PAGES = 1024; // страница — до 4096 строк, ~86 КБ
+
+    private final String filename;
+    private final PageCache cache;
+
+    PagedDataStore(String filename) { this(filename, DEFAULT_CACHE_PAGES); }
+
+    PagedDataStore(String filename, int cachePages) {
+        this.filename = filename;
+        this.cache = new PageCache(cachePages);
+    }
+
+    @Override public void save(AccountRepository repo) {
+        // как и в FileDataStore: временный файл + атомарная подмена. Открытое отображение старого файла
+        // остаётся рабочим и после подмены, так что ещё не прочитанные страницы не теряются
+        long t0 = System.nanoTime();
+        Path tmp = Path.of(filename + ".tmp");
+        try {
+            PagedFile.Written written = PagedFile.write(repo, tmp, PagedFile.archiveDir(Path.of(filename)));
+            Files.move(tmp, Path.of(filename), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            written.rebind(Path.of(filename), cache);
+            written.reclaim(PagedFile.archiveDir(Path.of(filename)));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Ошибка сохранения: " + filename, e);
+        }
+        Metrics.STORE_SAVE.record(System.nanoTime() - t0);
+    }
+
+    @Override public AccountRepository loadOrCreateEmpty() {
+        Path path = Path.of(filename);
+        if (!Files.exists(path)) return new AccountRepository();
+        try {
+            if (isSerialized(path)) return readSerialized(path);
+            return PagedFile.open(path, cache);
+        } catch (IOException e) {
+            // пустая книга здесь опасна: первый же save перезаписал бы повреждённый снимок, а с ним и то,
+            // что ещё можно было бы спасти. Пустой старт — только когда файла нет вовсе (выше)
+            throw new UncheckedIOException("Снимок повреждён или не читается: " + filename, e);
+        }
+    }
+
+    // старый bank.dat читаю сам: FileDataStore на битом файле молча вернул бы пустую книгу
+    private static AccountRepository readSerialized(Path path) throws IOException {
+        try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            return (AccountRepository) in.readObject();
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("Неизвестный формат снимка", e);
+        }
+    }
+
+    // 0xACED — сигнатура потока ObjectOutputStream, то есть bank.dat старого формата
+    private static boolean isSerialized(Path path) throws IOException {
+        try (InputStream in = Files.newInputStream(path)) {
+            return in.read() == 0xAC && in.read() == 0xED;
+        }
+    }
+}
+
+/**
+ * Открытый файл снимка. Раскладка версии 2:
+ * <pre>
+ * заголовок:  magic, версия, число счетов, смещение каталога, смещение таблицы имён, crc32 заголовка
+ * по счёту:   страницы истории, словарь описаний, таблица страниц
+ * имена:      общий словарь названий банков и BIC — в каталоге вместо строк их номера
+ * каталог:    по записи на счёт: id, iban, bic, банк, владелец, баланс, строк, таблица, словарь
+ * </pre>
+ * Всё, кроме таблиц страниц, — записи вида [varint длина][тело][crc32 тела]; битая запись даёт ошибку,
+ * а не мусор в балансе. Страница кодируется столбцами: первое время, дальше приращения времени
+ * (история упорядочена — они неотрицательные и короткие), суммы zigzag-varint, затем номер описания
+ * и тип одним varint. Выходит около 8–10 байт на операцию вместо 21 в версии 1.
+ * Таблица страниц — массив по 48 байт (смещение, первое/последнее время, мин/макс суммы, маска типов)
+ * с crc32 в конце; фиксированная ширина нужна, чтобы поиск брал зону страницы по номеру, не раскодируя её.
+ * Файл отображается регионами по 1 ГБ; ни одна запись не пересекает границу региона.
+ * Версия 1 (столбцы фиксированной ширины, строки в каталоге) читается как раньше, при сохранении
+ * её страницы перекодируются.
+ * С версии 3 старые полные страницы счёта могут лежать не в снимке, а в его архиве ({@link PageArchive}):
+ * таблица страниц тогда начинается не с нулевой, а в записи каталога перечислены сегменты архива
+ * (страниц в сегменте, первое и последнее время).
+ */
+final class PagedFile {
+    static final long MAGIC = 0x42414E4B50474431L; // "BANKPGD1"
+    static final int VERSION = 3;
+    private static final int HEADER_V1 = 8 + 4 + 4 + 8;
+    private static final int HEADER = 8 + 4 + 4 + 8 + 8 + 4;
+    private static final int REGION_BITS = 30;
+    private static final long REGION = 1L << REGION_BITS;
+    private static final int TABLE_ENTRY = 6 * 8;
+    private static final int ROW_BYTES_V1 = 8 + 8 + 1 + 4;
+    private static final int TYPE_COUNT = TransactionType.values().length;
+
+    private static final AtomicInteger ids = new AtomicInteger();
+
+    // у файлов снимка и сегментов архива общая нумерация: это старшие биты ключа в PageCache
+    static long nextCacheId() { return ids.incrementAndGet() & 0xFFFFFF; }
+
+    private final MappedByteBuffer[] regions;
+    private final long size;
+    private final PageCache cache;
+    private final long id = nextCacheId(); // ключ кэша: номер файла << 40 | смещение
+    private int version;
+    private Path archive; // каталог архива этого снимка
+
+    private PagedFile(FileChannel ch, PageCache cache) throws IOException {
+        long size = this.size = ch.size();
+        regions = new MappedByteBuffer[(int) ((size + REGION - 1) >>> REGION_BITS)];
+        for (int r = 0; r < regions.length; r++) {
+            long start = (long) r << REGION_BITS;
+            regions[r] = ch.map(FileChannel.MapMode.READ_ONLY, start, Math.min(REGION, size - start));
+        }
+        this.cache = cache;
+    }
+
+    private static PagedFile map(Path path, PageCache cache) throws IOException {
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (ch.size() < HEADER_V1) throw new IOException("Файл снимка обрезан: " + path);
+            PagedFile f = new PagedFile(ch, cache); // отображение живёт и после закрытия канала
+            ByteBuffer h = f.at(0);
+            if (h.getLong() != MAGIC) throw new IOException("Не файл снимка: " + path);
+            f.version = h.getInt();
+            if (f.version < 1 || f.version > VERSION) throw new IOException("Неизвестная версия снимка: " + f.version);
+            f.archive = archiveDir(path);
+            return f;
+        }
+    }
+
+    // свой duplicate на каждое чтение: позиция у MappedByteBuffer общая, а читают его из разных потоков
+    private ByteBuffer at(long offset) {
+        if (offset < 0 || offset >= size) throw truncated(offset);
+        ByteBuffer b = regions[(int) (offset >>> REGION_BITS)].duplicate();
+        b.position((int) (offset & (REGION - 1)));
+        return b;
+    }
+
+    // ссылка за конец файла — снимок обрезан; это та же ошибка чтения, что и неверный crc
+    private static UncheckedIOException truncated(long offset) {
+        return new UncheckedIOException(new IOException("Снимок обрезан: нет записи по смещению " + offset));
+    }
+
+    /** Архив лежит рядом со снимком: bank.dat → bank.dat.archive. */
+    static Path archiveDir(Path snapshot) {
+        return snapshot.resolveSibling(snapshot.getFileName() + ".archive");
+    }
+
+    static AccountRepository open(Path path, PageCache cache) throws IOException {
+        PagedFile file = map(path, cache);
+        List<BankAccount> accounts = file.version == 1 ? file.directoryV1() : file.directory();
+        AccountRepository repo = new AccountRepository();
+        repo.addAll(accounts);
+        return repo;
+    }
+
+    private List<BankAccount> directory() throws IOException {
+        ByteBuffer h = at(0);
+        CRC32 crc = new CRC32();
+        crc.update(h.duplicate().limit(HEADER - 4));
+        h.position(12);
+        int count = h.getInt();
+        long pos = h.getLong(), namesAt = h.getLong();
+        if (h.getInt() != (int) crc.getValue()) throw new IOException("Повреждён заголовок снимка");
+
+        Dec names = new Dec(record(namesAt));
+        String[] name = new String[names.varInt()];
+        for (int i = 0; i < name.length; i++) name[i] = names.string();
+
+        List<BankAccount> accounts = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            if (at(pos).get() == 0) pos = ((pos >>> REGION_BITS) + 1) << REGION_BITS; // хвост региона — нули
+            Dec d = new Dec(record(pos));
+            String id = d.id(), iban = d.string(), bic = name[d.varInt()], bank = name[d.varInt()], owner = d.string();
+            long balance = d.zigzag();
+            int rows = d.varInt();
+            long table = d.int64(), dict = d.int64();
+            PageArchive arch = version >= 3 ? PageArchive.read(d, archive, id) : null;
+            TransactionLog log = rows == 0 ? new TransactionLog()
+                    : new TransactionLog(new Pages(rows, arch == null ? 0 : arch.count(), table, dict, arch));
+            accounts.add(new BankAccount(id, iban, bic, bank, owner, balance, log));
+            pos += recordLength(pos);
+        }
+        return accounts;
+    }
+
+    private List<BankAccount> directoryV1() {
+        ByteBuffer h = at(12);
+        int count = h.getInt();
+        long pos = h.getLong();
+        List<BankAccount> accounts = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ByteBuffer b = at(pos);
+            int len = b.remaining() >= 4 ? b.getInt() : 0;
+            if (len == 0) { // хвост региона забит нулями — запись начинается со следующего
+                pos = ((pos >>> REGION_BITS) + 1) << REGION_BITS;
+                b = at(pos);
+                len = b.getInt();
+            }
+            String id = readString(b), iban = readString(b), bic = readString(b), bank = readString(b), owner = readString(b);
+            long balance = b.getLong();
+            int rows = b.getInt();
+            long table = b.getLong(), dict = b.getLong();
+            TransactionLog log = rows == 0 ? new TransactionLog() : new TransactionLog(new Pages(rows, 0, table, dict, null));
+            accounts.add(new BankAccount(id, iban, bic, bank, owner, balance, log));
+            pos += 4 + len;
+        }
+        return accounts;
+    }
+
+    /** Тело записи по смещению; crc проверяется. */
+    private byte[] record(long offset) {
+        ByteBuffer b = at(offset);
+        int len = (int) varLong(b);
+        if (len < 0 || len > b.remaining() - 4) throw truncated(offset);
+        byte[] body = new byte[len];
+        b.get(body);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        if (b.getInt() != (int) crc.getValue()) {
+            throw new UncheckedIOException(new IOException("Повреждена запись снимка по смещению " + offset));
+        }
+        return body;
+    }
+
+    // длина записи целиком: varint длины, тело и crc
+    private int recordLength(long offset) {
+        ByteBuffer b = at(offset);
+        int start = b.position(), len = (int) varLong(b);
+        return b.position() - start + len + 4;
+    }
+
+    private ByteBuffer rawRecord(long offset) {
+        ByteBuffer b = at(offset);
+        b.limit(b.position() + recordLength(offset));
+        return b;
+    }
+
+    private static long varLong(ByteBuffer b) {
+        long v = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte x = b.get();
+            v |= (long) (x & 0x7F) << shift;
+            if (x >= 0) return v;
+        }
+    }
+
+    /**
+     * Страницы истории одного счёта; держатся в {@link TransactionLog}, пока та не прочитана.
+     * Страницы до first — в архиве, запросы к ним уходят туда; в снимке таблица начинается с first.
+     */
+    final class Pages {
+        final int rows;
+        private final int first;
+        private final long table;
+        private final long dict;
+        private final PageArchive archive;
+        private volatile boolean tableChecked;
+
+        Pages(int rows, int first, long table, long dict, PageArchive archive) {
+            this.rows = rows;
+            this.first = first;
+            this.table = table;
+            this.dict = dict;
+            this.archive = archive;
+        }
+
+        int first() { return first; }
+        PageArchive archive() { return archive; }
+
+        int count() { return (rows + TransactionLog.MASK) >>> TransactionLog.CHUNK_BITS; }
+
+        int rows(int page) { return Math.min(TransactionLog.CHUNK, rows - (page << TransactionLog.CHUNK_BITS)); }
+
+        /** Страницы можно переписать в новый снимок байтами, не раскодируя. */
+        boolean current() { return version >= 2; } // кодировка страниц со 2-й версии не менялась
+
+        // строка таблицы страниц: offset, first, last, min, max, typeMask — шесть long
+        private ByteBuffer entry(int page) {
+            if (!tableChecked && version != 1) checkTable();
+            return at(table + (long) (page - first) * TABLE_ENTRY);
+        }
+
+        // crc таблицы проверяется при первом обращении к ней, а не при старте: иначе старт читал бы все таблицы
+        private void checkTable() {
+            int entries = count() - first;
+            ByteBuffer b = at(table);
+            b.limit(b.position() + entries * TABLE_ENTRY);
+            CRC32 crc = new CRC32();
+            crc.update(b.duplicate());
+            if (at(table + (long) entries * TABLE_ENTRY).getInt() != (int) crc.getValue()) {
+                throw new UncheckedIOException(new IOException("Повреждена таблица страниц снимка"));
+            }
+            tableChecked = true;
+        }
+
+        private long field(int page, int k) {
+            ByteBuffer e = entry(page);
+            return e.getLong(e.position() + 8 * k);
+        }
+
+        long offset(int page) { return field(page, 0); }
+        long firstMicros(int page) { return page < first ? archive.firstMicros(page) : field(page, 1); }
+        long lastMicros(int page) { return page < first ? archive.lastMicros(page) : field(page, 2); }
+
+        boolean mayContain(int page, TransactionType type, long min, long max) {
+            if (page < first) return archive.mayContain(page, type, min, max);
+            if (type != null && (field(page, 5) & (1L << type.ordinal())) == 0) return false;
+            return field(page, 4) >= min && field(page, 3) <= max;
+        }
+
+        TransactionLog.Chunk page(int page) {
+            if (page < first) return archive.page(page, cache);
+            long offset = offset(page), key = id << 40 | offset;
+            TransactionLog.Chunk c = cache.get(key);
+            return c != null ? c : cache.putIfAbsent(key, decode(page, offset));
+        }
+
+        private TransactionLog.Chunk decode(int page, long offset) {
+            int n = rows(page);
+            TransactionLog.Chunk c = new TransactionLog.Chunk(n);
+            if (version == 1) {
+                ByteBuffer b = at(offset);
+                b.asLongBuffer().get(c.micros, 0, n);
+                b.position(b.position() + 8 * n);
+                b.asLongBuffer().get(c.amounts, 0, n);
+                b.position(b.position() + 8 * n);
+                b.get(c.types, 0, n);
+                b.asIntBuffer().get(c.descr, 0, n);
+            } else {
+                decodePage(new Dec(record(offset)), c, n);
+            }
+            c.minAmount = field(page, 3);
+            c.maxAmount = field(page, 4);
+            c.typeMask = (int) field(page, 5);
+            return c;
+        }
+
+        /** Сырые байты страницы — при пересохранении непрочитанные страницы копируются как есть. */
+        ByteBuffer raw(int page) { return rawRecord(offset(page)); }
+
+        ByteBuffer rawEntry(int page) {
+            ByteBuffer e = entry(page);
+            e.limit(e.position() + TABLE_ENTRY);
+            return e;
+        }
+
+        String[] dictionary() {
+            if (version == 1) {
+                ByteBuffer b = at(dict);
+                String[] d = new String[b.getInt()];
+                for (int i = 0; i < d.length; i++) d[i] = readString(b);
+                return d;
+            }
+            Dec b = new Dec(record(dict));
+            String[] d = new String[b.varInt()];
+            for (int i = 0; i < d.length; i++) d[i] = b.string();
+            return d;
+        }
+
+        ByteBuffer rawDictionary() { return rawRecord(dict); }
+    }
+
+    // ---------------------------------------------------------------- запись
+
+    /** Что записано: по каждому счёту число строк и где лежат его таблица страниц и словарь. */
+    static final class Written {
+        private final List<BankAccount> accounts;
+        private final int[] rows;
+        private final long[] table, dict;
+        private final PageArchive[] archives;
+
+        private Written(List<BankAccount> accounts, int[] rows, long[] table, long[] dict, PageArchive[] archives) {
+            this.accounts = accounts;
+            this.rows = rows;
+            this.table = table;
+            this.dict = dict;
+            this.archives = archives;
+        }
+
+        /**
+         * Переключает на только что записанный файл счета, к которым за время записи ничего не дописали.
+         * Их куски в памяти больше не нужны, а старое отображение отпустит GC, когда на него не останется ссылок.
+         * Новый архив запоминается у всех счетов: следующий снимок не должен архивировать те же страницы снова.
+         */
+        void rebind(Path file, PageCache cache) throws IOException {
+            PagedFile f = map(file, cache);
+            for (int a = 0; a < accounts.size(); a++) {
+                if (rows[a] == 0) continue;
+                BankAccount acc = accounts.get(a);
+                PageArchive arch = archives[a];
+                acc.acquire();
+                try {
+                    acc.log().archive(arch);
+                    if (acc.log().size() == rows[a]) {
+                        acc.log().rebind(f.new Pages(rows[a], arch == null ? 0 : arch.count(), table[a], dict[a], arch));
+                    }
+                } finally {
+                    acc.release();
+                }
+            }
+        }
+
+        /**
+         * Удаляет из каталога архива сегменты, на которые этот снимок не ссылается: счета, удалённые из книги
+         * (DROP, перенос на другой узел), и хвосты прерванных снимков. Только после подмены файла — до неё
+         * старый снимок ещё ссылается на сегменты удалённых счетов. Несработавшее удаление снимок не портит:
+         * сегмент просто дождётся следующего раза.
+         */
+        void reclaim(Path archive) {
+            if (!Files.isDirectory(archive)) return;
+            Set<String> live = new HashSet<>();
+            for (PageArchive arch : archives) if (arch != null && arch.in(archive)) arch.segmentFiles(live);
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(archive, "*.{seg,seg.tmp}")) {
+                for (Path f : ds) if (!live.contains(f.getFileName().toString())) Files.deleteIfExists(f);
+            } catch (IOException e) {
+                System.err.println("Не удалось убрать старые сегменты архива: " + e);
+            }
+        }
+    }
+
+    static Written write(AccountRepository repo, Path file) throws IOException {
+        return write(repo, file, archiveDir(file));
+    }
+
+    /** archive — каталог архива того имени, под которым файл будет открываться (file может быть временным). */
+    static Written write(AccountRepository repo, Path file, Path archive) throws IOException {
+        List<BankAccount> accounts = new ArrayList<>(repo.all());
+        int count = accounts.size();
+        long[] balance = new long[count], table = new long[count], dict = new long[count];
+        int[] rows = new int[count];
+        PageArchive[] archives = new PageArchive[count];
+        long cutoff = PageArchive.cutoffMicros();
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            Out out = new Out(ch, HEADER);
+            Enc body = new Enc(), frame = new Enc();
+            for (int a = 0; a < count; a++) {
+                BankAccount acc = accounts.get(a);
+                TransactionLog log = acc.log();
+                // баланс и число строк берутся под замком счёта — из одного момента; строки до n уже не меняются
+                acc.acquire();
+                try {
+                    balance[a] = acc.balance().minor();
+                    rows[a] = log.size();
+                    archives[a] = log.archive();
+                } finally {
+                    acc.release();
+                }
+                int n = rows[a];
+                if (n == 0) continue;
+                // снимок пишется под другим именем — у него свой архив, старые сегменты туда не переносятся, а пишутся заново
+                if (archives[a] != null && !archives[a].in(archive)) archives[a] = null;
+                int archived = archives[a] == null ? 0 : archives[a].count();
+                int first = PageArchive.archivable(log, n, archived, cutoff);
+                if (first > archived) archives[a] = PageArchive.append(archives[a], archive, acc.id(), log, archived, first);
+                Pages cold = log.cold();
+                boolean copy = cold != null && cold.current();
+                int pages = (n + TransactionLog.MASK) >>> TransactionLog.CHUNK_BITS;
+                ByteBuffer entries = ByteBuffer.allocate((pages - first) * TABLE_ENTRY + 4);
+                for (int p = first; p < pages; p++) {
+                    int from = p << TransactionLog.CHUNK_BITS, r = Math.min(TransactionLog.CHUNK, n - from);
+                    if (copy && log.resident(p) == null && p >= cold.first() && p < cold.count() && cold.rows(p) == r) {
+                        long offset = out.record(cold.raw(p));
+                        ByteBuffer e = cold.rawEntry(p);
+                        entries.putLong(offset);
+                        e.position(e.position() + 8);
+                        entries.put(e);
+                        continue;
+                    }
+                    TransactionLog.Chunk c = log.chunk(p);
+                    body.reset();
+                    encodePage(c, r, body);
+                    long min = Long.MAX_VALUE, max = Long.MIN_VALUE, mask = 0;
+                    for (int i = 0; i < r; i++) {
+                        min = Math.min(min, c.amounts[i]);
+                        max = Math.max(max, c.amounts[i]);
+                        mask |= 1L << c.types[i];
+                    }
+                    entries.putLong(out.record(frame.frame(body)));
+                    entries.putLong(c.micros[0]).putLong(c.micros[r - 1]).putLong(min).putLong(max).putLong(mask);
+                }
+                String[] d = log.loadedDictionary();
+                if (d == null && copy) {
+                    dict[a] = out.record(cold.rawDictionary());
+                } else {
+                    d = log.dictionary();
+                    int dn = 0;
+                    while (dn < d.length && d[dn] != null) dn++;
+                    body.reset();
+                    body.varLong(dn);
+                    for (int i = 0; i < dn; i++) body.string(d[i]);
+                    dict[a] = out.record(frame.frame(body));
+                }
+                CRC32 crc = new CRC32();
+                crc.update(entries.array(), 0, entries.position());
+                entries.putInt((int) crc.getValue());
+                entries.flip();
+                table[a] = out.record(entries);
+            }
+
+            // банков и BIC мало, а счетов миллионы — в каталоге только их номера
+            Map<String, Integer> names = new LinkedHashMap<>();
+            for (BankAccount acc : accounts) {
+                names.putIfAbsent(acc.bic(), names.size());
+                names.putIfAbsent(acc.bankName(), names.size());
+            }
+            body.reset();
+            body.varLong(names.size());
+            for (String s : names.keySet()) body.string(s);
+            long namesAt = out.record(frame.frame(body));
+
+            long directory = out.position();
+            for (int a = 0; a < count; a++) {
+                BankAccount acc = accounts.get(a);
+                body.reset();
+                body.id(acc.id()).string(acc.iban()).varLong(names.get(acc.bic())).varLong(names.get(acc.bankName()))
+                        .string(acc.ownerName()).zigzag(balance[a]).varLong(rows[a]).int64(table[a]).int64(dict[a]);
+                PageArchive.writeRef(body, archives[a]);
+                long at = out.record(frame.frame(body));
+                if (a == 0) directory = at;
+            }
+            out.flush();
+
+            ByteBuffer h = ByteBuffer.allocate(HEADER);
+            h.putLong(MAGIC).putInt(VERSION).putInt(count).putLong(directory).putLong(namesAt);
+            CRC32 crc = new CRC32();
+            crc.update(h.array(), 0, h.position());
+            h.putInt((int) crc.getValue()).flip();
+            while (h.hasRemaining()) ch.write(h, h.position());
+            ch.force(true);
+        }
+        return new Written(accounts, rows, table, dict, archives);
+    }
+
+    // страница: первое время, приращения времени, суммы zigzag, затем описание и тип одним varint
+    static void encodePage(TransactionLog.Chunk c, int r, Enc body) {
+        body.zigzag(c.micros[0]);
+        for (int i = 1; i < r; i++) body.varLong(c.micros[i] - c.micros[i - 1]);
+        for (int i = 0; i < r; i++) body.zigzag(c.amounts[i]);
+        for (int i = 0; i < r; i++) body.varLong((long) c.descr[i] * TYPE_COUNT + c.types[i]);
+    }
+
+    static void decodePage(Dec d, TransactionLog.Chunk c, int n) {
+        long t = d.zigzag();
+        c.micros[0] = t;
+        for (int i = 1; i < n; i++) c.micros[i] = t += d.varLong();
+        for (int i = 0; i < n; i++) c.amounts[i] = d.zigzag();
+        for (int i = 0; i < n; i++) {
+            long v = d.varLong();
+            c.descr[i] = (int) (v / TYPE_COUNT);
+            c.types[i] = (byte) (v % TYPE_COUNT);
+        }
+    }
+
+    private static String readString(ByteBuffer b) {
+        int len = b.getInt();
+        byte[] bytes = new byte[len];
+        b.get(b.position(), bytes);
+        b.position(b.position() + len);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** Растущий буфер одной записи: varint, zigzag, строки с длиной-varint. */
+    static final class Enc {
+        private byte[] a = new byte[1 << 16];
+        private int n;
+
+        void reset() { n = 0; }
+        byte[] array() { return a; }
+        int size() { return n; }
+
+        private void ensure(int more) {
+            if (n + more > a.length) a = Arrays.copyOf(a, Math.max(a.length * 2, n + more));
+        }
+
+        Enc varLong(long v) {
+            ensure(10);
+            while ((v & ~0x7FL) != 0) {
+                a[n++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            a[n++] = (byte) v;
+            return this;
+        }
+
+        Enc zigzag(long v) { return varLong((v << 1) ^ (v >> 63)); }
+
+        Enc int64(long v) {
+            ensure(8);
+            for (int s = 56; s >= 0; s -= 8) a[n++] = (byte) (v >>> s);
+            return this;
+        }
+
+        private Enc int32(int v) {
+            ensure(4);
+            for (int s = 24; s >= 0; s -= 8) a[n++] = (byte) (v >>> s);
+            return this;
+        }
+
+        Enc bytes(byte[] b, int off, int len) {
+            ensure(len);
+            System.arraycopy(b, off, a, n, len);
+            n += len;
+            return this;
+        }
+
+        Enc string(String s) {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            varLong(b.length);
+            return bytes(b, 0, b.length);
+        }
+
+        // id у нас UUID — 16 байт вместо 36 символов; на всякий случай строкой, если это не UUID
+        Enc id(String id) {
+            try {
+                UUID u = UUID.fromString(id);
+                if (u.toString().equals(id)) {
+                    ensure(1);
+                    a[n++] = 0;
+                    return int64(u.getMostSignificantBits()).int64(u.getLeastSignificantBits());
+                }
+            } catch (IllegalArgumentException ignored) {
+                // не UUID — ниже строкой
+            }
+            ensure(1);
+            a[n++] = 1;
+            return string(id);
+        }
+
+        /** Эта запись становится рамкой вокруг body: [varint длина][тело][crc32]. */
+        ByteBuffer frame(Enc body) {
+            reset();
+            varLong(body.n);
+            bytes(body.a, 0, body.n);
+            CRC32 crc = new CRC32();
+            crc.update(body.a, 0, body.n);
+            int32((int) crc.getValue());
+            return ByteBuffer.wrap(a, 0, n);
+        }
+    }
+
+    /** Чтение тела записи, обратное {@link Enc}. */
+    static final class Dec {
+        private final byte[] a;
+        private int p;
+
+        Dec(byte[] a) { this.a = a; }
+
+        long varLong() {
+            long v = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte x = a[p++];
+                v |= (long) (x & 0x7F) << shift;
+                if (x >= 0) return v;
+            }
+        }
+
+        int varInt() { return (int) varLong(); }
+
+        long zigzag() {
+            long v = varLong();
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        long int64() {
+            long v = 0;
+            for (int i = 0; i < 8; i++) v = v << 8 | (a[p++] & 0xFF);
+            return v;
+        }
+
+        String string() {
+            int len = varInt();
+            String s = new String(a, p, len, StandardCharsets.UTF_8);
+            p += len;
+            return s;
+        }
+
+        String id() {
+            if (a[p++] == 1) return string();
+            return new UUID(int64(), int64()).toString();
+        }
+    }
+
+    /** Буферизованная запись с учётом границ регионов. */
+    private static final class Out {
+        private final FileChannel ch;
+        private final ByteBuffer buf = ByteBuffer.allocateDirect(1 << 20);
+        private long flushed; // смещение в файле, с которого начинается содержимое buf
+
+        Out(FileChannel ch, long start) {
+            this.ch = ch;
+            this.flushed = start;
+        }
+
+        long position() { return flushed + buf.position(); }
+
+        /** Пишет запись целиком в один регион и возвращает её смещение. */
+        long record(ByteBuffer rec) throws IOException {
+            int len = rec.remaining();
+            if (len > REGION) throw new IOException("Запись снимка больше региона: " + len + " байт");
+            long left = REGION - (position() & (REGION - 1));
+            // не влезает — добиваю регион нулями; нулевая длина в каталоге означает «читай со следующего региона»
+            if (len > left) put(ByteBuffer.allocate((int) left));
+            long at = position();
+            put(rec);
+            return at;
+        }
+
+        private void put(ByteBuffer rec) throws IOException {
+            while (rec.hasRemaining()) {
+                if (!buf.hasRemaining()) flush();
+                int n = Math.min(buf.remaining(), rec.remaining());
+                ByteBuffer part = rec.duplicate();
+                part.limit(part.position() + n);
+                buf.put(part);
+                rec.position(rec.position() + n);
+            }
+        }
+
+        void flush() throws IOException {
+            buf.flip();
+            while (buf.hasRemaining()) flushed += ch.write(buf, flushed);
+            buf.clear();
+        }
+    }
+}
+
+/** Общий LRU-кэш раскодированных страниц на все открытые файлы снимков одного хранилища. */
+final class PageCache {
+    private final Map<Long, TransactionLog.Chunk> pages;
+
+    PageCache(int capacity) {
+        pages = new LinkedHashMap<>(capacity * 2, 0.75f, true) {
+            @Override protected boolean removeEldestEntry(Map.Entry<Long, TransactionLog.Chunk> e) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    synchronized TransactionLog.Chunk get(long key) { return pages.get(key); }
+
+    // раскодирую вне замка: два потока могут сделать это дважды, не страшно — останется первая копия
+    synchronized TransactionLog.Chunk putIfAbsent(long key, TransactionLog.Chunk c) {
+        TransactionLog.Chunk prev = pages.putIfAbsent(key, c);
+        return prev != null ? prev : c;
+    }
+}
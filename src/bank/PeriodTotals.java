@@ -0,0 +1,26 @@
+package bank;
+
+/** Суммы и число пополнений и списаний за период, в копейках. */
+final class PeriodTotals {
+    static final PeriodTotals ZERO = new PeriodTotals(0, 0, 0, 0);
+
+    final long depositMinor;
+    final int deposits;
+    final long withdrawMinor;
+    final int withdrawals;
+
+    PeriodTotals(long depositMinor, int deposits, long withdrawMinor, int withdrawals) {
+        this.depositMinor = depositMinor;
+        this.deposits = deposits;
+        this.withdrawMinor = withdrawMinor;
+        this.withdrawals = withdrawals;
+    }
+
+    PeriodTotals minus(PeriodTotals o) {
+        return new PeriodTotals(depositMinor - o.depositMinor, deposits - o.deposits,
+                withdrawMinor - o.withdrawMinor, withdrawals - o.withdrawals);
+    }
+
+    long netMinor() { return depositMinor - withdrawMinor; }
+    long turnoverMinor() { return depositMinor + withdrawMinor; }
+}
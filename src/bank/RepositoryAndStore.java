@@ -1,134 +1,564 @@
 package bank;
 
 import java.io.*;
-import java.math.BigDecimal;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 class AccountRepository implements Serializable {
     private static final long serialVersionUID = 1L;
 
-    private final Map<String, BankAccount> byId = new HashMap<>();
-    private final Map<String, String> byIban = new HashMap<>();
-    private final Map<String, Set<String>> byBic = new HashMap<>();
-    private final Map<String, Set<String>> byOwner = new HashMap<>();
-    private final Map<String, Set<String>> byBank = new HashMap<>();
+    // все индексы конкурентные: чтение без блокировок, запись не останавливает остальные счета
+    private Map<String, BankAccount> byId = new ConcurrentHashMap<>();
+    // внутри репозитория счёт — плотный номер (handle) в массиве; вторичные индексы хранят номера, а не строки id
+    private transient volatile BankAccount[] handles = new BankAccount[1024];
+    private transient int handleCount; // под synchronized(this)
+    private transient Map<String, BankAccount> byIban = new ConcurrentHashMap<>();
+    private transient Map<String, HandleSet> byBic = new ConcurrentHashMap<>();
+    private transient Map<String, HandleSet> byOwner = new ConcurrentHashMap<>();
+    private transient Map<String, HandleSet> byBank = new ConcurrentHashMap<>();
+    // индексы подстрок по ключам этих карт; восстанавливаются при загрузке, в файл не пишутся
+    private transient TrigramIndex ownerText = new TrigramIndex();
+    private transient TrigramIndex bankText = new TrigramIndex();
+    private transient TrigramIndex ibanText = new TrigramIndex();
+    private transient TrigramIndex bicText = new TrigramIndex();
+    private transient List<RepositoryListener> listeners = new CopyOnWriteArrayList<>();
 
     public Collection<BankAccount> all() { return byId.values(); }
 
     public BankAccount add(BankAccount acc) {
+        byIban.put(acc.iban(), acc);
+        return publish(acc);
+    }
+
+    /**
+     * Добавить счёт, только если его IBAN ещё свободен; null — счёт с таким IBAN уже есть.
+     * IBAN занимается putIfAbsent до всего остального, так что из двух одновременных открытий проходит одно.
+     */
+    public BankAccount addIfAbsent(BankAccount acc) {
+        if (byIban.putIfAbsent(acc.iban(), acc) != null) return null;
+        return publish(acc);
+    }
+
+    private BankAccount publish(BankAccount acc) {
         byId.put(acc.id(), acc);
-        byIban.put(acc.iban(), acc.id());
-        index(byBic, acc.bic(), acc.id());
-        index(byOwner, acc.ownerName().toLowerCase(Locale.ROOT), acc.id());
-        index(byBank, acc.bankName().toLowerCase(Locale.ROOT), acc.id());
+        register(acc);
+        reindex(acc);
+        acc.attach(this);
+        for (RepositoryListener l : listeners) l.accountAdded(acc);
+        fireCommit();
         return acc;
     }
 
+    /** Массовая загрузка (импорт): сначала все счета в byId, потом вторичные индексы одним параллельным проходом. */
+    public void addAll(Collection<BankAccount> accounts) {
+        for (BankAccount acc : accounts) {
+            byId.put(acc.id(), acc);
+            register(acc);
+        }
+        accounts.parallelStream().forEach(acc -> {
+            reindex(acc);
+            acc.attach(this);
+        });
+        for (RepositoryListener l : listeners) l.bulkLoaded(accounts);
+    }
+
+    /**
+     * Убрать счёт из книги (он переехал на другой узел). Номер счёта больше не выдаётся, ячейка обнуляется,
+     * поэтому поиск, который успел взять номер из индекса до удаления, его пропускает.
+     */
+    public void remove(BankAccount acc) {
+        if (!byId.remove(acc.id(), acc)) return;
+        byIban.remove(acc.iban(), acc);
+        unindex(byBic, acc.bic(), acc.handle());
+        unindex(byOwner, acc.ownerName().toLowerCase(Locale.ROOT), acc.handle());
+        unindex(byBank, acc.bankName().toLowerCase(Locale.ROOT), acc.handle());
+        synchronized (this) {
+            handles[acc.handle()] = null;
+        }
+        for (RepositoryListener l : listeners) l.accountRemoved(acc);
+        fireCommit();
+    }
+
+    // номер выдаётся один раз; массив публикуется через volatile уже с записанным счётом
+    private synchronized void register(BankAccount acc) {
+        BankAccount[] h = handles;
+        int k = acc.handle();
+        if (k < handleCount && h[k] == acc) return;
+        if (handleCount == h.length) h = Arrays.copyOf(h, h.length * 2);
+        h[handleCount] = acc;
+        acc.handle(handleCount++);
+        handles = h;
+    }
+
+    /** Счёт по внутреннему номеру из вторичных индексов. */
+    BankAccount account(int handle) { return handles[handle]; }
+
+    public void addListener(RepositoryListener l) { listeners.add(l); }
+    public void removeListener(RepositoryListener l) { listeners.remove(l); }
+
+    void firePosted(BankAccount acc, int index) {
+        for (RepositoryListener l : listeners) l.posted(acc, index);
+    }
+
+    void fireCommit() {
+        if (!deferCommit.get()) commitNow();
+    }
+
+    void commitNow() {
+        for (RepositoryListener l : listeners) l.commit();
+    }
+
+    // pipelining на сервере: операции пачки не ждут fsync по одной, поток вызывает commitNow() перед отправкой ответов
+    private static final ThreadLocal<Boolean> deferCommit = ThreadLocal.withInitial(() -> false);
+
+    void deferCommits(boolean on) {
+        if (on) deferCommit.set(true); else deferCommit.remove();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        listeners = new CopyOnWriteArrayList<>();
+        // старые файлы хранят HashMap; вторичные индексы в файл не пишутся (в старых они есть — поток их пропускает),
+        // пересобираю их по byId
+        byId = new ConcurrentHashMap<>(byId);
+        handles = new BankAccount[Math.max(1024, Integer.highestOneBit(byId.size()) * 2)];
+        byIban = new ConcurrentHashMap<>();
+        byBic = new ConcurrentHashMap<>();
+        byOwner = new ConcurrentHashMap<>();
+        byBank = new ConcurrentHashMap<>();
+        ownerText = new TrigramIndex();
+        bankText = new TrigramIndex();
+        ibanText = new TrigramIndex();
+        bicText = new TrigramIndex();
+        for (BankAccount acc : byId.values()) {
+            register(acc);
+            reindex(acc);
+            acc.attach(this);
+        }
+    }
+
     public Optional<BankAccount> getById(String id) { return Optional.ofNullable(byId.get(id)); }
-    public Optional<BankAccount> getByIban(String iban) {
-        String id = byIban.get(iban);
-        return id == null ? Optional.empty() : Optional.ofNullable(byId.get(id));
+    public Optional<BankAccount> getByIban(String iban) { return Optional.ofNullable(byIban.get(iban)); }
+
+    private BankAccount requireIban(String iban) {
+        return getByIban(iban).orElseThrow(() -> new IllegalArgumentException("Нет счёта с IBAN " + iban));
     }
 
-    private static void index(Map<String, Set<String>> map, String key, String id) {
-        map.computeIfAbsent(key, k -> new HashSet<>()).add(id);
+    /** Атомарный перевод: оба счёта блокируются в порядке номеров, поэтому встречные переводы не встают в deadlock. */
+    public void transfer(String fromIban, String toIban, Money amount, String description) {
+        BankAccount from = requireIban(fromIban), to = requireIban(toIban);
+        if (from == to) throw new IllegalArgumentException("Нельзя перевести на тот же счёт");
+        BankAccount.checkPositive(amount);
+        long t0 = Metrics.TRANSFER.start();
+        try {
+            BankAccount first = from.handle() < to.handle() ? from : to;
+            BankAccount second = first == from ? to : from;
+            first.acquire();
+            second.acquire();
+            try {
+                applyTransfer(from, to, amount.minor(), description, TransactionLog.toMicros(LocalDateTime.now()));
+            } finally {
+                second.release();
+                first.release();
+            }
+            fireCommit();
+        } finally {
+            Metrics.TRANSFER.stop(t0);
+        }
+    }
+
+    /**
+     * Пачка переводов: все затронутые счета блокируются один раз (по возрастанию номеров), переводы применяются
+     * по порядку, а журнал ждёт один fsync на всю пачку. Возвращает ошибки по позициям, null — перевод прошёл.
+     */
+    public List<String> transferAll(List<Transfer> batch) {
+        int n = batch.size();
+        BankAccount[] from = new BankAccount[n], to = new BankAccount[n];
+        String[] errors = new String[n];
+        TreeMap<Integer, BankAccount> involved = new TreeMap<>();
+        for (int i = 0; i < n; i++) {
+            Transfer t = batch.get(i);
+            from[i] = getByIban(t.fromIban).orElse(null);
+            to[i] = getByIban(t.toIban).orElse(null);
+            if (from[i] == null || to[i] == null) {
+                errors[i] = "Нет счёта с IBAN " + (from[i] == null ? t.fromIban : t.toIban);
+                continue;
+            }
+            involved.put(from[i].handle(), from[i]);
+            involved.put(to[i].handle(), to[i]);
+        }
+        List<BankAccount> locked = new ArrayList<>(involved.size());
+        try {
+            for (BankAccount acc : involved.values()) { acc.acquire(); locked.add(acc); }
+            for (int i = 0; i < n; i++) {
+                if (errors[i] != null) continue;
+                Transfer t = batch.get(i);
+                try {
+                    if (from[i] == to[i]) throw new IllegalArgumentException("Нельзя перевести на тот же счёт");
+                    BankAccount.checkPositive(t.amount);
+                    applyTransfer(from[i], to[i], t.amount.minor(), t.description, TransactionLog.toMicros(LocalDateTime.now()));
+                } catch (IllegalArgumentException | InsufficientFundsException | ArithmeticException e) {
+                    errors[i] = e.getMessage();
+                }
+            }
+        } finally {
+            for (int i = locked.size() - 1; i >= 0; i--) locked.get(i).release();
+        }
+        fireCommit();
+        return Arrays.asList(errors);
+    }
+
+    // под замками обоих счетов; обе проверки (переполнение у получателя, остаток у отправителя)
+    // бросают исключение раньше, чем что-то поменяется
+    private void applyTransfer(BankAccount from, BankAccount to, long amount, String description, long micros) {
+        to.checkCredit(amount);
+        int out = from.debit(amount, micros, description);
+        int in = to.credit(amount, micros, description);
+        fireTransferred(from, out, to, in);
+    }
+
+    void fireTransferred(BankAccount from, int fromIndex, BankAccount to, int toIndex) {
+        for (RepositoryListener l : listeners) l.transferred(from, fromIndex, to, toIndex);
+    }
+
+    static final class Transfer {
+        final String fromIban;
+        final String toIban;
+        final Money amount;
+        final String description;
+
+        Transfer(String fromIban, String toIban, Money amount, String description) {
+            this.fromIban = fromIban;
+            this.toIban = toIban;
+            this.amount = amount;
+            this.description = description;
+        }
+    }
+
+    private void reindex(BankAccount acc) {
+        String owner = acc.ownerName().toLowerCase(Locale.ROOT), bank = acc.bankName().toLowerCase(Locale.ROOT);
+        byIban.put(acc.iban(), acc);
+        index(byBic, acc.bic(), acc.handle());
+        index(byOwner, owner, acc.handle());
+        index(byBank, bank, acc.handle());
+        // ключ попадает в текстовый индекс после карты, так что найденный по подстроке ключ уже разрешается в счета
+        ibanText.add(acc.iban());
+        bicText.add(acc.bic());
+        ownerText.add(owner);
+        bankText.add(bank);
+    }
+
+    private static void index(Map<String, HandleSet> map, String key, int handle) {
+        map.computeIfAbsent(key, k -> new HandleSet()).add(handle);
+    }
+
+    // ключ в текстовом индексе остаётся: пустое множество по нему просто ничего не даёт
+    private static void unindex(Map<String, HandleSet> map, String key, int handle) {
+        HandleSet set = map.get(key);
+        if (set != null) set.remove(handle);
     }
 
     public List<BankAccount> searchAccounts(String iban, String bic, String ownerSubstr, String bankSubstr) {
-        // тут я строю множество кандидатов от самого узкого критерия к более широким
-        Set<String> candidateIds = null;
+        long t0 = Metrics.SEARCH_ACCOUNTS.start();
+        try {
+            return findAccounts(iban, bic, ownerSubstr, bankSubstr);
+        } finally {
+            Metrics.SEARCH_ACCOUNTS.stop(t0);
+        }
+    }
+
+    private List<BankAccount> findAccounts(String iban, String bic, String ownerSubstr, String bankSubstr) {
+        // тут я строю множество кандидатов от самого узкого критерия к более широким;
+        // кандидаты — отсортированный массив номеров счетов
+        int[] candidates = null;
 
         if (iban != null && !iban.isBlank()) {
-            String id = byIban.get(iban);
-            candidateIds = (id == null) ? Set.of() : Set.of(id);
+            BankAccount acc = byIban.get(iban);
+            candidates = acc == null ? new int[0] : new int[]{acc.handle()};
         }
         if (bic != null && !bic.isBlank()) {
-            candidateIds = intersect(candidateIds, byBic.getOrDefault(bic, Set.of()));
+            HandleSet set = byBic.get(bic);
+            candidates = intersect(candidates, set == null ? new int[0] : set.toArray());
         }
         if (ownerSubstr != null && !ownerSubstr.isBlank()) {
             String key = ownerSubstr.toLowerCase(Locale.ROOT);
-            candidateIds = filterBySubstring(candidateIds, byOwner, key);
+            candidates = filterBySubstring(candidates, byOwner, ownerText, key, BankAccount::ownerName);
         }
         if (bankSubstr != null && !bankSubstr.isBlank()) {
             String key = bankSubstr.toLowerCase(Locale.ROOT);
-            candidateIds = filterBySubstring(candidateIds, byBank, key);
+            candidates = filterBySubstring(candidates, byBank, bankText, key, BankAccount::bankName);
         }
-        if (candidateIds == null) return new ArrayList<>(byId.values());
+        if (candidates == null) return new ArrayList<>(byId.values());
 
-        List<BankAccount> res = new ArrayList<>();
-        for (String id : candidateIds) {
-            BankAccount acc = byId.get(id);
+        List<BankAccount> res = new ArrayList<>(candidates.length);
+        for (int h : candidates) {
+            BankAccount acc = account(h);
             if (acc != null) res.add(acc);
         }
         return res;
     }
 
-    private static Set<String> intersect(Set<String> acc, Set<String> next) {
-        if (acc == null) return new HashSet<>(next);
-        Set<String> r = new HashSet<>(acc);
-        r.retainAll(next);
-        return r;
+    private static int[] intersect(int[] acc, int[] next) {
+        return acc == null ? next : HandleSet.intersect(acc, next);
     }
 
-    private static Set<String> filterBySubstring(Set<String> acc, Map<String, Set<String>> index, String substr) {
-        Set<String> hits = new HashSet<>();
-        for (var e : index.entrySet()) if (e.getKey().contains(substr)) hits.addAll(e.getValue());
-        return intersect(acc, hits);
+    // кандидатов уже немного — дешевле проверить поле у них самих, чем собирать всех, у кого подстрока есть
+    private static final int DIRECT_FILTER = 256;
+
+    private int[] filterBySubstring(int[] acc, Map<String, HandleSet> index, TrigramIndex text, String substr,
+                                    java.util.function.Function<BankAccount, String> field) {
+        if (acc != null && acc.length <= DIRECT_FILTER) {
+            int w = 0;
+            for (int h : acc) {
+                BankAccount a = account(h);
+                if (a != null && field.apply(a).toLowerCase(Locale.ROOT).contains(substr)) acc[w++] = h;
+            }
+            return Arrays.copyOf(acc, w);
+        }
+        List<HandleSet> hits = new ArrayList<>();
+        for (String key : text.matching(substr)) {
+            HandleSet set = index.get(key);
+            if (set != null) hits.add(set);
+        }
+        return intersect(acc, hits.isEmpty() ? new int[0] : HandleSet.union(hits));
+    }
+
+    /** Поиск «по любому полю»: подстрока во владельце, банке, IBAN или BIC (без учёта регистра). */
+    public List<BankAccount> searchAny(String substr) {
+        long t0 = Metrics.SEARCH_ACCOUNTS.start();
+        try {
+            return findAny(substr);
+        } finally {
+            Metrics.SEARCH_ACCOUNTS.stop(t0);
+        }
+    }
+
+    private List<BankAccount> findAny(String substr) {
+        if (substr == null || substr.isBlank()) return new ArrayList<>(byId.values());
+        // повторы отсекаются битовой картой по номерам, порядок полей сохраняется
+        BitSet seen = new BitSet();
+        List<BankAccount> res = new ArrayList<>();
+        for (TrigramIndex text : List.of(ownerText, bankText, bicText)) {
+            Map<String, HandleSet> index = text == ownerText ? byOwner : text == bankText ? byBank : byBic;
+            for (String key : text.matching(substr)) {
+                HandleSet set = index.get(key);
+                if (set == null) continue;
+                for (int h : set.toArray()) {
+                    BankAccount acc = account(h);
+                    if (acc != null && !seen.get(h)) { seen.set(h); res.add(acc); }
+                }
+            }
+        }
+        for (String key : ibanText.matching(substr)) {
+            BankAccount acc = byIban.get(key);
+            if (acc != null && !seen.get(acc.handle())) { seen.set(acc.handle()); res.add(acc); }
+        }
+        return res;
+    }
+
+    /**
+     * Лучшие limit счетов по строке поиска, по тем же индексам, что и searchAny, но без сбора всех совпадений.
+     * Порядок: точный IBAN, владельцы, банки, BIC, IBAN по подстроке; внутри поля сначала ключи,
+     * которые с запроса начинаются (короткие раньше). Найденное отдаётся в sink пачками по мере готовности;
+     * sink вернул false — поиск прекращается (запрос устарел).
+     */
+    public void searchTop(String substr, int limit, java.util.function.Predicate<List<BankAccount>> sink) {
+        long t0 = Metrics.SEARCH_ACCOUNTS.start();
+        try {
+            findTop(substr, limit, sink);
+        } finally {
+            Metrics.SEARCH_ACCOUNTS.stop(t0);
+        }
+    }
+
+    private void findTop(String substr, int limit, java.util.function.Predicate<List<BankAccount>> sink) {
+        TopMatches top = new TopMatches(limit, sink);
+        String q = substr == null ? "" : substr.trim();
+        if (q.isEmpty()) { // без запроса — просто первые limit, а не копия всех счетов
+            for (BankAccount acc : byId.values()) if (!top.add(acc)) break;
+            top.flush();
+            return;
+        }
+        String lower = q.toLowerCase(Locale.ROOT);
+        BankAccount exact = byIban.get(q);
+        if (exact == null) exact = byIban.get(q.toUpperCase(Locale.ROOT));
+        if (exact != null) top.add(exact);
+        if (!top.flush()) return;
+        for (TrigramIndex text : List.of(ownerText, bankText, bicText, ibanText)) {
+            for (String key : ranked(text.matching(lower), lower)) {
+                if (text == ibanText) {
+                    BankAccount acc = byIban.get(key);
+                    if (acc != null && !top.add(acc)) break;
+                    continue;
+                }
+                HandleSet set = (text == ownerText ? byOwner : text == bankText ? byBank : byBic).get(key);
+                if (set == null) continue;
+                boolean more = true;
+                for (int h : set.toArray()) if (!(more = top.add(account(h)))) break;
+                if (!more) break;
+            }
+            if (!top.flush()) return;
+        }
+    }
+
+    // совпадения с начала ключа — вперёд, среди них короткие раньше; остальные в порядке индекса
+    private static List<String> ranked(List<String> keys, String lower) {
+        List<String> head = new ArrayList<>(), rest = new ArrayList<>();
+        for (String k : keys) (k.toLowerCase(Locale.ROOT).startsWith(lower) ? head : rest).add(k);
+        head.sort(Comparator.comparingInt(String::length));
+        head.addAll(rest);
+        return head;
+    }
+
+    // накопитель для searchTop: без повторов, не больше limit, пачки уходят в sink
+    private static final class TopMatches {
+        private final int limit;
+        private final java.util.function.Predicate<List<BankAccount>> sink;
+        private final BitSet seen = new BitSet();
+        private int count;
+        private List<BankAccount> batch = new ArrayList<>();
+        private boolean open = true;
+
+        TopMatches(int limit, java.util.function.Predicate<List<BankAccount>> sink) {
+            this.limit = limit;
+            this.sink = sink;
+        }
+
+        // false — больше не нужно: набрали limit
+        boolean add(BankAccount acc) {
+            if (count >= limit) return false;
+            if (acc != null && !seen.get(acc.handle())) {
+                seen.set(acc.handle());
+                batch.add(acc);
+                count++;
+            }
+            return count < limit;
+        }
+
+        // false — дальше искать незачем: набрали limit или получатель отказался
+        boolean flush() {
+            if (open && !batch.isEmpty()) {
+                open = sink.test(batch);
+                batch = new ArrayList<>();
+            }
+            return open && count < limit;
+        }
     }
 
     public List<Transaction> searchTransactions(String accountId,
                                                 TransactionType type,
                                                 LocalDateTime from,
                                                 LocalDateTime to,
-                                                BigDecimal min,
-                                                BigDecimal max,
+                                                Money min,
+                                                Money max,
                                                 String descrSubstr) {
         BankAccount acc = byId.get(accountId);
         if (acc == null) return List.of();
 
-        List<Transaction> out = new ArrayList<>();
-        for (Transaction t : acc.transactions()) {
-            if (type != null && t.type() != type) continue;
-            if (from != null && t.timestamp().isBefore(from)) continue;
-            if (to != null && t.timestamp().isAfter(to)) continue;
-            if (min != null && t.amount().compareTo(min) < 0) continue;
-            if (max != null && t.amount().compareTo(max) > 0) continue;
-            if (descrSubstr != null && !descrSubstr.isBlank()
-                    && !t.description().toLowerCase(Locale.ROOT).contains(descrSubstr.toLowerCase(Locale.ROOT))) continue;
-            out.add(t);
+        long fromMicros = from == null ? Long.MIN_VALUE : TransactionLog.toMicros(from);
+        long toMicros = to == null ? Long.MAX_VALUE : TransactionLog.toMicros(to);
+        long minMinor = min == null ? Long.MIN_VALUE : min.minor();
+        long maxMinor = max == null ? Long.MAX_VALUE : max.minor();
+        String needle = descrSubstr == null || descrSubstr.isBlank() ? null : descrSubstr.toLowerCase(Locale.ROOT);
+        long t0 = Metrics.SEARCH_TRANSACTIONS.start();
+        try {
+            return acc.log().search(fromMicros, toMicros, type, minMinor, maxMinor, needle);
+        } finally {
+            Metrics.SEARCH_TRANSACTIONS.stop(t0);
+        }
+    }
+
+    /** Снимок всей книги для параллельных отчётов (группировки по банку/BIC/владельцу, объёмы по периодам). */
+    public Analytics analytics() { return new Analytics(this); }
+
+    /** Первые n счетов по обороту (пополнения + списания) за период; на счёт — два запроса к дневным итогам. */
+    public List<Map.Entry<BankAccount, Money>> topByTurnover(LocalDateTime from, LocalDateTime to, int n) {
+        long fromMicros = from == null ? Long.MIN_VALUE : TransactionLog.toMicros(from);
+        long toMicros = to == null ? Long.MAX_VALUE : TransactionLog.toMicros(to);
+        PriorityQueue<Map.Entry<BankAccount, Long>> top = new PriorityQueue<>(Map.Entry.comparingByValue());
+        for (BankAccount acc : byId.values()) {
+            long turnover = acc.totals(fromMicros, toMicros).turnoverMinor();
+            if (turnover == 0) continue;
+            if (top.size() < n) top.add(Map.entry(acc, turnover));
+            else if (n > 0 && top.peek().getValue() < turnover) {
+                top.poll();
+                top.add(Map.entry(acc, turnover));
+            }
+        }
+        List<Map.Entry<BankAccount, Money>> res = new ArrayList<>(top.size());
+        while (!top.isEmpty()) {
+            Map.Entry<BankAccount, Long> e = top.poll();
+            res.add(Map.entry(e.getKey(), Money.ofMinor(e.getValue())));
         }
-        return out;
+        Collections.reverse(res);
+        return res;
     }
 
     public void exportCsv(String accountId, Path path) {
         BankAccount acc = byId.get(accountId);
         if (acc == null) throw new IllegalArgumentException("Нет такого счёта");
-        DateTimeFormatter fmt = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
-        try (PrintWriter pw = new PrintWriter(Files.newBufferedWriter(path))) { // гарантируется закрытие файла
-            pw.println("timestamp;type;amount;description;iban;owner;bank");
-            for (Transaction t : acc.transactions()) {
-                pw.printf("%s;%s;%s;%s;%s;%s;%s%n",
-                        t.timestamp().format(fmt),
-                        t.type(),
-                        t.amount().toPlainString(),
-                        escape(t.description()),
-                        acc.iban(), acc.ownerName(), acc.bankName());
-            }
-        } catch (IOException e) {
-            throw new UncheckedIOException(e);
+        long t0 = System.nanoTime();
+        try {
+            new CsvExporter().export(List.of(acc), path);
+        } finally {
+            Metrics.EXPORT.record(System.nanoTime() - t0);
         }
     }
 
-    private static String escape(String s) { return s == null ? "" : s.replace(";", ","); }
+    /** Выгрузка всей книги: в один файл или (split) по файлу на счёт в каталоге path. Возвращает число строк. */
+    public long exportAllCsv(Path path, boolean split, boolean gzip, java.util.function.LongConsumer progress) {
+        List<BankAccount> accounts = new ArrayList<>(byId.values());
+        accounts.sort(Comparator.comparing(BankAccount::iban));
+        CsvExporter exporter = new CsvExporter(Runtime.getRuntime().availableProcessors(), gzip, progress);
+        long t0 = System.nanoTime();
+        try {
+            return split ? exporter.exportEach(accounts, path) : exporter.export(accounts, path);
+        } finally {
+            Metrics.EXPORT.record(System.nanoTime() - t0); // неудачная выгрузка тоже выгрузка
+        }
+    }
+}
+
+// подписчик на изменения репозитория; posted вызывается сразу после операции, commit — когда её можно считать завершённой
+interface RepositoryListener {
+    void accountAdded(BankAccount acc);
+    default void accountRemoved(BankAccount acc) {}
+    void posted(BankAccount acc, int index);
+    // перевод — одно событие, чтобы журнал мог записать обе ноги одной записью
+    default void transferred(BankAccount from, int fromIndex, BankAccount to, int toIndex) {
+        posted(from, fromIndex);
+        posted(to, toIndex);
+    }
+    default void commit() {}
+    // массовая загрузка; по умолчанию разворачивается в обычные события
+    default void bulkLoaded(Collection<BankAccount> accounts) {
+        for (BankAccount acc : accounts) {
+            accountAdded(acc);
+            for (int i = 0, n = acc.log().size(); i < n; i++) posted(acc, i);
+        }
+        commit();
+    }
 }
 
 interface DataStore {
     void save(AccountRepository repo);
     AccountRepository loadOrCreateEmpty();
+
+    /** Сохранение без ожидания; по умолчанию — обычное save в вызывающем потоке. */
+    default CompletableFuture<Void> saveAsync(AccountRepository repo) {
+        try {
+            save(repo);
+            return CompletableFuture.completedFuture(null);
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
 }
 
 class FileDataStore implements DataStore {
@@ -136,17 +566,29 @@ class FileDataStore implements DataStore {
     public FileDataStore(String filename) { this.filename = filename; }
 
     @Override public void save(AccountRepository repo) {
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(filename))) {
+        // пишу во временный файл и подменяю атомарно, чтобы падение посреди записи не портило старый снимок
+        long t0 = System.nanoTime();
+        Path tmp = Path.of(filename + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp.toFile());
+             ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(fos))) {
             oos.writeObject(repo);
+            oos.flush();
+            fos.getFD().sync();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Ошибка сохранения: " + filename, e);
+        }
+        try {
+            Files.move(tmp, Path.of(filename), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
         } catch (IOException e) {
             throw new UncheckedIOException("Ошибка сохранения: " + filename, e);
         }
+        Metrics.STORE_SAVE.record(System.nanoTime() - t0);
     }
 
     @Override public AccountRepository loadOrCreateEmpty() {
         File f = new File(filename);
         if (!f.exists()) return new AccountRepository();
-        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(filename))) {
+        try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(filename)))) {
             Object o = ois.readObject();
             return (AccountRepository) o;
         } catch (IOException | ClassNotFoundException e) {
@@ -0,0 +1,343 @@
+package bank;
+
+import java.io.*;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Сервер без интерфейса: строковый протокол поверх TCP, одна задача на соединение.
+ * Запрос — одна строка {@code КОМАНДА арг1;арг2;...}, ответ — {@code OK ...} или {@code ERR сообщение}.
+ * <pre>
+ * PING                                  OK PONG
+ * OPEN iban;bic;банк;владелец           OK id
+ * DEPOSIT iban;сумма[;описание]         OK баланс
+ * WITHDRAW iban;сумма[;описание]        OK баланс
+ * TRANSFER откуда;куда;сумма[;описание] OK
+ * BALANCE iban                          OK баланс
+ * SEARCH текст[;сколько]                OK n, затем n строк iban;bic;банк;владелец;баланс
+ * EXPORT iban                           OK, затем CSV как у экспорта и строка "."
+ * METRICS                               OK, затем метрики в формате Prometheus и строка "."
+ * QUIT                                  закрыть соединение
+ * </pre>
+ * Для переноса счетов между узлами ({@link ShardRouter}) — без потерь, с внутренним временем в микросекундах:
+ * <pre>
+ * IBANS                                 OK n, затем n строк iban
+ * HISTORY iban                          OK id;iban;bic;банк;владелец;n, затем n строк время;тип;сумма;описание
+ * RESTORE id;iban;bic;банк;владелец;n   за ним n строк как у HISTORY; OK — счёт создан вместе с историей
+ * DROP iban                             OK — счёт удалён с этого узла
+ * </pre>
+ * Запросы можно слать пачкой, не дожидаясь ответов (pipelining): ответы идут в том же порядке,
+ * а сбрасываются в сокет, только когда во входном буфере больше ничего нет — и перед этим один раз
+ * ждут fsync журнала за всю пачку, так что клиент не получает OK раньше, чем операция стала durable.
+ */
+final class BankServer implements Closeable {
+    static final int DEFAULT_PORT = 7070;
+    private static final int DEFAULT_SEARCH_LIMIT = 100;
+
+    private final AccountRepository repo;
+    private final CommandExecutor commands;
+    private final ServerSocket socket;
+    private final ExecutorService connections = perConnectionExecutor();
+    private final AtomicInteger open = new AtomicInteger();
+
+    BankServer(AccountRepository repo, int port) throws IOException {
+        this(repo, port, null);
+    }
+
+    /** С конвейером пополнения, снятия и переводы уходят в {@link LedgerPipeline}, ответ — после его fsync. */
+    BankServer(AccountRepository repo, int port, LedgerPipeline pipeline) throws IOException {
+        this.repo = repo;
+        this.commands = new CommandExecutor(repo, pipeline);
+        this.socket = new ServerSocket();
+        socket.setReuseAddress(true);
+        socket.bind(new InetSocketAddress(port), 4096); // большой backlog: клиенты подключаются тысячами разом
+    }
+
+    int port() { return socket.getLocalPort(); }
+    int openConnections() { return open.get(); }
+
+    /** Цикл приёма соединений; возвращается после close(). */
+    void serve() {
+        while (!socket.isClosed()) {
+            Socket s;
+            try {
+                s = socket.accept();
+            } catch (IOException e) {
+                if (socket.isClosed()) return;
+                continue;
+            }
+            open.incrementAndGet();
+            connections.execute(() -> {
+                try (s) {
+                    s.setTcpNoDelay(true);
+                    handle(s.getInputStream(), s.getOutputStream());
+                } catch (IOException ignored) {
+                    // клиент отвалился — его дело
+                } finally {
+                    open.decrementAndGet();
+                }
+            });
+        }
+    }
+
+    @Override public void close() throws IOException {
+        socket.close();
+        connections.shutdownNow();
+    }
+
+    /**
+     * Виртуальный поток на соединение, если JVM их умеет (Java 21+); иначе обычные потоки
+     * с маленьким стеком — на 17-й так держится несколько десятков тысяч соединений.
+     */
+    static ExecutorService perConnectionExecutor() {
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            AtomicInteger n = new AtomicInteger();
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(null, r, "bank-conn-" + n.incrementAndGet(), 256 * 1024);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    void handle(InputStream rawIn, OutputStream rawOut) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(rawIn, StandardCharsets.UTF_8), 16 * 1024);
+        BufferedOutputStream out = new BufferedOutputStream(rawOut, 16 * 1024);
+        StringBuilder sb = new StringBuilder(256);
+        repo.deferCommits(true);
+        try {
+            serve(in, out, sb);
+        } finally {
+            repo.commitNow();
+            repo.deferCommits(false);
+        }
+    }
+
+    private void serve(BufferedReader in, BufferedOutputStream out, StringBuilder sb) throws IOException {
+        String line;
+        while ((line = in.readLine()) != null) {
+            sb.setLength(0);
+            if (line.isBlank()) continue;
+            int sp = line.indexOf(' ');
+            String cmd = (sp < 0 ? line : line.substring(0, sp)).toUpperCase(Locale.ROOT);
+            String[] args = sp < 0 ? new String[0] : line.substring(sp + 1).split(";", -1);
+            if (cmd.equals("QUIT")) break;
+            try {
+                if (cmd.equals("EXPORT")) {
+                    export(args, out);
+                } else if (cmd.equals("IBANS")) {
+                    ibans(out);
+                } else if (cmd.equals("HISTORY")) {
+                    history(args, out);
+                } else if (cmd.equals("RESTORE")) {
+                    restore(args, in, sb);
+                } else if (cmd.equals("METRICS")) {
+                    out.write(("OK\n" + Metrics.prometheus() + ".\n").getBytes(StandardCharsets.UTF_8));
+                } else {
+                    execute(cmd, args, sb);
+                }
+            } catch (IllegalArgumentException | InsufficientFundsException | ArithmeticException | UncheckedIOException e) {
+                // UncheckedIOException — в том числе NotDurableException: клиент узнаёт, что операция не записана
+                CommandExecutor.error(sb, e);
+            }
+            if (sb.length() > 0) out.write(sb.append('\n').toString().getBytes(StandardCharsets.UTF_8));
+            if (!in.ready()) { // следующий запрос ещё не пришёл: один fsync на пачку и все ответы разом
+                repo.commitNow();
+                out.flush();
+            }
+        }
+        repo.commitNow();
+        out.flush();
+    }
+
+    // общие команды — в CommandExecutor, здесь только то, что есть лишь у сервера
+    private void execute(String cmd, String[] a, StringBuilder sb) {
+        if (commands.execute(cmd, a, sb)) return;
+        switch (cmd) {
+            case "SEARCH" -> {
+                int limit = a.length > 1 ? Integer.parseInt(a[1].trim()) : DEFAULT_SEARCH_LIMIT;
+                List<BankAccount> found = new ArrayList<>();
+                repo.searchTop(a.length > 0 ? a[0] : "", limit, found::addAll);
+                int n = found.size();
+                sb.append("OK ").append(n);
+                for (int i = 0; i < n; i++) {
+                    BankAccount acc = found.get(i);
+                    sb.append('\n').append(acc.iban()).append(';').append(acc.bic()).append(';')
+                            .append(acc.bankName()).append(';').append(acc.ownerName()).append(';');
+                    Money.appendTo(sb, acc.balance().minor());
+                }
+            }
+            case "DROP" -> {
+                CommandExecutor.need(a, 1);
+                repo.remove(account(a[0]));
+                sb.append("OK");
+            }
+            default -> throw new IllegalArgumentException("Неизвестная команда: " + cmd);
+        }
+    }
+
+    // CSV идёт прямо в сокет тем же кодировщиком, что и файловый экспорт; конец — строка "."
+    private void export(String[] a, BufferedOutputStream out) throws IOException {
+        CommandExecutor.need(a, 1);
+        BankAccount acc = account(a[0]);
+        out.write("OK\n".getBytes(StandardCharsets.US_ASCII));
+        new CsvExporter().export(List.of(acc), Channels.newChannel(out));
+        out.write(".\n".getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private void ibans(BufferedOutputStream out) throws IOException {
+        List<String> ibans = new ArrayList<>();
+        for (BankAccount acc : repo.all()) ibans.add(acc.iban());
+        out.write(("OK " + ibans.size() + "\n").getBytes(StandardCharsets.UTF_8));
+        for (String iban : ibans) out.write((iban + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    // история строками время;тип;сумма;описание — описание последним, так что ';' в нём не мешает
+    private void history(String[] a, BufferedOutputStream out) throws IOException {
+        CommandExecutor.need(a, 1);
+        BankAccount acc = account(a[0]);
+        TransactionLog log = acc.log();
+        int n = log.size();
+        StringBuilder sb = new StringBuilder(256).append("OK ").append(acc.id()).append(';').append(acc.iban()).append(';')
+                .append(acc.bic()).append(';').append(acc.bankName()).append(';').append(acc.ownerName()).append(';').append(n);
+        for (int i = 0; i < n; i++) {
+            if (sb.length() > 8192) {
+                out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+                sb.setLength(0);
+            }
+            sb.append('\n').append(log.micros(i)).append(';').append(log.type(i).ordinal()).append(';')
+                    .append(log.amountMinor(i)).append(';').append(CommandExecutor.oneLine(log.description(i)));
+        }
+        out.write(sb.append('\n').toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    // строки истории дочитываются до конца и при ошибке — иначе они ушли бы в разбор как команды
+    private void restore(String[] a, BufferedReader in, StringBuilder sb) throws IOException {
+        int n = a.length > 5 ? Integer.parseInt(a[5].trim()) : 0;
+        String[] lines = new String[n];
+        for (int i = 0; i < n; i++) if ((lines[i] = in.readLine()) == null) throw new EOFException();
+        CommandExecutor.need(a, 6);
+        long[] micros = new long[n], amounts = new long[n];
+        byte[] types = new byte[n];
+        String[] descr = new String[n];
+        for (int i = 0; i < n; i++) {
+            String[] f = lines[i].split(";", 4);
+            if (f.length < 4) throw new IllegalArgumentException("Неверная строка истории: " + lines[i]);
+            micros[i] = Long.parseLong(f[0]);
+            types[i] = Byte.parseByte(f[1]);
+            if (types[i] < 0 || types[i] >= TransactionType.values().length) throw new IllegalArgumentException("Неверный тип операции: " + f[1]);
+            amounts[i] = Long.parseLong(f[2]);
+            descr[i] = f[3];
+        }
+        String id = a[0].trim(), iban = a[1].trim();
+        if (repo.getById(id).isPresent()) throw new IllegalArgumentException("Счёт " + id + " уже есть");
+        BankAccount acc = new BankAccount(id, iban, a[2].trim(), a[3].trim(), a[4].trim());
+        acc.restoreAll(micros, amounts, types, descr, n);
+        // счёт виден с момента addIfAbsent, а история ещё не в журнале: под замком счёта встречный DEPOSIT
+        // подождёт, иначе его запись легла бы в журнал раньше восстановленных строк
+        acc.acquire();
+        try {
+            if (repo.addIfAbsent(acc) == null) throw new IllegalArgumentException("Счёт с IBAN " + iban + " уже есть");
+            for (int i = 0; i < n; i++) repo.firePosted(acc, i); // в журнал, иначе после рестарта узла история пропадёт
+        } finally {
+            acc.release();
+        }
+        sb.append("OK");
+    }
+
+    private BankAccount account(String iban) {
+        return commands.account(iban);
+    }
+}
+
+/**
+ * Генератор нагрузки для {@link BankServer}: каждое соединение открывает свой счёт и гонит пачки
+ * DEPOSIT по pipeline штук, не дожидаясь ответов внутри пачки. В конце — пропускная способность
+ * и перцентили времени ответа на пачку.
+ */
+final class LoadClient {
+    private final String host;
+    private final int port;
+
+    LoadClient(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    void run(int connections, int requestsPerConnection, int pipeline) throws InterruptedException {
+        ExecutorService pool = BankServer.perConnectionExecutor();
+        long[][] latencies = new long[connections][];
+        AtomicLong errors = new AtomicLong(), done = new AtomicLong();
+        String prefix = "LOAD-" + Long.toString(System.currentTimeMillis(), 36) + "-";
+        CountDownLatch finished = new CountDownLatch(connections);
+        long start = System.nanoTime();
+        for (int c = 0; c < connections; c++) {
+            int id = c;
+            pool.execute(() -> {
+                try {
+                    latencies[id] = connection(prefix + id, requestsPerConnection, pipeline, errors, done);
+                } catch (IOException e) {
+                    errors.incrementAndGet();
+                } finally {
+                    finished.countDown();
+                }
+            });
+        }
+        finished.await();
+        long elapsed = System.nanoTime() - start;
+        pool.shutdown();
+
+        long[] all = Arrays.stream(latencies).filter(Objects::nonNull).flatMapToLong(Arrays::stream).sorted().toArray();
+        System.out.printf("Соединений: %d, запросов: %d, ошибок: %d, за %.2f с — %.0f запросов/с%n",
+                connections, done.get(), errors.get(), elapsed / 1e9, done.get() / (elapsed / 1e9));
+        if (all.length > 0) {
+            System.out.printf("Ответ на пачку из %d: p50 %.2f мс, p99 %.2f мс, p999 %.2f мс, max %.2f мс%n", pipeline,
+                    pct(all, 0.50), pct(all, 0.99), pct(all, 0.999), all[all.length - 1] / 1e6);
+        }
+    }
+
+    private long[] connection(String iban, int requests, int pipeline, AtomicLong errors, AtomicLong done) throws IOException {
+        try (Socket s = new Socket(host, port)) {
+            s.setTcpNoDelay(true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+            Writer out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8));
+            out.write("OPEN " + iban + ";LOADXXXX;Нагрузка;Клиент " + iban + "\n");
+            out.flush();
+            if (!in.readLine().startsWith("OK")) errors.incrementAndGet();
+            long[] lat = new long[(requests + pipeline - 1) / pipeline];
+            int batches = 0;
+            for (int sent = 0; sent < requests; ) {
+                int k = Math.min(pipeline, requests - sent);
+                long t0 = System.nanoTime();
+                for (int i = 0; i < k; i++) out.write("DEPOSIT " + iban + ";1.00;нагрузка\n");
+                out.flush();
+                for (int i = 0; i < k; i++) {
+                    String r = in.readLine();
+                    if (r == null) throw new EOFException();
+                    if (!r.startsWith("OK")) errors.incrementAndGet();
+                }
+                lat[batches++] = System.nanoTime() - t0;
+                sent += k;
+                done.addAndGet(k);
+            }
+            out.write("QUIT\n");
+            out.flush();
+            return Arrays.copyOf(lat, batches);
+        }
+    }
+
+    private static double pct(long[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))] / 1e6;
+    }
+}
@@ -0,0 +1,537 @@
+package bank;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Кольцо согласованного хеширования: у каждого узла {@link #VNODES} точек, счёт принадлежит первой точке
+ * не меньше хеша его IBAN. Новый узел забирает только ключи, попавшие перед его точками, — примерно 1/N книги;
+ * остальные счета остаются где были.
+ */
+final class HashRing {
+    static final int VNODES = 128;
+
+    private final List<String> nodes;
+    private final long[] points;
+    private final String[] owners;
+
+    HashRing(List<String> nodes) {
+        if (nodes.isEmpty()) throw new IllegalArgumentException("Нет ни одного узла");
+        this.nodes = List.copyOf(nodes);
+        TreeMap<Long, String> ring = new TreeMap<>();
+        for (String node : nodes) for (int v = 0; v < VNODES; v++) ring.put(hash(node + "#" + v), node);
+        points = new long[ring.size()];
+        owners = new String[ring.size()];
+        int i = 0;
+        for (Map.Entry<Long, String> e : ring.entrySet()) {
+            points[i] = e.getKey();
+            owners[i++] = e.getValue();
+        }
+    }
+
+    List<String> nodes() { return nodes; }
+
+    HashRing with(String node) {
+        if (nodes.contains(node)) throw new IllegalArgumentException("Узел " + node + " уже в кольце");
+        List<String> all = new ArrayList<>(nodes);
+        all.add(node);
+        return new HashRing(all);
+    }
+
+    String owner(String iban) {
+        int k = Arrays.binarySearch(points, hash(iban));
+        if (k < 0) k = -k - 1;
+        return owners[k == points.length ? 0 : k];
+    }
+
+    // FNV-1a по байтам UTF-8 и финальное перемешивание из MurmurHash3: одинаково в любой JVM и на любом узле
+    static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : s.getBytes(StandardCharsets.UTF_8)) h = (h ^ (b & 0xff)) * 0x100000001b3L;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
+    }
+}
+
+/** Соединения с одним узлом ({@link BankServer}): пул сокетов, запрос — строка протокола. */
+final class NodeClient implements Closeable {
+    interface Exchange<T> {
+        T run(BufferedReader in, Writer out) throws IOException;
+    }
+
+    final String address;
+    private final String host;
+    private final int port;
+    private final ConcurrentLinkedQueue<Socket> idle = new ConcurrentLinkedQueue<>();
+    private final Map<Socket, BufferedReader> readers = new ConcurrentHashMap<>();
+    private final Map<Socket, Writer> writers = new ConcurrentHashMap<>();
+
+    NodeClient(String address) {
+        int colon = address.lastIndexOf(':');
+        if (colon < 0) throw new IllegalArgumentException("Адрес узла должен быть host:port: " + address);
+        this.address = address;
+        this.host = address.substring(0, colon);
+        this.port = Integer.parseInt(address.substring(colon + 1));
+    }
+
+    /**
+     * Обмен по свободному соединению. Если обмен сорвался, соединение закрывается, а не возвращается в пул:
+     * непонятно, сколько ответа в нём осталось непрочитанным.
+     */
+    <T> T call(Exchange<T> x) {
+        Socket s = idle.poll();
+        try {
+            if (s == null) s = connect();
+            T r = x.run(readers.get(s), writers.get(s));
+            idle.add(s);
+            s = null;
+            return r;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Узел " + address + " недоступен", e);
+        } finally {
+            if (s != null) drop(s);
+        }
+    }
+
+    /** Запрос с ответом в одну строку. */
+    String call(String request) {
+        return call((in, out) -> {
+            send(out, request);
+            return line(in);
+        });
+    }
+
+    /** Ответ вида "OK n" и n строк; первый элемент — сам заголовок (или ERR). */
+    List<String> lines(String request) {
+        return call((in, out) -> {
+            send(out, request);
+            String head = line(in);
+            List<String> res = new ArrayList<>();
+            res.add(head);
+            if (!head.startsWith("OK")) return res;
+            int n = Integer.parseInt(head.substring(3).trim());
+            for (int i = 0; i < n; i++) res.add(line(in));
+            return res;
+        });
+    }
+
+    static void send(Writer out, String request) throws IOException {
+        out.write(request);
+        out.write('\n');
+        out.flush();
+    }
+
+    static String line(BufferedReader in) throws IOException {
+        String s = in.readLine();
+        if (s == null) throw new EOFException("Узел закрыл соединение");
+        return s;
+    }
+
+    private Socket connect() throws IOException {
+        Socket s = new Socket(host, port);
+        s.setTcpNoDelay(true);
+        readers.put(s, new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8), 16 * 1024));
+        writers.put(s, new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8), 16 * 1024));
+        return s;
+    }
+
+    private void drop(Socket s) {
+        readers.remove(s);
+        writers.remove(s);
+        try { s.close(); } catch (IOException ignored) { }
+    }
+
+    @Override public void close() {
+        for (Socket s; (s = idle.poll()) != null; ) drop(s);
+    }
+}
+
+/**
+ * Книга, разложенная по нескольким узлам: каждый узел — обычный {@link BankServer} со своим хранилищем
+ * и индексами, счёт живёт на узле, который ему назначает {@link HashRing} по IBAN. Операции по одному счёту
+ * уходят на его узел, поиск — на все узлы параллельно, результаты сливаются в порядке searchTop.
+ * Перевод между узлами не атомарен: снятие на одном, пополнение на другом, при отказе второго — возврат
+ * на первый.
+ * <p>
+ * {@link #addNode} добавляет узел и переносит на него счета, которые теперь принадлежат ему. Операции идут
+ * и во время переноса: счёт переносится под замком своей полосы, а маршрут до конца переноса берётся
+ * по старому кольцу, кроме уже перенесённых счетов. Список узлов — это и есть конфигурация кластера:
+ * после переноса роутер нужно запускать с новым списком. Если перенос сорвался, тот же addNode его докатывает.
+ */
+final class ShardRouter implements Closeable {
+    private static final int STRIPES = 256;
+
+    private final Map<String, NodeClient> clients = new ConcurrentHashMap<>();
+    private final ReentrantReadWriteLock[] stripes = new ReentrantReadWriteLock[STRIPES];
+    private final ExecutorService fanout = BankServer.perConnectionExecutor();
+    private volatile HashRing ring;
+    private volatile HashRing next; // кольцо с добавляемым узлом, пока идёт перенос
+    private final Set<String> moved = ConcurrentHashMap.newKeySet(); // уже переехали по next
+
+    ShardRouter(List<String> nodes) {
+        this.ring = new HashRing(nodes);
+        for (int i = 0; i < STRIPES; i++) stripes[i] = new ReentrantReadWriteLock();
+    }
+
+    List<String> nodes() { return ring.nodes(); }
+
+    private NodeClient node(String address) { return clients.computeIfAbsent(address, NodeClient::new); }
+
+    private static int stripeOf(String iban) { return (int) (HashRing.hash(iban) >>> 56); }
+
+    private ReentrantReadWriteLock stripe(String iban) { return stripes[stripeOf(iban)]; }
+
+    // вызывается под замком полосы счёта
+    private NodeClient owner(String iban) {
+        HashRing n = next;
+        return node(n != null && moved.contains(iban) ? n.owner(iban) : ring.owner(iban));
+    }
+
+    String open(String iban, String bic, String bank, String owner) {
+        String request = "OPEN " + iban + ";" + bic + ";" + bank + ";" + owner;
+        Lock lock = stripe(iban).readLock();
+        lock.lock();
+        try {
+            HashRing n = next;
+            if (n == null || moved.contains(iban) || n.owner(iban).equals(ring.owner(iban))) return owner(iban).call(request);
+            // идёт перенос: новый счёт сразу открывается на новом узле, иначе перенос его не увидит,
+            // но сначала проверяю, что такой IBAN ещё не ждёт переноса на старом. Новых счетов на старом узле
+            // с этим IBAN уже не появится — OPEN идут на новый, а там одновременные открытия разводит addIfAbsent
+            if (node(ring.owner(iban)).call("BALANCE " + iban).startsWith("OK")) return "ERR Счёт с IBAN " + iban + " уже есть";
+            moved.add(iban);
+            return node(n.owner(iban)).call(request);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Запрос по одному счёту (DEPOSIT, WITHDRAW, BALANCE) — на его узел как есть. */
+    String single(String iban, String request) {
+        Lock lock = stripe(iban).readLock();
+        lock.lock();
+        try {
+            return owner(iban).call(request);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    String transfer(String from, String to, String amount, String descr) {
+        // полосы берутся по возрастанию номеров, как замки счетов в AccountRepository.transfer
+        int i = stripeOf(from), j = stripeOf(to);
+        ReentrantReadWriteLock a = stripes[Math.min(i, j)], b = stripes[Math.max(i, j)];
+        a.readLock().lock();
+        b.readLock().lock();
+        try {
+            NodeClient src = owner(from), dst = owner(to);
+            if (src == dst) return src.call("TRANSFER " + from + ";" + to + ";" + amount + ";" + descr);
+            // счёт зачисления проверяю до снятия: незачем снимать деньги, чтобы тут же вернуть их обратно
+            String exists = dst.call("BALANCE " + to);
+            if (!exists.startsWith("OK")) return exists;
+            String r = src.call("WITHDRAW " + from + ";" + amount + ";" + descr);
+            if (!r.startsWith("OK")) return r;
+            String d;
+            try {
+                d = dst.call("DEPOSIT " + to + ";" + amount + ";" + descr);
+            } catch (UncheckedIOException e) {
+                // неизвестно, дошло ли пополнение, — возвращать деньги вслепую нельзя
+                throw new UncheckedIOException("Перевод " + from + " → " + to + " не завершён, сверьте счета", e.getCause());
+            }
+            if (d.startsWith("OK")) return "OK";
+            // деньги уже сняты: если и возврат не прошёл, клиент должен узнать об этом, а не только об отказе получателя
+            String refund;
+            try {
+                refund = src.call("DEPOSIT " + from + ";" + amount + ";Возврат: " + descr);
+            } catch (UncheckedIOException e) {
+                throw new UncheckedIOException("Перевод " + from + " → " + to + " не завершён, сверьте счета", e.getCause());
+            }
+            if (!refund.startsWith("OK"))
+                throw new UncheckedIOException("Перевод " + from + " → " + to + " не завершён, сверьте счета",
+                        new IOException("возврат на " + from + ": " + refund));
+            return d;
+        } finally {
+            b.readLock().unlock();
+            a.readLock().unlock();
+        }
+    }
+
+    /** EXPORT с узла счёта: CSV идёт клиенту как есть, вместе с завершающей строкой ".". */
+    void export(String iban, Writer client) {
+        Lock lock = stripe(iban).readLock();
+        lock.lock();
+        try {
+            owner(iban).call((in, out) -> {
+                NodeClient.send(out, "EXPORT " + iban);
+                String head = NodeClient.line(in);
+                client.write(head);
+                client.write('\n');
+                if (!head.startsWith("OK")) return null;
+                for (String s; !(s = NodeClient.line(in)).equals("."); ) {
+                    client.write(s);
+                    client.write('\n');
+                }
+                client.write(".\n");
+                return null;
+            });
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** SEARCH на всех узлах сразу; строки iban;bic;банк;владелец;баланс, не больше limit. */
+    List<String> search(String text, int limit) {
+        Set<String> all = new LinkedHashSet<>(ring.nodes());
+        HashRing n = next;
+        if (n != null) all.addAll(n.nodes());
+        List<CompletableFuture<List<String>>> parts = new ArrayList<>();
+        for (String address : all) {
+            parts.add(CompletableFuture.supplyAsync(() -> node(address).lines("SEARCH " + text + ";" + limit), fanout));
+        }
+        // во время переноса счёт может на миг оказаться на двух узлах — повторы по IBAN отбрасываются
+        Map<String, String> rows = new LinkedHashMap<>();
+        for (CompletableFuture<List<String>> f : parts) {
+            List<String> res = join(f);
+            if (!res.get(0).startsWith("OK")) throw new IllegalArgumentException(res.get(0).substring(Math.min(4, res.get(0).length())));
+            for (String row : res.subList(1, res.size())) rows.putIfAbsent(row.substring(0, Math.max(0, row.indexOf(';'))), row);
+        }
+        String q = text.trim();
+        List<String> merged = new ArrayList<>(rows.values());
+        merged.sort(Comparator.comparingLong(row -> rank(row, q)));
+        return merged.size() > limit ? new ArrayList<>(merged.subList(0, limit)) : merged;
+    }
+
+    // тот же порядок, что у AccountRepository.searchTop: точный IBAN, владелец, банк, BIC, IBAN по подстроке;
+    // внутри поля сначала значения, которые начинаются с запроса, короткие раньше
+    private static final int[] RANKED_FIELDS = {3, 2, 1, 0};
+
+    static long rank(String row, String q) {
+        if (q.isEmpty()) return 0;
+        String[] f = row.split(";", -1);
+        if (f.length < 4) return Long.MAX_VALUE;
+        if (f[0].equalsIgnoreCase(q)) return 0;
+        String lower = q.toLowerCase(Locale.ROOT);
+        for (int t = 0; t < RANKED_FIELDS.length; t++) {
+            String v = f[RANKED_FIELDS[t]].toLowerCase(Locale.ROOT);
+            if (v.startsWith(lower)) return (2L * t + 1) << 32 | v.length();
+            if (v.contains(lower)) return (2L * t + 2) << 32;
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /** Добавить узел и перенести на него его счета; возвращает, сколько счетов переехало. */
+    synchronized int addNode(String address) {
+        HashRing n = next;
+        if (n == null) {
+            n = ring.with(address);
+        } else if (!n.nodes().contains(address) || ring.nodes().contains(address)) {
+            throw new IllegalStateException("Уже идёт перенос на другой узел");
+        }
+        String pong = node(address).call("PING");
+        if (!pong.startsWith("OK")) throw new IllegalStateException("Узел " + address + " не отвечает: " + pong);
+        next = n;
+        int count = 0;
+        for (String from : ring.nodes()) {
+            List<String> ibans = node(from).lines("IBANS");
+            if (!ibans.get(0).startsWith("OK")) throw new IllegalStateException("Узел " + from + ": " + ibans.get(0));
+            for (String iban : ibans.subList(1, ibans.size())) {
+                if (!n.owner(iban).equals(address)) continue;
+                Lock lock = stripe(iban).writeLock();
+                lock.lock();
+                try {
+                    move(iban, node(from), node(address));
+                } finally {
+                    lock.unlock();
+                }
+                count++;
+            }
+        }
+        // сначала новое кольцо, потом сброс next: маршрут, прочитавший старый next, всё равно попадёт куда надо
+        ring = n;
+        next = null;
+        moved.clear();
+        return count;
+    }
+
+    // под замком полосы счёта на запись; верна та копия, куда сейчас ведёт маршрут
+    private void move(String iban, NodeClient from, NodeClient to) {
+        if (!moved.contains(iban)) {
+            // копия от прерванного переноса, до которой маршрут не дошёл, — устарела
+            if (to.call("BALANCE " + iban).startsWith("OK")) check(iban, to.call("DROP " + iban));
+            String r = from.call((in, out) -> {
+                NodeClient.send(out, "HISTORY " + iban);
+                String head = NodeClient.line(in);
+                if (!head.startsWith("OK")) return head;
+                int rows = Integer.parseInt(head.substring(head.lastIndexOf(';') + 1));
+                return to.call((tin, tout) -> {
+                    tout.write("RESTORE " + head.substring(3) + "\n");
+                    for (int i = 0; i < rows; i++) {
+                        tout.write(NodeClient.line(in));
+                        tout.write('\n');
+                    }
+                    tout.flush();
+                    return NodeClient.line(tin);
+                });
+            });
+            check(iban, r);
+            moved.add(iban);
+        }
+        check(iban, from.call("DROP " + iban));
+    }
+
+    private static void check(String iban, String reply) {
+        if (!reply.startsWith("OK")) throw new IllegalStateException("Перенос " + iban + ": " + reply);
+    }
+
+    private static <T> T join(CompletableFuture<T> f) {
+        try {
+            return f.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException r) throw r;
+            throw e;
+        }
+    }
+
+    @Override public void close() {
+        fanout.shutdownNow();
+        for (NodeClient c : clients.values()) c.close();
+    }
+}
+
+/**
+ * Тот же строковый протокол, что у {@link BankServer}, но поверх {@link ShardRouter}: клиенту кластер выглядит
+ * одним сервером. Дополнительно:
+ * <pre>
+ * NODES                                 OK n, затем n адресов host:port
+ * ADDNODE host:port                     OK сколько счетов переехало
+ * </pre>
+ */
+final class RouterServer implements Closeable {
+    private static final int DEFAULT_SEARCH_LIMIT = 100;
+
+    private final ShardRouter router;
+    private final ServerSocket socket;
+    private final ExecutorService connections = BankServer.perConnectionExecutor();
+
+    RouterServer(ShardRouter router, int port) throws IOException {
+        this.router = router;
+        this.socket = new ServerSocket();
+        socket.setReuseAddress(true);
+        socket.bind(new InetSocketAddress(port), 4096);
+    }
+
+    int port() { return socket.getLocalPort(); }
+
+    /** Цикл приёма соединений; возвращается после close(). */
+    void serve() {
+        while (!socket.isClosed()) {
+            Socket s;
+            try {
+                s = socket.accept();
+            } catch (IOException e) {
+                if (socket.isClosed()) return;
+                continue;
+            }
+            connections.execute(() -> {
+                try (s) {
+                    s.setTcpNoDelay(true);
+                    handle(s.getInputStream(), s.getOutputStream());
+                } catch (IOException ignored) {
+                    // клиент отвалился — его дело
+                }
+            });
+        }
+    }
+
+    @Override public void close() throws IOException {
+        socket.close();
+        connections.shutdownNow();
+        router.close();
+    }
+
+    void handle(InputStream rawIn, OutputStream rawOut) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(rawIn, StandardCharsets.UTF_8), 16 * 1024);
+        Writer out = new BufferedWriter(new OutputStreamWriter(rawOut, StandardCharsets.UTF_8), 16 * 1024);
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.isBlank()) continue;
+            int sp = line.indexOf(' ');
+            String cmd = (sp < 0 ? line : line.substring(0, sp)).toUpperCase(Locale.ROOT);
+            String[] args = sp < 0 ? new String[0] : line.substring(sp + 1).split(";", -1);
+            if (cmd.equals("QUIT")) break;
+            String reply;
+            try {
+                reply = execute(cmd, args, out);
+            } catch (IllegalArgumentException | IllegalStateException | UncheckedIOException e) {
+                reply = "ERR " + (e.getMessage() == null ? "ошибка" : e.getMessage().replace('\n', ' '));
+            }
+            if (reply != null) out.write(reply + "\n");
+            if (!in.ready()) out.flush();
+        }
+        out.flush();
+    }
+
+    // null — ответ уже записан в out
+    private String execute(String cmd, String[] a, Writer out) throws IOException {
+        switch (cmd) {
+            case "PING" -> {
+                return "OK PONG";
+            }
+            case "OPEN" -> {
+                need(a, 4);
+                if (a[0].isBlank()) throw new IllegalArgumentException("Пустой IBAN");
+                return router.open(a[0].trim(), a[1].trim(), a[2].trim(), a[3].trim());
+            }
+            case "DEPOSIT", "WITHDRAW" -> {
+                need(a, 2);
+                return router.single(a[0].trim(), cmd + " " + String.join(";", a));
+            }
+            case "BALANCE" -> {
+                need(a, 1);
+                return router.single(a[0].trim(), "BALANCE " + a[0]);
+            }
+            case "TRANSFER" -> {
+                need(a, 3);
+                return router.transfer(a[0].trim(), a[1].trim(), a[2].trim(), a.length > 3 ? a[3] : "Перевод");
+            }
+            case "EXPORT" -> {
+                need(a, 1);
+                router.export(a[0].trim(), out);
+                return null;
+            }
+            case "SEARCH" -> {
+                int limit = a.length > 1 ? Integer.parseInt(a[1].trim()) : DEFAULT_SEARCH_LIMIT;
+                List<String> rows = router.search(a.length > 0 ? a[0] : "", limit);
+                StringBuilder sb = new StringBuilder("OK ").append(rows.size());
+                for (String row : rows) sb.append('\n').append(row);
+                return sb.toString();
+            }
+            case "NODES" -> {
+                List<String> nodes = router.nodes();
+                return "OK " + nodes.size() + "\n" + String.join("\n", nodes);
+            }
+            case "ADDNODE" -> {
+                need(a, 1);
+                return "OK " + router.addNode(a[0].trim());
+            }
+            default -> throw new IllegalArgumentException("Неизвестная команда: " + cmd);
+        }
+    }
+
+    private static void need(String[] a, int n) {
+        if (a.length < n) throw new IllegalArgumentException("Не хватает аргументов: нужно " + n);
+    }
+}
@@ -0,0 +1,49 @@
+package bank;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Выписка по месяцам: на каждый месяц периода — итоги и баланс на конец месяца. */
+final class Statement {
+    final BankAccount account;
+    final LocalDate from;
+    final LocalDate to;
+    final long openingMinor;
+    final List<Line> months = new ArrayList<>();
+
+    static final class Line {
+        final YearMonth month;
+        final PeriodTotals totals;
+        final long closingMinor;
+
+        Line(YearMonth month, PeriodTotals totals, long closingMinor) {
+            this.month = month;
+            this.totals = totals;
+            this.closingMinor = closingMinor;
+        }
+    }
+
+    // каждый месяц — два запроса к дневным итогам, так что длина истории на время почти не влияет
+    Statement(BankAccount account, LocalDate from, LocalDate to) {
+        if (to.isBefore(from)) throw new IllegalArgumentException("Конец периода раньше начала");
+        this.account = account;
+        this.from = from;
+        this.to = to;
+        this.openingMinor = account.balanceAt(from.atStartOfDay().minusNanos(1_000)).minor();
+        long balance = openingMinor;
+        for (YearMonth m = YearMonth.from(from); !m.isAfter(YearMonth.from(to)); m = m.plusMonths(1)) {
+            LocalDate start = m.atDay(1).isBefore(from) ? from : m.atDay(1);
+            LocalDate end = m.atEndOfMonth().isAfter(to) ? to : m.atEndOfMonth();
+            PeriodTotals t = account.totals(start.atStartOfDay(), endOfDay(end));
+            balance += t.netMinor();
+            months.add(new Line(m, t, balance));
+        }
+    }
+
+    long closingMinor() { return months.isEmpty() ? openingMinor : months.get(months.size() - 1).closingMinor; }
+
+    static LocalDateTime endOfDay(LocalDate d) { return d.atStartOfDay().plusDays(1).minusNanos(1_000); }
+}
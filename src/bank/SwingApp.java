@@ -1,16 +1,33 @@
 package bank;
 
 import javax.swing.*;
+import javax.swing.Timer;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import javax.swing.table.AbstractTableModel;
+import javax.swing.table.TableColumn;
 import java.awt.BorderLayout;
 import java.awt.FlowLayout;
 import java.awt.Dimension;
 import java.awt.event.ActionEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
 import java.io.File;
-import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
 
 class SwingApp {
+    private static final int SEARCH_LIMIT = 200;   // сколько счетов показывать в списке
+    private static final int SEARCH_DELAY_MS = 150; // пауза в наборе, после которой ищем
+
     public static void launch(AccountRepository repo, DataStore store) {
         SwingUtilities.invokeLater(() -> new SwingApp(repo, store).show()); // запуск GUI на EDT
     }
@@ -25,6 +42,17 @@ class SwingApp {
     private JTextField amountField;
     private JTextField descrField;
     private JTextField searchOwnerField;
+    private JTextField filterField;
+    private JLabel searchStatus;
+    // поиск идёт в своём потоке; номер запроса — чтобы результаты устаревшего не попали в список
+    private final ExecutorService searcher = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "bank-search");
+        t.setDaemon(true);
+        return t;
+    });
+    private final AtomicLong searchGeneration = new AtomicLong();
+    private Future<?> searching;
+    private Timer searchDelay;
 
     public SwingApp(AccountRepository repo, DataStore store) {
         this.repo = repo;
@@ -37,13 +65,21 @@ class SwingApp {
         frame.setLayout(new BorderLayout());
 
         var top = new JPanel(new BorderLayout(8, 8));
-        accountCombo = new JComboBox<>(repo.all().toArray(new BankAccount[0]));
+        accountCombo = new JComboBox<>();
         accountCombo.setPreferredSize(new Dimension(450, accountCombo.getPreferredSize().height));
         top.add(accountCombo, BorderLayout.WEST);
 
         var searchPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
         searchOwnerField = new JTextField(16);
         searchOwnerField.addActionListener(this::onSearchAccounts);
+        searchDelay = new Timer(SEARCH_DELAY_MS, e -> startSearch(searchOwnerField.getText(), false));
+        searchDelay.setRepeats(false);
+        searchOwnerField.getDocument().addDocumentListener(new DocumentListener() {
+            @Override public void insertUpdate(DocumentEvent e) { searchDelay.restart(); }
+            @Override public void removeUpdate(DocumentEvent e) { searchDelay.restart(); }
+            @Override public void changedUpdate(DocumentEvent e) { searchDelay.restart(); }
+        });
+        searchStatus = new JLabel();
         var searchBtn = new JButton("Поиск счетов");
         searchBtn.addActionListener(this::onSearchAccounts);
         var newAcc = new JButton("Открыть счёт");
@@ -52,12 +88,33 @@ class SwingApp {
         searchPanel.add(searchOwnerField);
         searchPanel.add(searchBtn);
         searchPanel.add(newAcc);
+        searchPanel.add(searchStatus);
         top.add(searchPanel, BorderLayout.CENTER);
         frame.add(top, BorderLayout.NORTH);
 
         tableModel = new TransactionTableModel();
         table = new JTable(tableModel);
-        frame.add(new JScrollPane(table), BorderLayout.CENTER);
+        // сортировка по щелчку на заголовке: по возрастанию, по убыванию, как в истории
+        table.getTableHeader().addMouseListener(new MouseAdapter() {
+            @Override public void mouseClicked(MouseEvent e) {
+                int c = table.columnAtPoint(e.getPoint());
+                if (c < 0) return;
+                tableModel.sortBy(table.convertColumnIndexToModel(c));
+                for (TableColumn col : Collections.list(table.getColumnModel().getColumns())) {
+                    col.setHeaderValue(tableModel.getColumnName(col.getModelIndex()));
+                }
+                table.getTableHeader().repaint();
+            }
+        });
+        var center = new JPanel(new BorderLayout());
+        var filterPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        filterField = new JTextField(24);
+        filterField.addActionListener(e -> tableModel.setFilter(filterField.getText()));
+        filterPanel.add(new JLabel("Фильтр по описанию:"));
+        filterPanel.add(filterField);
+        center.add(filterPanel, BorderLayout.NORTH);
+        center.add(new JScrollPane(table), BorderLayout.CENTER);
+        frame.add(center, BorderLayout.CENTER);
 
         var bottom = new JPanel(new FlowLayout(FlowLayout.LEFT));
         amountField = new JTextField(8);
@@ -66,56 +123,88 @@ class SwingApp {
         depositBtn.addActionListener(e -> doOp(true));
         var withdrawBtn = new JButton("Снять");
         withdrawBtn.addActionListener(e -> doOp(false));
+        var transferBtn = new JButton("Перевести");
+        transferBtn.addActionListener(this::onTransfer);
         var exportBtn = new JButton("Экспорт CSV");
         exportBtn.addActionListener(this::onExport);
+        var statementBtn = new JButton("Выписка");
+        statementBtn.addActionListener(this::onStatement);
         var saveBtn = new JButton("Сохранить");
-        saveBtn.addActionListener(e -> store.save(repo));
+        saveBtn.addActionListener(e -> {
+            // снимок пишется в фоне, окно не замирает
+            saveBtn.setEnabled(false);
+            store.saveAsync(repo).whenComplete((ok, err) -> SwingUtilities.invokeLater(() -> {
+                saveBtn.setEnabled(true);
+                if (err != null) {
+                    Throwable cause = err.getCause() != null ? err.getCause() : err;
+                    JOptionPane.showMessageDialog(frame, cause.getMessage(), "Ошибка сохранения", JOptionPane.ERROR_MESSAGE);
+                }
+            }));
+        });
         bottom.add(new JLabel("Сумма:")); bottom.add(amountField);
         bottom.add(new JLabel("Описание:")); bottom.add(descrField);
-        bottom.add(depositBtn); bottom.add(withdrawBtn);
-        bottom.add(exportBtn); bottom.add(saveBtn);
+        bottom.add(depositBtn); bottom.add(withdrawBtn); bottom.add(transferBtn);
+        bottom.add(statementBtn); bottom.add(exportBtn); bottom.add(saveBtn);
         frame.add(bottom, BorderLayout.SOUTH);
 
         accountCombo.addActionListener(e -> refreshTable());
-        if (accountCombo.getItemCount() > 0) accountCombo.setSelectedIndex(0);
-        refreshTable();
+        startSearch("", false);
 
         frame.pack();
         frame.setSize(Math.max(900, frame.getWidth()), Math.max(500, frame.getHeight()));
         frame.setLocationRelativeTo(null);
         frame.setVisible(true);
-
-        if (repo.all().isEmpty()) {
-            JOptionPane.showMessageDialog(frame, "Список счетов пуст. Нажмите ‘Открыть счёт’, чтобы добавить первый.");
-        }
     }
 
+    // Enter или кнопка — искать сразу, не дожидаясь паузы в наборе
     private void onSearchAccounts(ActionEvent e) {
-        String q = searchOwnerField.getText().trim();
-        if (q.isBlank()) {
-            accountCombo.setModel(new DefaultComboBoxModel<>(new ArrayList<>(repo.all()).toArray(new BankAccount[0])));
-            if (accountCombo.getItemCount() > 0) accountCombo.setSelectedIndex(0);
-            refreshTable();
-            return;
-        }
-        String lq = q.toLowerCase(Locale.ROOT);
-        // это OR-поиск по всем ключевым полям: владелец/банк/IBAN/BIC
-        java.util.List<BankAccount> matches = new ArrayList<>();
-        for (BankAccount acc : repo.all()) {
-            if (acc.ownerName().toLowerCase(Locale.ROOT).contains(lq)
-                    || acc.bankName().toLowerCase(Locale.ROOT).contains(lq)
-                    || acc.iban().toLowerCase(Locale.ROOT).contains(lq)
-                    || acc.bic().toLowerCase(Locale.ROOT).contains(lq)) {
-                matches.add(acc);
-            }
-        }
-        if (matches.isEmpty()) {
-            JOptionPane.showMessageDialog(frame, "Ничего не найдено. Измените запрос или откройте новый счёт.");
-            return;
-        }
-        accountCombo.setModel(new DefaultComboBoxModel<>(matches.toArray(new BankAccount[0])));
-        accountCombo.setSelectedIndex(0);
-        refreshTable();
+        searchDelay.stop();
+        startSearch(searchOwnerField.getText(), true);
+    }
+
+    /**
+     * Поиск счетов вне EDT: OR-поиск по владельцу/банку/IBAN/BIC через индексы репозитория,
+     * лучшие совпадения приходят пачками и сразу дописываются в список. Новый запрос отменяет прежний.
+     */
+    private void startSearch(String query, boolean explicit) {
+        long gen = searchGeneration.incrementAndGet();
+        if (searching != null) searching.cancel(true);
+        searchStatus.setText("Поиск...");
+        DefaultComboBoxModel<BankAccount> model = new DefaultComboBoxModel<>();
+        searching = searcher.submit(() -> {
+            int[] found = {0};
+            repo.searchTop(query, SEARCH_LIMIT, batch -> {
+                if (searchGeneration.get() != gen) return false;
+                found[0] += batch.size();
+                SwingUtilities.invokeLater(() -> {
+                    if (searchGeneration.get() != gen) return;
+                    boolean first = model.getSize() == 0;
+                    model.addAll(batch);
+                    if (first) {
+                        accountCombo.setModel(model);
+                        accountCombo.setSelectedIndex(0);
+                        refreshTable();
+                    }
+                });
+                return true;
+            });
+            int total = found[0];
+            SwingUtilities.invokeLater(() -> {
+                if (searchGeneration.get() != gen) return;
+                if (total > 0) {
+                    searchStatus.setText(total < SEARCH_LIMIT ? "Найдено: " + total : "Первые " + total);
+                    return;
+                }
+                searchStatus.setText("Ничего не найдено");
+                accountCombo.setModel(model);
+                refreshTable();
+                if (explicit && !query.isBlank()) {
+                    JOptionPane.showMessageDialog(frame, "Ничего не найдено. Измените запрос или откройте новый счёт.");
+                } else if (explicit || repo.all().isEmpty()) {
+                    JOptionPane.showMessageDialog(frame, "Список счетов пуст. Нажмите ‘Открыть счёт’, чтобы добавить первый.");
+                }
+            });
+        });
     }
 
     private void onCreateAccount(ActionEvent e) {
@@ -127,9 +216,13 @@ class SwingApp {
                 new Object[]{"IBAN:", iban, "BIC:", bic, "Банк:", bank, "Владелец:", owner},
                 "Новый счёт", JOptionPane.OK_CANCEL_OPTION);
         if (opt == JOptionPane.OK_OPTION) {
-            BankAccount acc = new BankAccount(iban.getText().trim(), bic.getText().trim(),
-                    bank.getText().trim(), owner.getText().trim());
-            repo.add(acc);
+            String key = iban.getText().trim();
+            BankAccount acc = repo.addIfAbsent(new BankAccount(key, bic.getText().trim(),
+                    bank.getText().trim(), owner.getText().trim()));
+            if (acc == null) {
+                JOptionPane.showMessageDialog(frame, "Счёт с IBAN " + key + " уже есть", "Ошибка", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
             ComboBoxModel<BankAccount> model = accountCombo.getModel();
             if (model instanceof DefaultComboBoxModel<BankAccount> m) m.addElement(acc);
             else accountCombo.setModel(new DefaultComboBoxModel<>(new BankAccount[]{acc}));
@@ -147,7 +240,7 @@ class SwingApp {
             return;
         }
         try {
-            BigDecimal amt = new BigDecimal(raw);
+            Money amt = Money.parse(raw);
             String d = descrField.getText();
             if (deposit) acc.deposit(amt, d); else acc.withdraw(amt, d);
             refreshTable();
@@ -161,6 +254,27 @@ class SwingApp {
         }
     }
 
+    private void onTransfer(ActionEvent e) {
+        BankAccount acc = (BankAccount) accountCombo.getSelectedItem();
+        if (acc == null) return;
+        String raw = amountField.getText().trim().replace(',', '.');
+        if (raw.isBlank()) {
+            JOptionPane.showMessageDialog(frame, "Введите сумму.", "Ошибка ввода", JOptionPane.WARNING_MESSAGE);
+            return;
+        }
+        String toIban = JOptionPane.showInputDialog(frame, "IBAN получателя:", "Перевод", JOptionPane.QUESTION_MESSAGE);
+        if (toIban == null || toIban.isBlank()) return;
+        try {
+            repo.transfer(acc.iban(), toIban.trim(), Money.parse(raw), descrField.getText());
+            refreshTable();
+            amountField.setText(""); descrField.setText("");
+        } catch (NumberFormatException nfe) {
+            JOptionPane.showMessageDialog(frame, "Сумма должна быть числом", "Ошибка ввода", JOptionPane.WARNING_MESSAGE);
+        } catch (Exception ex) {
+            JOptionPane.showMessageDialog(frame, ex.getMessage(), "Ошибка", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
     private void onExport(ActionEvent e) {
         BankAccount acc = (BankAccount) accountCombo.getSelectedItem();
         if (acc == null) return;
@@ -176,20 +290,255 @@ class SwingApp {
         }
     }
 
-    private void refreshTable() {
+    private void onStatement(ActionEvent e) {
         BankAccount acc = (BankAccount) accountCombo.getSelectedItem();
-        tableModel.setData(acc == null ? java.util.List.of() : acc.transactions());
+        if (acc == null) return;
+        JTextField fromField = new JTextField(LocalDate.now().withDayOfYear(1).toString());
+        JTextField toField = new JTextField(LocalDate.now().toString());
+        int opt = JOptionPane.showConfirmDialog(frame,
+                new Object[]{"С (гггг-мм-дд):", fromField, "По (гггг-мм-дд):", toField},
+                "Выписка", JOptionPane.OK_CANCEL_OPTION);
+        if (opt != JOptionPane.OK_OPTION) return;
+        LocalDate from, to;
+        try {
+            from = LocalDate.parse(fromField.getText().trim());
+            to = LocalDate.parse(toField.getText().trim());
+        } catch (DateTimeParseException ex) {
+            JOptionPane.showMessageDialog(frame, "Дата должна быть в виде гггг-мм-дд", "Ошибка ввода", JOptionPane.WARNING_MESSAGE);
+            return;
+        }
+        // первый запрос по счёту строит дневные итоги проходом по истории — не на EDT
+        new SwingWorker<Statement, Void>() {
+            @Override protected Statement doInBackground() { return new Statement(acc, from, to); }
+            @Override protected void done() {
+                try {
+                    showStatement(get());
+                } catch (InterruptedException | ExecutionException ex) {
+                    Throwable cause = ex.getCause() != null ? ex.getCause() : ex;
+                    JOptionPane.showMessageDialog(frame, cause.getMessage(), "Ошибка", JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        }.execute();
     }
 
+    private void showStatement(Statement st) {
+        var model = new javax.swing.table.DefaultTableModel(
+                new Object[]{"Месяц", "Пополнения", "шт", "Списания", "шт", "Остаток"}, 0) {
+            @Override public boolean isCellEditable(int r, int c) { return false; }
+        };
+        for (Statement.Line l : st.months) {
+            model.addRow(new Object[]{l.month, Money.ofMinor(l.totals.depositMinor), l.totals.deposits,
+                    Money.ofMinor(l.totals.withdrawMinor), l.totals.withdrawals, Money.ofMinor(l.closingMinor)});
+        }
+        var panel = new JPanel(new BorderLayout(4, 4));
+        panel.add(new JLabel("Входящий остаток на " + st.from + ": " + Money.ofMinor(st.openingMinor)), BorderLayout.NORTH);
+        var scroll = new JScrollPane(new JTable(model));
+        scroll.setPreferredSize(new Dimension(640, 300));
+        panel.add(scroll, BorderLayout.CENTER);
+        panel.add(new JLabel("Исходящий остаток на " + st.to + ": " + Money.ofMinor(st.closingMinor())), BorderLayout.SOUTH);
+        JOptionPane.showMessageDialog(frame, panel, "Выписка " + st.account.iban(), JOptionPane.PLAIN_MESSAGE);
+    }
+
+    // тот же счёт — в таблицу добавятся только новые строки, другой — окно переключается на его историю
+    private void refreshTable() {
+        tableModel.show((BankAccount) accountCombo.getSelectedItem());
+    }
+
+    /**
+     * Окно над историей счёта: строки читаются из колонок {@link TransactionLog} по мере прокрутки,
+     * в памяти держится только несколько последних показанных страниц по {@link #PAGE} строк.
+     * Новые операции приходят событием fireTableRowsInserted, а сортировка и фильтр считаются
+     * в SwingWorker — пока он работает, таблица показывает прежний порядок.
+     */
     static class TransactionTableModel extends AbstractTableModel {
+        private static final int PAGE = 256;
+        private static final int CACHED_PAGES = 16;
         private final String[] cols = {"Время", "Тип", "Сумма", "Описание"};
-        private java.util.List<Transaction> data = new ArrayList<>();
-        public void setData(java.util.List<Transaction> d) { this.data = new ArrayList<>(d); fireTableDataChanged(); }
-        @Override public int getRowCount() { return data.size(); }
+        private final Map<Integer, Transaction[]> pages = new LinkedHashMap<>(32, 0.75f, true) {
+            @Override protected boolean removeEldestEntry(Map.Entry<Integer, Transaction[]> e) {
+                return size() > CACHED_PAGES;
+            }
+        };
+        private TransactionLog log;
+        private int rows;            // сколько строк истории уже показано
+        private int[] order;         // номера строк после фильтра и сортировки; null — как в истории
+        private int sortColumn = -1;
+        private boolean descending;
+        private String filter = "";  // подстрока описания, в нижнем регистре
+        private SwingWorker<int[], Void> pending;
+
+        void show(BankAccount acc) {
+            TransactionLog l = acc == null ? null : acc.log();
+            if (l != log) {
+                cancelPending();
+                log = l;
+                rows = l == null ? 0 : l.size();
+                order = null;
+                pages.clear();
+                fireTableDataChanged();
+                if (arranged()) rearrange();
+                return;
+            }
+            if (log == null || log.size() == rows) return;
+            int old = rows;
+            rows = log.size();
+            // в отсортированный или отфильтрованный вид новые строки встают не в конец — пересчёт в фоне
+            if (arranged()) rearrange(); else fireTableRowsInserted(old, rows - 1);
+        }
+
+        void sortBy(int column) {
+            if (column != sortColumn) {
+                sortColumn = column;
+                descending = false;
+            } else if (!descending) {
+                descending = true;
+            } else {
+                sortColumn = -1;
+            }
+            rearrange();
+        }
+
+        void setFilter(String text) {
+            filter = text.trim().toLowerCase(Locale.ROOT);
+            rearrange();
+        }
+
+        private boolean arranged() { return sortColumn >= 0 || !filter.isEmpty(); }
+
+        private void cancelPending() {
+            if (pending != null) pending.cancel(true);
+            pending = null;
+        }
+
+        private void rearrange() {
+            cancelPending();
+            if (log == null || !arranged()) {
+                if (order != null) {
+                    order = null;
+                    fireTableDataChanged();
+                }
+                return;
+            }
+            TransactionLog l = log;
+            int n = rows, column = sortColumn;
+            boolean desc = descending;
+            String needle = filter;
+            SwingWorker<int[], Void> w = new SwingWorker<>() {
+                @Override protected int[] doInBackground() {
+                    return arrange(l, n, column, desc, needle, this::isCancelled);
+                }
+                @Override protected void done() {
+                    if (pending != this) return; // уже заменён более свежим запросом
+                    pending = null;
+                    try {
+                        order = get();
+                    } catch (InterruptedException | ExecutionException | CancellationException e) {
+                        return;
+                    }
+                    fireTableDataChanged();
+                }
+            };
+            pending = w;
+            w.execute();
+        }
+
+        /**
+         * Номера первых n строк, прошедших фильтр, в порядке колонки column (-1 — как в истории).
+         * Сортировка устойчивая, так что при равных ключах строки идут по времени.
+         */
+        static int[] arrange(TransactionLog log, int n, int column, boolean descending, String needle,
+                             BooleanSupplier cancelled) {
+            String[] names = log.dictionary(); // после n: все описания первых n строк в нём уже есть
+            int[] idx = new int[n];
+            int m = 0;
+            if (needle.isEmpty()) {
+                for (int i = 0; i < n; i++) idx[i] = i;
+                m = n;
+            } else {
+                byte[] match = new byte[names.length]; // описание проверяется один раз, как в TransactionLog.search
+                for (int i = 0; i < n; i++) {
+                    if ((i & TransactionLog.MASK) == 0 && cancelled.getAsBoolean()) throw new CancellationException();
+                    int d = log.descrId(i);
+                    if (match[d] == 0) match[d] = names[d].toLowerCase(Locale.ROOT).contains(needle) ? (byte) 1 : (byte) 2;
+                    if (match[d] == 1) idx[m++] = i;
+                }
+                idx = Arrays.copyOf(idx, m);
+            }
+            if (column > 0) { // по времени история уже упорядочена
+                long[] keys = new long[m];
+                int[] rank = column == 3 ? ranks(names) : null;
+                for (int k = 0; k < m; k++) {
+                    int i = idx[k];
+                    keys[k] = switch (column) {
+                        case 1 -> log.type(i).ordinal();
+                        case 2 -> log.amountMinor(i);
+                        default -> rank[log.descrId(i)];
+                    };
+                }
+                idx = sort(idx, keys, cancelled);
+            }
+            if (column >= 0 && descending) {
+                for (int a = 0, b = m - 1; a < b; a++, b--) {
+                    int t = idx[a]; idx[a] = idx[b]; idx[b] = t;
+                }
+            }
+            return idx;
+        }
+
+        // место описания в алфавитном порядке: строки сравниваются один раз на запись словаря, а не на строку истории
+        private static int[] ranks(String[] names) {
+            Integer[] ids = new Integer[names.length];
+            int k = 0;
+            for (int i = 0; i < names.length; i++) if (names[i] != null) ids[k++] = i;
+            Integer[] used = Arrays.copyOf(ids, k);
+            Arrays.sort(used, (a, b) -> String.CASE_INSENSITIVE_ORDER.compare(names[a], names[b]));
+            int[] rank = new int[names.length];
+            for (int r = 0; r < used.length; r++) rank[used[r]] = r;
+            return rank;
+        }
+
+        // восходящая сортировка слиянием по примитивным ключам: без Integer на каждую строку, устойчивая
+        private static int[] sort(int[] idx, long[] keys, BooleanSupplier cancelled) {
+            int m = idx.length;
+            int[] ti = new int[m];
+            long[] tk = new long[m];
+            for (int width = 1; width < m; width *= 2) {
+                if (cancelled.getAsBoolean()) throw new CancellationException();
+                for (int lo = 0; lo < m; lo += 2 * width) {
+                    int mid = Math.min(lo + width, m), hi = Math.min(lo + 2 * width, m);
+                    int a = lo, b = mid, o = lo;
+                    while (a < mid && b < hi) {
+                        if (keys[b] < keys[a]) { ti[o] = idx[b]; tk[o++] = keys[b++]; }
+                        else { ti[o] = idx[a]; tk[o++] = keys[a++]; }
+                    }
+                    while (a < mid) { ti[o] = idx[a]; tk[o++] = keys[a++]; }
+                    while (b < hi) { ti[o] = idx[b]; tk[o++] = keys[b++]; }
+                }
+                int[] x = idx; idx = ti; ti = x;
+                long[] y = keys; keys = tk; tk = y;
+            }
+            return idx;
+        }
+
+        // страница декодируется целиком при первом обращении; у последней неполной страницы — заново, когда она выросла
+        private Transaction row(int i) {
+            int p = i / PAGE, base = p * PAGE;
+            Transaction[] page = pages.get(p);
+            if (page == null || i - base >= page.length) {
+                page = new Transaction[Math.min(PAGE, rows - base)];
+                for (int k = 0; k < page.length; k++) page[k] = log.get(base + k);
+                pages.put(p, page);
+            }
+            return page[i - base];
+        }
+
+        @Override public int getRowCount() { return order != null ? order.length : rows; }
         @Override public int getColumnCount() { return cols.length; }
-        @Override public String getColumnName(int c) { return cols[c]; }
+        @Override public String getColumnName(int c) {
+            return c == sortColumn ? cols[c] + (descending ? " ▼" : " ▲") : cols[c];
+        }
         @Override public Object getValueAt(int r, int c) {
-            Transaction t = data.get(r);
+            Transaction t = row(order != null ? order[r] : r);
             return switch (c) {
                 case 0 -> t.timestamp();
                 case 1 -> t.type();
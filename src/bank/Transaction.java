@@ -1,8 +1,11 @@
 package bank;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.math.BigDecimal;
-import java.math.RoundingMode;
 import java.time.LocalDateTime;
 import java.util.Objects;
 
@@ -10,20 +13,51 @@ enum TransactionType { DEPOSIT, WITHDRAWAL }
 
 class Transaction implements Serializable {
     private static final long serialVersionUID = 1L;
+    // форма в потоке как раньше (LocalDateTime + BigDecimal) — нужна для чтения старых bank.dat
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("timestamp", LocalDateTime.class),
+            new ObjectStreamField("amount", BigDecimal.class),
+            new ObjectStreamField("type", TransactionType.class),
+            new ObjectStreamField("description", String.class),
+    };
 
-    private final LocalDateTime timestamp;
-    private final BigDecimal amount;
-    private final TransactionType type;
-    private final String description;
+    private long micros;
+    private long amountMinor;
+    private TransactionType type;
+    private String description;
 
-    public Transaction(LocalDateTime timestamp, BigDecimal amount, TransactionType type, String description) {
-        this.timestamp = Objects.requireNonNull(timestamp);
-        this.amount = amount.setScale(2, RoundingMode.HALF_UP);
+    public Transaction(LocalDateTime timestamp, Money amount, TransactionType type, String description) {
+        this(TransactionLog.toMicros(Objects.requireNonNull(timestamp)), amount.minor(), type, description);
+    }
+
+    Transaction(long micros, long amountMinor, TransactionType type, String description) {
+        this.micros = micros;
+        this.amountMinor = amountMinor;
         this.type = Objects.requireNonNull(type);
         this.description = description == null ? "" : description;
     }
-    public LocalDateTime timestamp() { return timestamp; }
-    public BigDecimal amount() { return amount; }
+    public LocalDateTime timestamp() { return TransactionLog.fromMicros(micros); }
+    public Money amount() { return Money.ofMinor(amountMinor); }
     public TransactionType type() { return type; }
     public String description() { return description; }
+
+    long micros() { return micros; }
+    long amountMinor() { return amountMinor; }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField f = out.putFields();
+        f.put("timestamp", timestamp());
+        f.put("amount", amount().toBigDecimal());
+        f.put("type", type);
+        f.put("description", description);
+        out.writeFields();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField f = in.readFields();
+        micros = TransactionLog.toMicros((LocalDateTime) f.get("timestamp", null));
+        amountMinor = Money.of((BigDecimal) f.get("amount", null)).minor();
+        type = (TransactionType) f.get("type", null);
+        description = (String) f.get("description", "");
+    }
 }
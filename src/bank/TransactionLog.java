@@ -0,0 +1,341 @@
+package bank;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+
+/**
+ * Колоночное хранилище транзакций одного счёта: время в микросекундах, сумма в копейках, тип байтом,
+ * описание — номером в словаре счёта. Строки лежат кусками по {@link #CHUNK} штук, так что рост
+ * не копирует всю историю. Пишет только владелец замка счёта, читать можно без блокировок:
+ * размер публикуется volatile-записью после того, как строка целиком записана.
+ * Время строк не убывает, поэтому сама история служит индексом по времени (бинарный поиск),
+ * а у каждого куска есть мин/макс суммы и маска типов, чтобы поиск пропускал неподходящие куски.
+ * История, открытая из постраничного снимка ({@link PagedFile}), сначала целиком лежит на диске:
+ * куски и словарь подгружаются при первом обращении, в chunks попадает только дописываемый хвост.
+ * Старые страницы длинной истории снимок выносит в архив ({@link PageArchive}); читаются они через тот же cold.
+ */
+final class TransactionLog implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    static final int CHUNK_BITS = 12;
+    static final int CHUNK = 1 << CHUNK_BITS;
+    static final int MASK = CHUNK - 1;
+    private static final TransactionType[] TYPES = TransactionType.values();
+
+    private transient volatile Chunk[] chunks = new Chunk[1];
+    private transient volatile int size;
+    private transient volatile String[] dict = new String[4];
+    private transient volatile String[] dictLower = new String[4]; // для поиска по подстроке, считается один раз на описание
+    private transient int dictSize;
+    private transient Map<String, Integer> dictIds = new HashMap<>();
+    private transient volatile PagedFile.Pages cold; // страницы на диске; null — вся история в памяти
+    private transient volatile PageArchive archive; // что из истории уже в архиве снимка; читается через cold
+    private transient DailyRollups rollups; // дневные итоги; строятся при первом запросе, дальше ведутся в append
+
+    TransactionLog() {}
+
+    // история из снимка: в памяти пока ничего, даже словаря
+    TransactionLog(PagedFile.Pages cold) {
+        this.cold = cold;
+        this.archive = cold.archive();
+        this.chunks = new Chunk[Math.max(1, cold.count())];
+        this.size = cold.rows;
+        this.dict = null;
+        this.dictLower = null;
+        this.dictIds = null;
+    }
+
+    // маленькие счета не должны платить за целый кусок: массивы последнего куска растут как у ArrayList
+    static final class Chunk {
+        final long[] micros;
+        final long[] amounts;
+        final byte[] types;
+        final int[] descr;
+        long minAmount = Long.MAX_VALUE;
+        long maxAmount = Long.MIN_VALUE;
+        int typeMask;
+
+        Chunk(int capacity) {
+            micros = new long[capacity];
+            amounts = new long[capacity];
+            types = new byte[capacity];
+            descr = new int[capacity];
+        }
+
+        Chunk grow(int capacity, int used) {
+            Chunk c = new Chunk(capacity);
+            System.arraycopy(micros, 0, c.micros, 0, used);
+            System.arraycopy(amounts, 0, c.amounts, 0, used);
+            System.arraycopy(types, 0, c.types, 0, used);
+            System.arraycopy(descr, 0, c.descr, 0, used);
+            c.minAmount = minAmount;
+            c.maxAmount = maxAmount;
+            c.typeMask = typeMask;
+            return c;
+        }
+
+        boolean mayContain(TransactionType type, long min, long max) {
+            if (type != null && (typeMask & (1 << type.ordinal())) == 0) return false;
+            return maxAmount >= min && minAmount <= max;
+        }
+    }
+
+    int size() { return size; }
+
+    /** Кусок с номером ci: из памяти или (для истории из снимка) через кэш страниц. */
+    Chunk chunk(int ci) {
+        Chunk c = chunks[ci];
+        return c != null ? c : cold.page(ci);
+    }
+
+    Chunk resident(int ci) { return chunks[ci]; }
+
+    /** Под замком счёта, когда все size строк уже лежат в pages: куски из памяти можно отпустить. */
+    void rebind(PagedFile.Pages pages) {
+        cold = pages; // сначала cold, потом chunks: кто увидел новый пустой chunks, увидит и новый cold
+        chunks = new Chunk[Math.max(1, pages.count())];
+    }
+    PagedFile.Pages cold() { return cold; }
+
+    // архив запоминается отдельно от cold: у счёта, который не переключили на новый снимок, cold старый,
+    // а архив уже новый — его страницы те же, что в старом снимке, просто лежат ещё и в сегменте
+    PageArchive archive() { return archive; }
+    void archive(PageArchive a) { archive = a; }
+
+    /** Под замком счёта. Первый вызов проходит по всей истории, дальше итоги обновляются при каждом append. */
+    DailyRollups rollups() {
+        if (rollups == null) rollups = DailyRollups.build(this);
+        return rollups;
+    }
+
+    private long firstMicros(int ci) {
+        Chunk c = chunks[ci];
+        return c != null ? c.micros[0] : cold.firstMicros(ci);
+    }
+
+    // словарь истории из снимка читается при первом обращении к описаниям
+    String[] dictionary() {
+        String[] d = dict;
+        return d != null ? d : loadDictionary();
+    }
+
+    String[] loadedDictionary() { return dict; }
+
+    private synchronized String[] loadDictionary() {
+        if (dict == null) {
+            String[] d = cold.dictionary();
+            int cap = Math.max(4, Integer.highestOneBit(Math.max(1, d.length)) * 2);
+            String[] lower = new String[cap];
+            Map<String, Integer> ids = new HashMap<>(d.length * 2);
+            for (int i = 0; i < d.length; i++) {
+                lower[i] = d[i].toLowerCase(Locale.ROOT);
+                ids.put(d[i], i);
+            }
+            dictIds = ids;
+            dictSize = d.length;
+            dictLower = lower;
+            dict = Arrays.copyOf(d, cap); // публикация последней: кто увидел dict, видит и остальное
+        }
+        return dict;
+    }
+
+    /** Вызывать под замком счёта. Возвращает номер строки. */
+    int append(long micros, long amountMinor, TransactionType type, String description) {
+        int i = size;
+        if (i > 0) micros = Math.max(micros, micros(i - 1)); // часы могли сдвинуться назад — порядок по времени важнее
+        int ci = i >>> CHUNK_BITS, off = i & MASK;
+        Chunk[] cs = chunks;
+        if (ci == cs.length) {
+            cs = Arrays.copyOf(cs, cs.length * 2);
+            chunks = cs;
+        }
+        Chunk c = cs[ci];
+        if (c == null && cold != null && ci < cold.count()) {
+            // дописываю в хвост, который пока на диске: беру копию страницы, дальше она живёт в памяти
+            c = cold.page(ci).grow(Math.min(CHUNK, Math.max(8, off * 2)), off);
+            cs[ci] = c;
+        } else if (c == null) {
+            c = new Chunk(ci == 0 ? 8 : CHUNK);
+            cs[ci] = c;
+        } else if (off == c.micros.length) {
+            c = c.grow(Math.min(CHUNK, off * 2), off);
+            cs[ci] = c;
+        }
+        c.micros[off] = micros;
+        c.amounts[off] = amountMinor;
+        c.types[off] = (byte) type.ordinal();
+        c.descr[off] = intern(description);
+        c.minAmount = Math.min(c.minAmount, amountMinor);
+        c.maxAmount = Math.max(c.maxAmount, amountMinor);
+        c.typeMask |= 1 << type.ordinal();
+        if (rollups != null) rollups.add(micros, amountMinor, type);
+        size = i + 1; // публикация строки для читателей
+        return i;
+    }
+
+    private int intern(String s) {
+        if (dict == null) loadDictionary();
+        Integer id = dictIds.get(s);
+        if (id != null) return id;
+        String[] d = dict, dl = dictLower;
+        if (dictSize == d.length) {
+            dl = Arrays.copyOf(dl, dl.length * 2);
+            dictLower = dl;
+            d = Arrays.copyOf(d, d.length * 2);
+            dict = d;
+        }
+        dl[dictSize] = s.toLowerCase(Locale.ROOT);
+        d[dictSize] = s;
+        dictIds.put(s, dictSize);
+        return dictSize++;
+    }
+
+    long micros(int i) { return chunk(i >>> CHUNK_BITS).micros[i & MASK]; }
+    long amountMinor(int i) { return chunk(i >>> CHUNK_BITS).amounts[i & MASK]; }
+    TransactionType type(int i) { return TYPES[chunk(i >>> CHUNK_BITS).types[i & MASK]]; }
+    String description(int i) { return dictionary()[chunk(i >>> CHUNK_BITS).descr[i & MASK]]; }
+    int descrId(int i) { return chunk(i >>> CHUNK_BITS).descr[i & MASK]; }
+    // словарь только растёт: всё, на что ссылаются опубликованные строки, уже в нём
+    int dictLength() { return dictionary().length; }
+    String dictEntry(int id) { return dictionary()[id]; }
+
+    Transaction get(int i) {
+        Chunk c = chunk(i >>> CHUNK_BITS);
+        int off = i & MASK;
+        return new Transaction(c.micros[off], c.amounts[off], TYPES[c.types[off]], dictionary()[c.descr[off]]);
+    }
+
+    /** Первая строка со временем >= micros (или size, если таких нет). */
+    int lowerBound(long micros, int n) { return bound(micros, n, false); }
+
+    /** Первая строка со временем > micros. */
+    int upperBound(long micros, int n) { return bound(micros, n, true); }
+
+    // сначала кусок — по первым временам кусков (для снимка это таблица страниц, сами страницы не читаются),
+    // потом бинарный поиск внутри одного куска
+    private int bound(long micros, int n, boolean upper) {
+        int lo = 0, hi = (n + MASK) >>> CHUNK_BITS;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            long first = firstMicros(mid);
+            if (upper ? first <= micros : first < micros) lo = mid + 1; else hi = mid;
+        }
+        if (lo == 0) return 0;
+        int base = (lo - 1) << CHUNK_BITS;
+        Chunk c = chunk(lo - 1);
+        int l = 0, h = Math.min(CHUNK, n - base);
+        while (l < h) {
+            int mid = (l + h) >>> 1;
+            long m = c.micros[mid];
+            if (upper ? m <= micros : m < micros) l = mid + 1; else h = mid;
+        }
+        return base + l;
+    }
+
+    /**
+     * Поиск по истории: диапазон времени находится бинарным поиском, куски без подходящих типов/сумм
+     * пропускаются целиком, а совпадение описания проверяется один раз на запись словаря.
+     * needleLower — подстрока уже в нижнем регистре или null.
+     */
+    List<Transaction> search(long fromMicros, long toMicros, TransactionType type,
+                             long min, long max, String needleLower) {
+        int n = size;
+        String[] names = dictionary(); // читаю после size: все описания строк < n уже в нём
+        String[] lower = dictLower;
+        int lo = fromMicros == Long.MIN_VALUE ? 0 : lowerBound(fromMicros, n);
+        int hi = toMicros == Long.MAX_VALUE ? n : upperBound(toMicros, n);
+        byte[] descrMatch = needleLower == null ? null : new byte[lower.length]; // 0 — не проверено, 1 — да, 2 — нет
+        Chunk[] cs = chunks;
+        List<Transaction> out = new ArrayList<>();
+        for (int i = lo; i < hi; ) {
+            int ci = i >>> CHUNK_BITS;
+            Chunk c = cs[ci];
+            int chunkEnd = Math.min(hi, (ci + 1) << CHUNK_BITS);
+            if (c == null) { // страница снимка: зона берётся из таблицы страниц, читаю страницу только если может подойти
+                if (!cold.mayContain(ci, type, min, max)) { i = chunkEnd; continue; }
+                c = cold.page(ci);
+            } else if (!c.mayContain(type, min, max)) { i = chunkEnd; continue; }
+            for (; i < chunkEnd; i++) {
+                int off = i & MASK;
+                if (type != null && c.types[off] != type.ordinal()) continue;
+                long amount = c.amounts[off];
+                if (amount < min || amount > max) continue;
+                if (descrMatch != null) {
+                    int d = c.descr[off];
+                    if (descrMatch[d] == 0) descrMatch[d] = lower[d].contains(needleLower) ? (byte) 1 : (byte) 2;
+                    if (descrMatch[d] != 1) continue;
+                }
+                out.add(new Transaction(c.micros[off], amount, TYPES[c.types[off]], names[c.descr[off]]));
+            }
+        }
+        return out;
+    }
+
+    /** Неизменяемый срез из первых size() строк; объекты Transaction создаются только при обращении. */
+    List<Transaction> view() {
+        int n = size;
+        return new View(n);
+    }
+
+    private final class View extends AbstractList<Transaction> implements RandomAccess {
+        private final int n;
+        View(int n) { this.n = n; }
+        @Override public int size() { return n; }
+        @Override public Transaction get(int i) {
+            Objects.checkIndex(i, n);
+            return TransactionLog.this.get(i);
+        }
+    }
+
+    static long toMicros(LocalDateTime t) {
+        return t.toEpochSecond(ZoneOffset.UTC) * 1_000_000L + t.getNano() / 1_000;
+    }
+
+    static LocalDateTime fromMicros(long micros) {
+        return LocalDateTime.ofEpochSecond(Math.floorDiv(micros, 1_000_000L),
+                (int) Math.floorMod(micros, 1_000_000L) * 1_000, ZoneOffset.UTC);
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        int n = size;
+        String[] d = dictionary();
+        out.writeInt(dictSize);
+        for (int i = 0; i < dictSize; i++) out.writeUTF(d[i]);
+        out.writeInt(n);
+        for (int i = 0; i < n; i++) {
+            Chunk c = chunk(i >>> CHUNK_BITS);
+            int off = i & MASK;
+            out.writeLong(c.micros[off]);
+            out.writeLong(c.amounts[off]);
+            out.writeByte(c.types[off]);
+            out.writeInt(c.descr[off]);
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        chunks = new Chunk[1];
+        dictIds = new HashMap<>();
+        dict = new String[4];
+        dictLower = new String[4];
+        int dn = in.readInt();
+        String[] d = new String[dn];
+        for (int i = 0; i < dn; i++) {
+            d[i] = in.readUTF();
+            intern(d[i]);
+        }
+        int n = in.readInt();
+        for (int i = 0; i < n; i++) {
+            long micros = in.readLong(), amount = in.readLong();
+            byte type = in.readByte();
+            int descr = in.readInt();
+            append(micros, amount, TYPES[type], d[descr]);
+        }
+    }
+}
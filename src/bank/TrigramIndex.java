@@ -0,0 +1,96 @@
+package bank;
+
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Индекс подстрок по триграммам для набора различных ключей (владельцы, банки, IBAN, BIC).
+ * На каждую триграмму — отсортированный массив номеров ключей; запрос пересекает списки
+ * и проверяет через contains только оставшихся кандидатов. Регистр не учитывается.
+ */
+final class TrigramIndex {
+    private final ReentrantReadWriteLock rw = new ReentrantReadWriteLock();
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final Map<Long, Posting> postings = new HashMap<>();
+    private String[] keys = new String[16];
+    private String[] lower = new String[16];
+    private int size;
+
+    // номера ключей выдаются по возрастанию, поэтому список остаётся отсортированным простым дописыванием
+    private static final class Posting {
+        int[] a = new int[4];
+        int n;
+
+        void add(int id) {
+            if (n > 0 && a[n - 1] == id) return; // одна и та же триграмма встретилась в ключе дважды
+            if (n == a.length) a = Arrays.copyOf(a, n * 2);
+            a[n++] = id;
+        }
+    }
+
+    void add(String key) {
+        rw.writeLock().lock();
+        try {
+            if (ids.containsKey(key)) return;
+            int id = size++;
+            if (id == keys.length) {
+                keys = Arrays.copyOf(keys, id * 2);
+                lower = Arrays.copyOf(lower, id * 2);
+            }
+            String l = key.toLowerCase(Locale.ROOT);
+            keys[id] = key;
+            lower[id] = l;
+            ids.put(key, id);
+            for (int i = 0; i + 3 <= l.length(); i++) {
+                postings.computeIfAbsent(trigram(l, i), t -> new Posting()).add(id);
+            }
+        } finally {
+            rw.writeLock().unlock();
+        }
+    }
+
+    /** Все ключи (в исходном виде), содержащие подстроку. */
+    List<String> matching(String query) {
+        String q = query.toLowerCase(Locale.ROOT);
+        List<String> out = new ArrayList<>();
+        rw.readLock().lock();
+        try {
+            if (q.length() < 3) { // короче триграммы индекс не поможет — прохожу по ключам, без аллокаций на ключ
+                for (int i = 0; i < size; i++) if (lower[i].contains(q)) out.add(keys[i]);
+                return out;
+            }
+            List<Posting> lists = new ArrayList<>();
+            Set<Long> seen = new HashSet<>();
+            for (int i = 0; i + 3 <= q.length(); i++) {
+                long t = trigram(q, i);
+                if (!seen.add(t)) continue;
+                Posting p = postings.get(t);
+                if (p == null) return out;
+                lists.add(p);
+            }
+            lists.sort(Comparator.comparingInt(p -> p.n));
+            int[] cand = Arrays.copyOf(lists.get(0).a, lists.get(0).n);
+            int n = cand.length;
+            for (int k = 1; k < lists.size() && n > 0; k++) n = intersect(cand, n, lists.get(k));
+            for (int i = 0; i < n; i++) if (lower[cand[i]].contains(q)) out.add(keys[cand[i]]);
+            return out;
+        } finally {
+            rw.readLock().unlock();
+        }
+    }
+
+    // пересечение отсортированных списков на месте, возвращает новую длину cand
+    private static int intersect(int[] cand, int n, Posting p) {
+        int i = 0, j = 0, w = 0;
+        while (i < n && j < p.n) {
+            if (cand[i] < p.a[j]) i++;
+            else if (cand[i] > p.a[j]) j++;
+            else { cand[w++] = cand[i]; i++; j++; }
+        }
+        return w;
+    }
+
+    private static long trigram(String s, int i) {
+        return ((long) s.charAt(i) << 32) | ((long) s.charAt(i + 1) << 16) | s.charAt(i + 2);
+    }
+}
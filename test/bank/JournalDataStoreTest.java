@@ -0,0 +1,95 @@
+package bank;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JournalDataStoreTest {
+    @TempDir Path dir;
+
+    @Test
+    void replayRestoresBalancesAndHistory() {
+        String db = dir.resolve("bank.dat").toString();
+        AccountRepository repo = new JournalDataStore(db).loadOrCreateEmpty();
+        BankAccount a = repo.add(new BankAccount("DE01", "BIC1", "Банк", "Иванов"));
+        BankAccount b = repo.add(new BankAccount("DE02", "BIC1", "Банк", "Петров"));
+        a.deposit(Money.parse("100.00"), "зарплата");
+        a.withdraw(Money.parse("12.34"), "кофе");
+        repo.transfer("DE01", "DE02", Money.parse("50"), "долг");
+        b.withdraw(Money.parse("0.66"), "");
+
+        AccountRepository loaded = new JournalDataStore(db).loadOrCreateEmpty();
+        assertEquals(2, loaded.all().size());
+        assertSameAccount(a, loaded.getByIban("DE01").orElseThrow());
+        assertSameAccount(b, loaded.getByIban("DE02").orElseThrow());
+        assertEquals(Money.parse("37.66"), loaded.getByIban("DE01").orElseThrow().balance());
+        assertEquals(Money.parse("49.34"), loaded.getByIban("DE02").orElseThrow().balance());
+    }
+
+    @Test
+    void repeatedRecordIsSkipped() throws Exception {
+        String db = journalWithDeposits();
+        rewriteSegment(db, records -> records.add(2, records.get(2)));
+
+        BankAccount acc = new JournalDataStore(db).loadOrCreateEmpty().getByIban("DE01").orElseThrow();
+        assertEquals(3, acc.transactions().size());
+        assertEquals(Money.parse("30"), acc.balance());
+    }
+
+    @Test
+    void gapInJournalIsAnError() throws Exception {
+        String db = journalWithDeposits();
+        rewriteSegment(db, records -> records.remove(2));
+
+        UncheckedIOException e = assertThrows(UncheckedIOException.class, () -> new JournalDataStore(db).loadOrCreateEmpty());
+        assertTrue(e.getCause().getMessage().contains("Разрыв в журнале"), e.getCause().getMessage());
+    }
+
+    static void assertSameAccount(BankAccount expected, BankAccount actual) {
+        assertEquals(expected.id(), actual.id());
+        assertEquals(expected.balance(), actual.balance());
+        TransactionLog l = expected.log(), m = actual.log();
+        assertEquals(l.size(), m.size());
+        for (int i = 0; i < l.size(); i++) {
+            assertEquals(l.micros(i), m.micros(i));
+            assertEquals(l.amountMinor(i), m.amountMinor(i));
+            assertEquals(l.type(i), m.type(i));
+            assertEquals(l.description(i), m.description(i));
+        }
+    }
+
+    // журнал: открытие счёта и три пополнения по 10, снимка нет
+    private String journalWithDeposits() {
+        String db = dir.resolve("bank.dat").toString();
+        BankAccount acc = new JournalDataStore(db).loadOrCreateEmpty().add(new BankAccount("DE01", "BIC1", "Банк", "Иванов"));
+        for (int i = 0; i < 3; i++) acc.deposit(Money.parse("10"), "пополнение " + i);
+        return db;
+    }
+
+    // переписывает последний сегмент журнала по записям [len][тело][crc]
+    private static void rewriteSegment(String db, java.util.function.Consumer<List<byte[]>> edit) throws Exception {
+        List<Integer> gens = WriteAheadLog.generations(db);
+        Path seg = WriteAheadLog.segment(db, gens.get(gens.size() - 1));
+        ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(seg));
+        List<byte[]> records = new ArrayList<>();
+        while (in.remaining() >= 4) {
+            byte[] rec = new byte[4 + in.getInt(in.position()) + 4];
+            in.get(rec);
+            records.add(rec);
+        }
+        assertEquals(4, records.size());
+        edit.accept(records);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] rec : records) out.write(rec);
+        Files.write(seg, out.toByteArray());
+    }
+}
@@ -0,0 +1,64 @@
+package bank;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static bank.JournalDataStoreTest.assertSameAccount;
+import static org.junit.jupiter.api.Assertions.*;
+
+class PagedDataStoreTest {
+    @TempDir Path dir;
+
+    @Test
+    void savedSnapshotLoadsBack() {
+        String db = dir.resolve("bank.dat").toString();
+        AccountRepository repo = ledger();
+        new PagedDataStore(db).save(repo);
+
+        AccountRepository loaded = new PagedDataStore(db).loadOrCreateEmpty();
+        assertEquals(repo.all().size(), loaded.all().size());
+        for (BankAccount acc : repo.all()) assertSameAccount(acc, loaded.getById(acc.id()).orElseThrow());
+        assertEquals(2, loaded.searchAccounts(null, "BIC1", null, null).size()); // индексы перестроены при загрузке
+    }
+
+    @Test
+    void legacySerializedSnapshotLoads() {
+        String db = dir.resolve("bank.dat").toString();
+        AccountRepository repo = ledger();
+        new FileDataStore(db).save(repo);
+
+        AccountRepository loaded = new PagedDataStore(db).loadOrCreateEmpty();
+        for (BankAccount acc : repo.all()) assertSameAccount(acc, loaded.getById(acc.id()).orElseThrow());
+    }
+
+    @Test
+    void truncatedSnapshotIsAnError() throws Exception {
+        Path db = dir.resolve("bank.dat");
+        new PagedDataStore(db.toString()).save(ledger());
+        byte[] bytes = Files.readAllBytes(db);
+        Files.write(db, Arrays.copyOf(bytes, bytes.length / 2));
+
+        assertThrows(UncheckedIOException.class, () -> {
+            for (BankAccount acc : new PagedDataStore(db.toString()).loadOrCreateEmpty().all()) acc.transactions();
+        });
+    }
+
+    private static AccountRepository ledger() {
+        AccountRepository repo = new AccountRepository();
+        long t = 1_600_000_000_000_000L;
+        for (int k = 0; k < 5; k++) {
+            BankAccount acc = repo.add(new BankAccount("DE0" + k, "BIC" + (k % 2), "Банк " + k, "Владелец " + k));
+            for (int i = 0; i < 3000; i++) {
+                t += 1_000_000L * (1 + i % 7);
+                if (i % 4 == 3) acc.debit(100 + i, t, "снятие");
+                else acc.credit(1000 + i, t, "пополнение " + (i % 20));
+            }
+        }
+        return repo;
+    }
+}